@@ -6,7 +6,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.InvalidPropertiesFormatException;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
@@ -14,6 +17,8 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
 import org.xml.sax.SAXException;
 
 import alix.lucene.Alix;
@@ -25,7 +30,27 @@ import alix.util.Dir;
 
 public class Load {
   public static String APP = "Alix";
+  /** Default max count of segments after an incremental indexation, before a merge in one segment */
+  public static int MAX_SEGMENTS = 20;
+
   static public void index(File file, int threads) throws IOException, NoSuchFieldException, ParserConfigurationException, SAXException, InterruptedException, TransformerException 
+  {
+    index(file, threads, false);
+  }
+
+  /**
+   * Index a base described by a properties file. A full indexation is done in a temp index,
+   * swapped with the old one at the end. An incremental indexation updates the index in place,
+   * only for the files changed since last time, according to a {@link Manifest} recorded in the index
+   * (if the manifest is not found, a full indexation is done).
+   * The entry "maxsegments" of the properties file (default {@link #MAX_SEGMENTS}) is the count
+   * of segments above which an incremental indexation is merged in one segment.
+   * The entry "sort" is the name of an int field (ex: year) to sort the documents
+   * of a new index, see {@link Alix#sortIntBook(String)}.
+   * The entry "buckets" is a list of int fields (ex: year) for which occurrences of the terms by value
+   * are built after indexation, for chronological curves, see {@link Alix#writeBuckets(String, String)}.
+   */
+  static public void index(File file, int threads, boolean incremental) throws IOException, NoSuchFieldException, ParserConfigurationException, SAXException, InterruptedException, TransformerException 
   {
     String name = file.getName().replaceFirst("\\..+$", "");
     if (!file.exists()) throw new FileNotFoundException("\n  ["+APP+"] "+file.getAbsolutePath()+"\nProperties file not found");
@@ -49,8 +74,25 @@ public class Load {
     for (int i=0; i < globs.length; i++) {
       if (!globs[i].startsWith("/")) globs[i] = new File(base, globs[i]).getCanonicalPath();
     }
+    // int fields for occurrences by value
+    String[] buckets = new String[0];
+    String fields = props.getProperty("buckets");
+    if (fields != null && !fields.trim().isEmpty()) buckets = fields.trim().split(" *[;:, ] *");
     // test here if it's folder ?
     long time = System.nanoTime();
+    File theDir = new File(file.getParentFile(), name);
+    // update in place the changed files
+    if (incremental) {
+      if (new File(theDir, Manifest.FILE).exists()) {
+        int maxSegments = MAX_SEGMENTS;
+        String value = props.getProperty("maxsegments");
+        if (value != null) maxSegments = Integer.parseInt(value.trim());
+        update(theDir.toPath(), globs, threads, maxSegments, buckets);
+        System.out.println("["+APP+"] "+name+" updated in " + ((System.nanoTime() - time) / 1000000) + " ms.");
+        return;
+      }
+      System.out.println("["+APP+"] "+name+" no manifest of a previous indexation, full indexation");
+    }
     
     String tmpName = name+"_new";
     // indexer d'abord dans un index temporaire
@@ -89,12 +131,24 @@ public class Load {
     });
     Alix alix = Alix.instance(tmpPath, new FrAnalyzer());
     // Alix alix = Alix.instance(path, "org.apache.lucene.analysis.core.WhitespaceAnalyzer");
+    // optional order of documents, by an int field (ex: year), then by book
+    String sortField = props.getProperty("sort");
+    if (sortField != null && !sortField.trim().isEmpty()) alix.indexSort(Alix.sortIntBook(sortField.trim()));
     IndexWriter writer = alix.writer();
-    XMLIndexer.index(writer, globs, SrcFormat.tei, threads);
+    List<File> files = ls(globs);
+    List<File> failed = XMLIndexer.index(writer, files, SrcFormat.tei, threads);
+    writer.commit();
+    writer.forceMerge(1);
     // index here will be committed and merged but need to be closed for cooccurrences
     writer.close();
     Cooc cooc = new Cooc(alix, "text");
     cooc.write();
+    for (String field : buckets) alix.writeBuckets(field, "text");
+    // state of the files, for next incremental indexation
+    Manifest manifest = new Manifest();
+    for (File f : files) manifest.changed(f);
+    forget(manifest, failed);
+    manifest.write(tmpPath.resolve(Manifest.FILE));
     System.out.println("["+APP+"] "+name+" indexed in " + ((System.nanoTime() - time) / 1000000) + " ms.");
     
     /*
@@ -104,7 +158,6 @@ public class Load {
     */
     String oldName = name+"_old";
     File oldDir = new File(file.getParentFile(), oldName);
-    File theDir = new File(file.getParentFile(), name);
     if (theDir.exists()) {
       if (oldDir.exists()) Dir.rm(oldDir);
       theDir.renameTo(oldDir);
@@ -113,33 +166,120 @@ public class Load {
     tmpDir.renameTo(theDir);
   }
 
+  /**
+   * Update an index in place, for the files changed since the last indexation:
+   * documents of deleted files are deleted, changed or new files are indexed
+   * (their old documents are deleted by {@link Alix#FILENAME}).
+   * The index is merged only if the count of segments is bigger than maxSegments.
+   * The rails of co-occurrences and the stats are relevant for a commit, they are rebuilt, 
+   * but from the postings of the index, without new analysis.
+   * The occurrences by value of the int fields requested are also rebuilt.
+   */
+  static void update(final Path path, final String[] globs, final int threads, final int maxSegments, final String[] buckets) throws IOException, ParserConfigurationException, SAXException, InterruptedException, TransformerException
+  {
+    Path manifestFile = path.resolve(Manifest.FILE);
+    Manifest manifest = Manifest.load(manifestFile);
+    List<File> files = ls(globs);
+    HashSet<String> gone = new HashSet<>(manifest.paths());
+    List<File> changed = new ArrayList<>();
+    for (File f : files) {
+      gone.remove(f.getCanonicalPath());
+      if (manifest.changed(f)) changed.add(f);
+    }
+    System.out.println("["+APP+"] "+files.size()+" files, "+changed.size()+" changed, "+gone.size()+" deleted");
+    if (changed.isEmpty() && gone.isEmpty()) {
+      manifest.write(manifestFile); // modified times may have changed
+      return;
+    }
+    Alix alix = Alix.instance(path, new FrAnalyzer());
+    IndexWriter writer = alix.writer();
+    for (String p : gone) {
+      String filename = new File(p).getName();
+      filename = filename.substring(0, filename.lastIndexOf('.'));
+      writer.deleteDocuments(new Term(Alix.FILENAME, filename));
+      manifest.remove(p);
+    }
+    if (!changed.isEmpty()) {
+      List<File> failed = XMLIndexer.index(writer, changed, SrcFormat.tei, threads);
+      forget(manifest, failed);
+    }
+    writer.commit();
+    int segments = SegmentInfos.readLatestCommit(writer.getDirectory()).size();
+    if (segments > maxSegments) {
+      System.out.println("["+APP+"] "+segments+" segments > "+maxSegments+", merge");
+      writer.forceMerge(1);
+      writer.commit();
+    }
+    writer.close();
+    Cooc cooc = new Cooc(alix, "text");
+    cooc.write();
+    for (String field : buckets) alix.writeBuckets(field, "text");
+    // index is committed, record the state of the files
+    manifest.write(manifestFile);
+  }
+
+  /**
+   * Remove the files with an error from the manifest, their documents may be missing
+   * (old ones are deleted before indexation), they will be indexed again on next update.
+   */
+  static void forget(final Manifest manifest, final List<File> failed) throws IOException
+  {
+    if (failed.isEmpty()) return;
+    System.out.println("["+APP+"] "+failed.size()+" files with errors, to index again");
+    for (File f : failed) manifest.remove(f.getCanonicalPath());
+  }
+
+  /**
+   * List the files to index.
+   */
+  static List<File> ls(final String[] globs) throws FileNotFoundException
+  {
+    List<File> files = null;
+    for (String glob : globs) {
+      files = Dir.ls(glob, files);
+    }
+    if (files.size() < 1) {
+      throw new FileNotFoundException("\n  ["+APP+"] No file found to index globs=\""+ String.join(", ", globs) + "\"");
+    }
+    return files;
+  }
+
   public static void main(String[] args) throws Exception
   {
     if (args == null || args.length < 1) {
-      System.out.println("["+APP+"] usage");
-      System.out.println("WEB-INF$ java -cp lib/alix.jar bases/base_props.xml");
-      System.exit(1);
+      usage();
     }
     int threads = Runtime.getRuntime().availableProcessors() - 1;
+    boolean incremental = false;
     int i = 0;
-    try {
-      int n = Integer.parseInt(args[0]);
-      if (n > 0 && n < threads) threads = n;
-      i++;
-      System.out.println("["+APP+"] threads="+threads);
-    }
-    catch (NumberFormatException e) {
-      
+    for (; i < args.length; i++) {
+      if ("-i".equals(args[i]) || "--incremental".equals(args[i])) {
+        incremental = true;
+        continue;
+      }
+      try {
+        int n = Integer.parseInt(args[i]);
+        if (n > 0 && n < threads) threads = n;
+        System.out.println("["+APP+"] threads="+threads);
+      }
+      catch (NumberFormatException e) {
+        break;
+      }
     }
     if (i >= args.length) {
-      System.out.println("["+APP+"] usage");
-      System.out.println("WEB-INF$ java -cp lib/alix.jar bases/base_props.xml");
-      System.exit(1);
+      usage();
     }
     for(; i < args.length; i++) {
-      index(new File(args[i]), threads);
+      index(new File(args[i]), threads, incremental);
     }
   }
 
+  private static void usage()
+  {
+    System.out.println("["+APP+"] usage");
+    System.out.println("WEB-INF$ java -cp lib/alix.jar [threads] [-i|--incremental] bases/base_props.xml");
+    System.exit(1);
+  }
+
 
 }
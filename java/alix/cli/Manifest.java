@@ -0,0 +1,216 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.cli;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The state of the source files of an index, to re-index only the changed ones.
+ * By file path, the length, the last modified time and a hash of the content are
+ * recorded. A file is considered changed if its hash is not the same, the hash is 
+ * only computed if the length or the modified time have changed (ex: a touch
+ * does not imply a re-indexation).
+ * 
+ * <p>
+ * The manifest is stored as a tab separated text file in the index directory,
+ * see {@link #FILE}, written after the commit of the index.
+ * </p>
+ */
+public class Manifest
+{
+  /** Name of the manifest file in an index directory */
+  public static final String FILE = "alix.manifest";
+  /** Algorithm for content hash */
+  private static final String DIGEST = "SHA-1";
+  /** State of the files, by canonical path */
+  private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+  /**
+   * State of a file.
+   */
+  static class Entry
+  {
+    /** Size in bytes */
+    long length;
+    /** Last modified time in ms */
+    long modified;
+    /** Hex digest of the content */
+    String hash;
+  }
+
+  /**
+   * Load a manifest, or return an empty one if the file does not exist.
+   * 
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static Manifest load(final Path file) throws IOException
+  {
+    Manifest manifest = new Manifest();
+    if (!Files.exists(file)) return manifest;
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] cells = line.split("\t");
+        if (cells.length != 4) continue; // not a valid line, file will be re-indexed
+        Entry entry = new Entry();
+        try {
+          entry.length = Long.parseLong(cells[1]);
+          entry.modified = Long.parseLong(cells[2]);
+        }
+        catch (NumberFormatException e) {
+          continue;
+        }
+        entry.hash = cells[3];
+        manifest.entries.put(cells[0], entry);
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Write the manifest in a temp file, moved to its destination.
+   * 
+   * @param file
+   * @throws IOException
+   */
+  public void write(final Path file) throws IOException
+  {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        writer.write(e.getKey() + "\t" + entry.length + "\t" + entry.modified + "\t" + entry.hash + "\n");
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Test if a file has changed since last record, and record its new state.
+   * 
+   * @param file
+   * @return true if the file is new or if its content has changed.
+   * @throws IOException
+   */
+  public boolean changed(final File file) throws IOException
+  {
+    final String path = file.getCanonicalPath();
+    final long length = file.length();
+    final long modified = file.lastModified();
+    Entry entry = entries.get(path);
+    if (entry != null && entry.length == length && entry.modified == modified) return false;
+    final String hash = hash(file);
+    if (entry != null && entry.hash.equals(hash)) {
+      entry.length = length;
+      entry.modified = modified;
+      return false;
+    }
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(path, entry);
+    }
+    entry.length = length;
+    entry.modified = modified;
+    entry.hash = hash;
+    return true;
+  }
+
+  /**
+   * Paths of the recorded files.
+   */
+  public Set<String> paths()
+  {
+    return entries.keySet();
+  }
+
+  /**
+   * Forget a file.
+   * 
+   * @param path
+   */
+  public void remove(final String path)
+  {
+    entries.remove(path);
+  }
+
+  /**
+   * Count of recorded files.
+   */
+  public int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * Digest of the content of a file, as an hexadecimal string.
+   * 
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static String hash(final File file) throws IOException
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(DIGEST);
+    }
+    catch (NoSuchAlgorithmException e) { // should not arrive, required algorithm for a JVM
+      throw new IOException(e);
+    }
+    byte[] buf = new byte[1 << 16];
+    try (InputStream is = Files.newInputStream(file.toPath())) {
+      int n;
+      while ((n = is.read(buf)) > 0) digest.update(buf, 0, n);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+}
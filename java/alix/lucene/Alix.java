@@ -33,16 +33,16 @@
 package alix.lucene;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.lucene.analysis.AlixReuseStrategy;
 import org.apache.lucene.analysis.Analyzer;
@@ -65,15 +65,22 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopFieldDocs;
@@ -84,15 +91,22 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.Bits;
 
 import alix.fr.Tag;
+import alix.lucene.analysis.RailFilter;
+import alix.lucene.search.BucketFreqs;
+import alix.lucene.search.DocOrder;
 import alix.lucene.search.Facet;
 import alix.lucene.search.Scale;
 import alix.lucene.search.Freqs;
 import alix.lucene.search.IntSeries;
 import alix.lucene.search.TermList;
+import alix.lucene.util.Cache;
 import alix.lucene.util.Cooc;
+import alix.lucene.util.LeafCache;
+import alix.util.IntList;
 
 /**
  * <p>
@@ -155,8 +169,14 @@ public class Alix
   // public static final String _TAGS = ":tags";
   /** Suffix for a text field containing only names */
   public static final String _NAMES = ":names";
-  /** Max books */
-  private static final int MAXBOOKS = 10000;
+  /** Suffix for a binary field recording the terms of a text field by position, see {@link RailFilter} */
+  public static final String _RAIL = ":rail";
+  /** Prefix of the file name for stats by field, persisted in the index directory, see {@link #freqs(String)} */
+  public static final String FREQS_FILE = "alix.freqs.";
+  /** Prefix of the file name for the rails of a field, persisted in the index directory, see {@link Cooc#write()} */
+  public static final String RAILS_FILE = "alix.rails.";
+  /** Prefix of the file name for occurrences by bucket of an int field, persisted in the index directory, see {@link #buckets(String, String)} */
+  public static final String BUCKETS_FILE = "alix.buckets.";
   /** Lucene field type for alix text field */
   public static final FieldType ftypeText = new FieldType();
   static {
@@ -171,6 +191,17 @@ public class Alix
     ftypeText.setStored(false); // store not allowed 
     ftypeText.freeze();
   }
+  /** 
+   * Lucene field type for alix text field, without term vectors (smaller index), 
+   * co-occurrences need a rail recorded at indexation, see {@link RailFilter}.
+   */
+  public static final FieldType ftypeTextNoVectors = new FieldType(ftypeText);
+  static {
+    ftypeTextNoVectors.setStoreTermVectors(false);
+    ftypeTextNoVectors.setStoreTermVectorPositions(false);
+    ftypeTextNoVectors.setStoreTermVectorOffsets(false);
+    ftypeTextNoVectors.freeze();
+  }
   /** lucene field type for alix meta type */
   public static final FieldType ftypeMeta = new FieldType();
   static {
@@ -183,27 +214,35 @@ public class Alix
     ftypeMeta.freeze();
   }
   /** Pool of instances, unique by path */
-  public static final HashMap<Path, Alix> pool = new HashMap<Path, Alix>();
+  public static final ConcurrentHashMap<Path, Alix> pool = new ConcurrentHashMap<Path, Alix>();
   /** Normalized path */
   public final Path path;
   /** Shared Similarity for indexation and searching */
   public final Similarity similarity;
   /** A locale used for sorting terms */
   public final Locale locale;
-  /** A global cache for objects */
-  private final ConcurrentHashMap<String, SoftReference<Object>> cache = new ConcurrentHashMap<>();
+  /** A global cache for objects, bounded in size */
+  private final Cache cache = new Cache();
+  /** A cache of partial results by segment, kept across refreshes of the reader, in the global cache */
+  private final LeafCache leafCache = new LeafCache(cache);
   /** The lucene directory, kept private, to avoid closing by a thread */
   private Directory dir;
-  /** The IndexReader if requested */
-  private IndexReader reader;
-  /** The infos on field */
-  private FieldInfos fieldInfos;
-  /** The IndexSearcher if requested */
-  private IndexSearcher searcher;
+  /** Current reader, searcher and field infos, opened on demand, swapped on refresh */
+  private volatile Current current;
+  /** Lock to open or refresh the reader, only one at a time */
+  private final Object refreshLock = new Object();
+  /** Previous reader, kept open till next refresh, for threads not using {@link #acquire()} */
+  private IndexReader previous;
   /** The IndexWriter if requested */
   private IndexWriter writer;
   /** Analyzer for indexation and query */
   final private Analyzer analyzer;
+  /** Count of threads to compute stats by leaf, 1 = sequential */
+  private int parallelism = 1;
+  /** Pool of threads to compute stats by leaf, created on demand */
+  private ForkJoinPool forkJoinPool;
+  /** Optional order of docIds for a new index, see {@link #indexSort(Sort)} */
+  private Sort indexSort;
 
   public enum FSDirectoryType {
     MMapDirectory,
@@ -279,9 +318,14 @@ public class Alix
   {
     path = path.toAbsolutePath().normalize(); // normalize path to be a key
     Alix alix = pool.get(path);
-    if (alix == null) {
-      alix = new Alix(path, analyzer, dirType);
-      pool.put(path, alix);
+    if (alix != null) return alix;
+    // only one instance by path, even for concurrent first requests
+    synchronized (pool) {
+      alix = pool.get(path);
+      if (alix == null) {
+        alix = new Alix(path, analyzer, dirType);
+        pool.put(path, alix);
+      }
     }
     return alix;
   }
@@ -321,13 +365,83 @@ public class Alix
      * cms.setMaxMergesAndThreads(threads, threads); cms.disableAutoIOThrottle();
      * conf.setMergeScheduler(cms);
      */
-    // order docId by a field after merge ? No functionality should rely on such
-    // order
-    // conf.setIndexSort(new Sort(new SortField(YEAR, SortField.Type.INT)));
+    // order of docIds, requested for a new index, or kept from an existing one
+    Sort sort = indexSort;
+    if (sort == null) sort = commitSort();
+    if (sort != null) conf.setIndexSort(sort);
     writer = new IndexWriter(dir, conf);
     return writer;
   }
 
+  /**
+   * Request an order of docIds for the index, to set before the first {@link #writer()} of a new index
+   * (ex: {@link #sortIntBook(String)}, sort by year, then by book).
+   * Documents are sorted at flush and merge time, so that scans in docId order
+   * are also in sort order ({@link Scale}, {@link IntSeries}, {@link #books(Sort)}).
+   * The sort of an existing index can't be changed (a new writer will fail), a writer
+   * opened without a requested sort keeps the sort of the index.
+   * No functionality relies on such order, it is only an optimization.
+   * 
+   * @param sort
+   */
+  public synchronized void indexSort(final Sort sort)
+  {
+    this.indexSort = sort;
+  }
+
+  /**
+   * Get the order of docIds in the segments of the index, or null if the segments are not sorted,
+   * or not all with the same sort.
+   * 
+   * @return
+   * @throws IOException
+   */
+  public Sort indexSort() throws IOException
+  {
+    return indexSort(reader().leaves());
+  }
+
+  /**
+   * Get the common sort of some segments.
+   */
+  private static Sort indexSort(final List<LeafReaderContext> leaves)
+  {
+    Sort sort = null;
+    for (LeafReaderContext context : leaves) {
+      Sort leafSort = context.reader().getMetaData().getSort();
+      if (leafSort == null) return null;
+      if (sort == null) sort = leafSort;
+      else if (!sort.equals(leafSort)) return null;
+    }
+    return sort;
+  }
+
+  /**
+   * Sort for an index of books in a chronological order, by the value of an int field,
+   * then by {@link #BOOKID}. See {@link #indexSort(Sort)}
+   * 
+   * @param fieldInt A {@link NumericDocValuesField} (ex: year).
+   * @return
+   */
+  public static Sort sortIntBook(final String fieldInt)
+  {
+    return new Sort(new SortField(fieldInt, SortField.Type.INT), new SortField(BOOKID, SortField.Type.STRING));
+  }
+
+  /**
+   * Get the index sort of the last commit, if any, to open a writer with the same sort.
+   */
+  private Sort commitSort() throws IOException
+  {
+    if (!DirectoryReader.indexExists(dir)) return null;
+    SegmentInfos infos = SegmentInfos.readLatestCommit(dir);
+    for (SegmentCommitInfo info : infos) {
+      Sort sort = info.info.getIndexSort();
+      if (sort != null) return sort;
+    }
+    return null;
+  }
+
   /**
    * See {@link #reader(boolean)}
    * 
@@ -341,7 +455,12 @@ public class Alix
 
   /**
    * Get a reader for this lucene index, cached or new.
-   * Allow to force renew if force is true.
+   * Allow to force renew if force is true (a new reader is opened only if the index has changed).
+   * The reader is not reference counted for the caller, it is only valid till
+   * the second refresh after it (then closed, even if still used), 
+   * use {@link #acquire()} for long operations.
+   * Objects of the cache are built on the reader of their loading, 
+   * {@link Scale} and {@link Cooc} keep their reader open during their computations.
    * 
    * @param force
    * @return
@@ -349,15 +468,95 @@ public class Alix
    */
   public IndexReader reader(final boolean force) throws IOException
   {
-    if (!force && reader != null) return reader;
-    cache.clear(); // clean cache on renew the reader
-    reader = DirectoryReader.open(dir);
-    fieldInfos = FieldInfos.getMergedFieldInfos(reader);
-    return reader;
+    return current(force).searcher.getIndexReader();
   }
 
   /**
-   * A real time reader only used for some updates (see {@link Cooc#write()}).
+   * A reader with the objects depending on it, swapped as a whole on refresh.
+   */
+  private class Current
+  {
+    /** The searcher, with the reader */
+    final IndexSearcher searcher;
+    /** The infos on field */
+    final FieldInfos fieldInfos;
+
+    Current(final IndexReader reader)
+    {
+      searcher = new IndexSearcher(reader);
+      searcher.setSimilarity(similarity);
+      fieldInfos = FieldInfos.getMergedFieldInfos(reader);
+    }
+  }
+
+  /**
+   * Get the current state of the reader, open it on first call,
+   * or refresh it if force is true. Only one thread opens a reader, 
+   * others get the same one.
+   * 
+   * @param force
+   * @return
+   * @throws IOException
+   */
+  private Current current(final boolean force) throws IOException
+  {
+    Current current = this.current;
+    if (!force && current != null) return current;
+    synchronized (refreshLock) {
+      // another thread has opened or refreshed the reader while waiting
+      if (this.current != current) return this.current;
+      if (current == null) {
+        this.current = new Current(DirectoryReader.open(dir));
+        return this.current;
+      }
+      // only open a new reader if index has changed
+      DirectoryReader old = (DirectoryReader) current.searcher.getIndexReader();
+      DirectoryReader reader;
+      // near real time, see changes of the writer, even not committed
+      if (writer != null && writer.isOpen()) reader = DirectoryReader.openIfChanged(old, writer);
+      else reader = DirectoryReader.openIfChanged(old);
+      if (reader == null) return current;
+      this.current = new Current(reader);
+      // clean cache on renew the reader, partial results of unchanged segments are kept in leafCache
+      cache.removeIf(key -> !key.startsWith(LeafCache.PREFIX));
+      // close the reader before the old one, if not used by an acquire()
+      if (previous != null) previous.decRef();
+      previous = current.searcher.getIndexReader();
+      return this.current;
+    }
+  }
+
+  /**
+   * Get the current searcher with a reference counting on its reader,
+   * to keep the reader open during a long operation, even if a refresh happens.
+   * Should be released by {@link #release(IndexSearcher)}, in a finally block.
+   * 
+   * @return
+   * @throws IOException
+   */
+  public IndexSearcher acquire() throws IOException
+  {
+    while (true) {
+      Current current = current(false);
+      // false if the reader has just been closed by a refresh, retry with new one
+      if (current.searcher.getIndexReader().tryIncRef()) return current.searcher;
+    }
+  }
+
+  /**
+   * Release a searcher obtained by {@link #acquire()}.
+   * 
+   * @param searcher
+   * @throws IOException
+   */
+  public void release(final IndexSearcher searcher) throws IOException
+  {
+    if (searcher == null) return;
+    searcher.getIndexReader().decRef();
+  }
+
+  /**
+   * A real time reader only used for some updates.
    * 
    * @return
    * @throws IOException
@@ -387,11 +586,7 @@ public class Alix
    */
   public IndexSearcher searcher(final boolean force) throws IOException
   {
-    if (!force && searcher != null) return searcher;
-    reader(force);
-    searcher = new IndexSearcher(reader);
-    searcher.setSimilarity(similarity);
-    return searcher;
+    return current(force).searcher;
   }
   
   /**
@@ -403,6 +598,51 @@ public class Alix
     return this.analyzer;
   }
 
+  /**
+   * Set the count of threads used to compute stats by leaf
+   * (ex: {@link Freqs#topTerms(org.apache.lucene.util.BitSet)}).
+   * Default is 1, sequential computation in the calling thread.
+   * A replaced pool is shut down (tasks already submitted are finished), 
+   * the cached objects using it are dropped, objects still used by callers 
+   * compute sequentially.
+   * 
+   * @param parallelism
+   */
+  public synchronized void parallelism(final int parallelism)
+  {
+    if (parallelism < 1) throw new IllegalArgumentException("parallelism=" + parallelism + ", should be >= 1");
+    if (parallelism == this.parallelism) return;
+    this.parallelism = parallelism;
+    final ForkJoinPool old = this.forkJoinPool;
+    this.forkJoinPool = null;
+    if (old == null) return;
+    cache.removeIf(key -> !key.startsWith(LeafCache.PREFIX));
+    old.shutdown();
+  }
+
+  /**
+   * Get the count of threads used to compute stats by leaf.
+   * 
+   * @return
+   */
+  public int parallelism()
+  {
+    return parallelism;
+  }
+
+  /**
+   * Get the pool of threads used to compute stats by leaf,
+   * or null if computation is sequential, see {@link #parallelism(int)}.
+   * 
+   * @return
+   */
+  public synchronized ForkJoinPool forkJoinPool()
+  {
+    if (parallelism < 2) return null;
+    if (forkJoinPool == null) forkJoinPool = new ForkJoinPool(parallelism);
+    return forkJoinPool;
+  }
+
   /**
    * Get the internal lucene docid of a document by Alix String id 
    * (a reserved field name)
@@ -435,16 +675,16 @@ public class Alix
   }
 
   /**
-   * A simple cache. Will be cleared if index reader is renewed. Use SoftReference
-   * as a value, so that Garbage Collector will silently delete object references
-   * in case of Out of memory.
+   * Put an object in the cache. Will be cleared if index reader is renewed.
+   * The cache is bounded in size, least recently used objects are evicted first,
+   * see {@link Cache}.
    * 
    * @param key
    * @param o
    */
   public void cache(String key, Object o)
   {
-    cache.put(key, new SoftReference<Object>(o));
+    cache.put(key, o);
   }
 
   /**
@@ -455,9 +695,29 @@ public class Alix
    */
   public Object cache(String key)
   {
-    SoftReference<Object> ref = cache.get(key);
-    if (ref != null) return ref.get();
-    return null;
+    return cache.get(key);
+  }
+
+  /**
+   * Get the cache of partial results by segment, used to rebuild only 
+   * the parts of new or changed segments after a refresh of the reader.
+   * 
+   * @return
+   */
+  public LeafCache leafCache()
+  {
+    return leafCache;
+  }
+
+  /**
+   * Get the cache of this index, to load values only once, pin hot entries,
+   * set the max size or see the counters.
+   * 
+   * @return
+   */
+  public Cache cache()
+  {
+    return cache;
   }
 
   /**
@@ -469,8 +729,7 @@ public class Alix
    */
   public FieldInfo info(String field) throws IOException
   {
-    reader(); // ensure reader or decache
-    return fieldInfos.fieldInfo(field);
+    return current(false).fieldInfos.fieldInfo(field);
   }
 
   /**
@@ -482,8 +741,7 @@ public class Alix
    */
   public FieldInfo info(Enum<?> field) throws IOException
   {
-    reader(); // ensure reader or decache
-    return fieldInfos.fieldInfo(field.name());
+    return current(false).fieldInfos.fieldInfo(field.name());
   }
 
   /**
@@ -493,15 +751,16 @@ public class Alix
    * @return
    * @throws IOException
    */
-  public IntSeries intSeries(String field) throws IOException
+  public IntSeries intSeries(final String field) throws IOException
   {
-    IndexReader reader = reader(); // ensure reader, or decache
-    String key = "AlixIntSeries" + field;
-    IntSeries ints = (IntSeries) cache(key);
-    if (ints != null) return ints;
-    ints = new IntSeries(reader, field);
-    cache(key, ints);
-    return ints;
+    return cache.get("AlixIntSeries" + Cache.SEP + field, new Cache.Loader<IntSeries>() {
+      @Override
+      public IntSeries load() throws IOException
+      {
+        // reader at load time, an entry loaded before a refresh is removed by the refresh
+        return new IntSeries(reader(), field, leafCache);
+      }
+    });
   }
 
   /**
@@ -566,12 +825,14 @@ public class Alix
    */
   public Facet facet(final String facetField, final String textField, final Term coverTerm) throws IOException
   {
-    String key = "AlixFacet" + facetField + textField;
-    Facet facet = (Facet) cache(key);
-    if (facet != null) return facet;
-    facet = new Facet(this, facetField, textField, coverTerm);
-    cache(key, facet);
-    return facet;
+    reader(); // ensure reader, or decache
+    return cache.get("AlixFacet" + Cache.SEP + facetField + Cache.SEP + textField, new Cache.Loader<Facet>() {
+      @Override
+      public Facet load() throws IOException
+      {
+        return new Facet(Alix.this, facetField, textField, coverTerm);
+      }
+    });
   }
 
   /**
@@ -586,16 +847,43 @@ public class Alix
    */
   public Scale scale(final String fieldInt, final String fieldText) throws IOException
   {
-    String key = "AlixScale" + fieldInt + fieldText;
-    Scale scale = (Scale) cache(key);
-    if (scale != null) return scale;
-    scale = new Scale(this, null, fieldInt, fieldText);
-    cache(key, scale);
-    return scale;
+    return scale(fieldInt, fieldText, null);
+  }
+
+  /**
+   * Get a scale for a corpus, cached by a key of the filter ({@link Scale#key(BitSet)}),
+   * so that a chronology of a same corpus is not rebuilt for each request.
+   * The docs of the cached scale are checked ({@link Scale#isFor(BitSet)}), on a collision
+   * of keys, a scale is built and not cached.
+   * 
+   * @param fieldInt
+   *          A NumericDocValuesField used as a sorted value.
+   * @param fieldText
+   *          A Texfield to count occurences, used as a size for docs.
+   * @param filter
+   *          Optional, a set of docIds.
+   * @return
+   * @throws IOException
+   */
+  public Scale scale(final String fieldInt, final String fieldText, final BitSet filter) throws IOException
+  {
+    reader(); // ensure reader, or decache
+    final Scale scale = cache.get("AlixScale" + Cache.SEP + fieldInt + Cache.SEP + fieldText + Cache.SEP + Scale.key(filter), new Cache.Loader<Scale>() {
+      @Override
+      public Scale load() throws IOException
+      {
+        return new Scale(Alix.this, filter, fieldInt, fieldText);
+      }
+    });
+    if (scale.isFor(filter)) return scale;
+    // collision of keys, another corpus, not cached
+    return new Scale(this, filter, fieldInt, fieldText);
   }
 
   /**
-   * Get a frequence object.
+   * Get a frequence object. Stats are loaded from a file in the index directory
+   * if it has been written for the current commit, or built from the postings
+   * and written for the next time, see {@link Freqs#open(IndexReader, String, ForkJoinPool, LeafCache, Path)}.
    * 
    * @param field
    * @return
@@ -603,12 +891,58 @@ public class Alix
    */
   public Freqs freqs(final String field) throws IOException
   {
-    String key = "AlixFreqs" + field;
-    Freqs freqs = (Freqs) cache(key);
-    if (freqs != null) return freqs;
-    freqs = new Freqs(reader(), field);
-    cache(key, freqs);
-    return freqs;
+    return cache.get("AlixFreqs" + Cache.SEP + field, new Cache.Loader<Freqs>() {
+      @Override
+      public Freqs load() throws IOException
+      {
+        // stats are persisted in the index directory, by commit
+        // reader at load time, an entry loaded before a refresh is removed by the refresh
+        return Freqs.open(reader(), field, forkJoinPool(), leafCache, path.resolve(FREQS_FILE + field));
+      }
+    });
+  }
+
+  /**
+   * Get the occurrences of the terms of a text field by value of an int field, 
+   * if they have been built for the current commit by {@link #writeBuckets(String, String)},
+   * or null (curves are then computed from the postings).
+   * 
+   * @param fieldInt A NumericDocValuesField (ex: year).
+   * @param fieldText A text field.
+   * @return
+   * @throws IOException
+   */
+  public BucketFreqs buckets(final String fieldInt, final String fieldText) throws IOException
+  {
+    final Path file = path.resolve(BUCKETS_FILE + fieldInt + "." + fieldText);
+    if (!Files.exists(file)) return null; // not built, do not try to load each time
+    return cache.get("AlixBuckets" + Cache.SEP + fieldInt + Cache.SEP + fieldText, new Cache.Loader<BucketFreqs>() {
+      @Override
+      public BucketFreqs load() throws IOException
+      {
+        // termIds are relevant for the reader of the stats
+        final Freqs freqs = freqs(fieldText);
+        return BucketFreqs.open(freqs.reader(), freqs, fieldInt, file);
+      }
+    });
+  }
+
+  /**
+   * Build the occurrences of the terms of a text field by value of an int field,
+   * and write them in the index directory, for the current commit, see {@link #buckets(String, String)}.
+   * Should be called offline, after the last commit of an indexation.
+   * 
+   * @param fieldInt A NumericDocValuesField (ex: year).
+   * @param fieldText A text field.
+   * @return
+   * @throws IOException
+   */
+  public BucketFreqs writeBuckets(final String fieldInt, final String fieldText) throws IOException
+  {
+    final Freqs freqs = freqs(fieldText);
+    BucketFreqs buckets = new BucketFreqs(freqs.reader(), freqs, fieldInt);
+    buckets.write(path.resolve(BUCKETS_FILE + fieldInt + "." + fieldText));
+    return buckets;
   }
 
   /**
@@ -620,12 +954,14 @@ u   * @throws IOException
    */
   public Cooc cooc(final String field) throws IOException
   {
-    String key = "AlixCooc" + field;
-    Cooc cooc = (Cooc) cache(key);
-    if (cooc != null) return cooc;
-    cooc = new Cooc(this, field);
-    cache(key, cooc);
-    return cooc;
+    reader(); // ensure reader, or decache
+    return cache.get("AlixCooc" + Cache.SEP + field, new Cache.Loader<Cooc>() {
+      @Override
+      public Cooc load() throws IOException
+      {
+        return new Cooc(Alix.this, field);
+      }
+    });
   }
 
   /**
@@ -649,27 +985,100 @@ u   * @throws IOException
 
   /**
    * Get docId parent documents (books) of nested documents (chapters), sorted by
-   * a sort specification.
+   * a sort specification, all books, without limit of size.
+   * The array is cached by sort as long as the reader is not changed, it is shared, do not modify.
+   * Books are collected in docId order from the postings of {@link #TYPE}, then ordered
+   * with the doc values of the sort fields ({@link DocOrder}), or not at all
+   * if the index is already sorted by this sort (see {@link #indexSort(Sort)}).
    * 
+   * @param sort Optional, null for docId order.
    * @throws IOException
    */
-  public int[] books(Sort sort) throws IOException
+  public int[] books(final Sort sort) throws IOException
   {
-    IndexSearcher searcher = searcher(); // ensure reader or decache
-    String key = "AlixBooks" + sort;
-    int[] books = (int[]) cache(key);
-    if (books != null) return books;
-    Query qBook = new TermQuery(new Term(Alix.TYPE, DocType.book.name()));
-    TopFieldDocs top = searcher.search(qBook, MAXBOOKS, sort);
-    int length = top.scoreDocs.length;
-    ScoreDoc[] docs = top.scoreDocs;
-    books = new int[length];
-    for (int i = 0; i < length; i++) {
-      books[i] = docs[i].doc;
+    return cache.get("AlixBooks" + Cache.SEP + sort, new Cache.Loader<int[]>() {
+      @Override
+      public int[] load() throws IOException
+      {
+        // reader at load time, an entry loaded before a refresh is removed by the refresh
+        final IndexSearcher searcher = searcher();
+        final IndexReader reader = searcher.getIndexReader();
+        final Term bookTerm = new Term(Alix.TYPE, DocType.book.name());
+        // all books in docId order
+        IntList list = new IntList();
+        for (LeafReaderContext context : reader.leaves()) {
+          LeafReader leaf = context.reader();
+          PostingsEnum postings = leaf.postings(bookTerm, PostingsEnum.NONE);
+          if (postings == null) continue;
+          final Bits liveDocs = leaf.getLiveDocs();
+          final int docBase = context.docBase;
+          int docLeaf;
+          while ((docLeaf = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (liveDocs != null && !liveDocs.get(docLeaf)) continue;
+            list.push(docBase + docLeaf);
+          }
+        }
+        int[] books = list.toArray();
+        if (sort == null) return books;
+        // index in the requested order, only one segment, books are in docId order 
+        final List<LeafReaderContext> leaves = reader.leaves();
+        if (leaves.size() == 1 && sorted(indexSort(leaves), sort)) return books;
+        // sort by doc values
+        if (DocOrder.supports(sort)) return DocOrder.sort(reader, books, sort);
+        // other sorts (ex: by score), a search for all books
+        TopFieldDocs top = searcher.search(new TermQuery(bookTerm), Math.max(1, books.length), sort);
+        int length = top.scoreDocs.length;
+        ScoreDoc[] docs = top.scoreDocs;
+        books = new int[length];
+        for (int i = 0; i < length; i++) {
+          books[i] = docs[i].doc;
+        }
+        return books;
+      }
+    });
+  }
+
+  /**
+   * Get a page of books, sorted by a sort specification, see {@link #books(Sort)}.
+   * 
+   * @param sort Optional, null for docId order.
+   * @param offset Index of the first book of the page, from 0.
+   * @param limit Max count of books in the page.
+   * @return A new array, empty if offset is after the last book.
+   * @throws IOException
+   */
+  public int[] books(final Sort sort, final int offset, final int limit) throws IOException
+  {
+    final int[] books = books(sort);
+    final int from = Math.min(Math.max(0, offset), books.length);
+    final int to = (int)Math.min((long)from + Math.max(0, limit), books.length);
+    return Arrays.copyOfRange(books, from, to);
+  }
+
+  /**
+   * Is the index sorted according to a sort (the sort is same or a prefix of the index sort) ?
+   * 
+   * @param sort
+   * @return
+   * @throws IOException
+   */
+  public boolean sorted(final Sort sort) throws IOException
+  {
+    return sorted(indexSort(), sort);
+  }
+
+  private static boolean sorted(final Sort indexSort, final Sort sort)
+  {
+    if (indexSort == null || sort == null) return false;
+    SortField[] fields = sort.getSort();
+    SortField[] indexFields = indexSort.getSort();
+    if (fields.length > indexFields.length) return false;
+    for (int i = 0; i < fields.length; i++) {
+      if (!fields[i].equals(indexFields[i])) return false;
     }
-    cache(key, books);
-    return books;
+    return true;
   }
+
   public Query qParse(final String field, final String q) throws IOException
   {
     return qParse(field, q, this.analyzer);
@@ -824,10 +1233,12 @@ u   * @throws IOException
     StringBuffer sb = new StringBuffer();
     sb.append(path + "\n");
     sb.append(dir + "\n");
+    FieldInfos fieldInfos;
     try {
-      reader(); // get FieldInfos
+      fieldInfos = current(false).fieldInfos;
     }
     catch (Exception e) {
+      return sb.toString();
     }
     for (FieldInfo info : fieldInfos) {
       sb.append(info.name + " PointDataDimensionCount=" + info.getPointDimensionCount() + " DocValuesType="
@@ -0,0 +1,476 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+
+import alix.lucene.analysis.PreAnalyzedTokens;
+import alix.xml.Processors;
+
+/**
+ * A staged pipeline for parallel indexing of XML files, 
+ * so that the costs of each step, very different by file, are not serialized in one thread:
+ * <ol>
+ *   <li>read, bytes of files (1 thread, disk bound), see {@link #setStreaming(boolean)}</li>
+ *   <li>parse, XSLT transformation (or SAX parsing) to build lucene documents ({@link SAXIndexer})</li>
+ *   <li>analyze, token streams of fields are consumed in advance ({@link PreAnalyzedTokens})</li>
+ *   <li>write, blocks of documents are added to the {@link IndexWriter}</li>
+ * </ol>
+ * Stages are linked by bounded queues, a fast stage waits for a slow one (backpressure), 
+ * so that memory is bounded to the capacity of the queues. 
+ * Counts of threads by stage can be set. At the end, some stats by stage are available,
+ * time spent waiting for input (stage starving) or for output (stage blocked by the next one),
+ * to find the bottleneck.
+ * 
+ * <pre>
+ * IndexPipeline pipeline = new IndexPipeline(writer, templates);
+ * pipeline.setThreads(4, 4, 2);
+ * List&lt;File&gt; failed = pipeline.run(files);
+ * System.out.println(pipeline.stats());
+ * </pre>
+ * An error on a file is logged and does not stop the pipeline, the files
+ * with errors are returned by {@link #run(List)}, their documents may be
+ * missing or incomplete in the index.
+ */
+public class IndexPipeline
+{
+  /** Destination */
+  private final IndexWriter writer;
+  /** Optional compiled XSLT to transform source files */
+  private final Templates templates;
+  /** Threads for XML parsing and documents building */
+  private int parseThreads = 1;
+  /** Threads for analysis */
+  private int analyzeThreads = 1;
+  /** Threads for writing */
+  private int writeThreads = 1;
+  /** Capacity of queues between stages (files, or blocks of documents) */
+  private int capacity = 16;
+  /** Files are not read in memory before parsing */
+  private boolean streaming;
+  /** Stats by stage */
+  private Stage[] stages;
+  /** Wall time of last run */
+  private long nanos;
+  /** End of stream in queues */
+  private static final Job END = new Job(null);
+  /** First write error, stop the pipeline */
+  private volatile IOException failure;
+  /** Files with an error in a stage, or not processed after a failure */
+  private final Set<File> failed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * A unit of work going through the queues.
+   */
+  static class Job
+  {
+    /** Source file */
+    final File file;
+    /** Name of the file, without extension, see {@link Alix#FILENAME} */
+    String filename;
+    /** Bytes of the file */
+    byte[] bytes;
+    /** Documents built */
+    List<Document> docs;
+
+    Job(final File file)
+    {
+      this.file = file;
+    }
+  }
+
+  /**
+   * Create a pipeline for a writer.
+   * 
+   * @param writer
+   * @param templates Optional, compiled XSLT to transform files, if null, files are alix xml.
+   */
+  public IndexPipeline(final IndexWriter writer, final Templates templates)
+  {
+    this.writer = writer;
+    this.templates = templates;
+  }
+
+  /**
+   * Set the count of threads by stage (read stage has always one thread).
+   */
+  public void setThreads(final int parse, final int analyze, final int write)
+  {
+    this.parseThreads = Math.max(1, parse);
+    this.analyzeThreads = Math.max(1, analyze);
+    this.writeThreads = Math.max(1, write);
+  }
+
+  /**
+   * Set the capacity of the queues between stages.
+   */
+  public void setCapacity(final int capacity)
+  {
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Stream files to the parser (XSLT or SAX), without reading them in memory before 
+   * (default false). Less memory for big files, but disk access in parallel threads.
+   */
+  public void setStreaming(final boolean streaming)
+  {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Stats of a stage.
+   */
+  abstract class Stage
+  {
+    /** Name of stage */
+    final String name;
+    /** Count of threads */
+    final int threads;
+    /** Input queue, null for the first stage */
+    final BlockingQueue<Job> in;
+    /** Output queue, null for the last stage */
+    final BlockingQueue<Job> out;
+    /** Running threads, last one close output */
+    final AtomicInteger running;
+    /** Items processed */
+    final AtomicLong items = new AtomicLong();
+    /** Tokens or documents, according to the stage */
+    final AtomicLong units = new AtomicLong();
+    /** Time waiting for input */
+    final AtomicLong waitIn = new AtomicLong();
+    /** Time waiting for output */
+    final AtomicLong waitOut = new AtomicLong();
+    /** Total time of threads */
+    final AtomicLong total = new AtomicLong();
+    /** Count of threads of next stage, to send them end of stream */
+    int next;
+
+    Stage(final String name, final int threads, final BlockingQueue<Job> in, final BlockingQueue<Job> out)
+    {
+      this.name = name;
+      this.threads = threads;
+      this.in = in;
+      this.out = out;
+      this.running = new AtomicInteger(threads);
+    }
+
+    /** Process a job, send results with {@link #put(Job)} */
+    abstract void process(final Job job) throws Exception;
+
+    /** Next job, or null if no more */
+    Job take() throws InterruptedException
+    {
+      long time = System.nanoTime();
+      Job job = in.take();
+      waitIn.addAndGet(System.nanoTime() - time);
+      if (job == END) return null;
+      return job;
+    }
+
+    /** Send a job to next stage */
+    void put(final Job job) throws InterruptedException
+    {
+      long time = System.nanoTime();
+      out.put(job);
+      waitOut.addAndGet(System.nanoTime() - time);
+    }
+
+    /** Loop on input, until end of stream, errors on a job are logged */
+    void loop() throws InterruptedException
+    {
+      Job job;
+      while ((job = take()) != null) {
+        try {
+          process(job);
+        }
+        catch (InterruptedException e) {
+          throw e;
+        }
+        catch (Exception e) {
+          XMLIndexer.error(new Exception("ERROR in stage " + name + " for file " + job.file, e));
+          failed.add(job.file);
+        }
+        items.incrementAndGet();
+      }
+    }
+
+    /** Thread initialization */
+    void init() throws Exception
+    {
+    }
+
+    /** Start the threads of the stage */
+    List<Thread> start()
+    {
+      List<Thread> list = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        Thread thread = new Thread(() -> {
+          long time = System.nanoTime();
+          try {
+            init();
+            loop();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          catch (Exception e) {
+            XMLIndexer.error(new Exception("ERROR in stage " + name, e));
+            // do not block previous stage, jobs not processed
+            try {
+              Job job;
+              while ((job = take()) != null) failed.add(job.file);
+            }
+            catch (InterruptedException ie) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          finally {
+            total.addAndGet(System.nanoTime() - time);
+            // last thread of the stage, inform all threads of next stage
+            if (running.decrementAndGet() == 0 && out != null) {
+              try {
+                for (int j = 0; j < next; j++) out.put(END);
+              }
+              catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+        }, "alix-" + name + "-" + i);
+        list.add(thread);
+        thread.start();
+      }
+      return list;
+    }
+  }
+
+  /**
+   * Index a list of files, blocking until all documents are written.
+   * 
+   * @param files
+   * @return The files with an error, in the order of the list, empty if none.
+   * @throws IOException First error from the writer.
+   * @throws InterruptedException
+   */
+  public List<File> run(final List<File> files) throws IOException, InterruptedException
+  {
+    failure = null;
+    failed.clear();
+    final BlockingQueue<Job> bytesQueue = new ArrayBlockingQueue<>(capacity);
+    final BlockingQueue<Job> docsQueue = new ArrayBlockingQueue<>(capacity);
+    final BlockingQueue<Job> tokensQueue = new ArrayBlockingQueue<>(capacity);
+    final AtomicInteger cursor = new AtomicInteger();
+    Stage read = new Stage("read", 1, null, bytesQueue) {
+      @Override
+      void loop() throws InterruptedException
+      {
+        int i;
+        while ((i = cursor.getAndIncrement()) < files.size() && failure == null) {
+          process(new Job(files.get(i)));
+          items.incrementAndGet();
+        }
+      }
+
+      @Override
+      void process(Job job) throws InterruptedException
+      {
+        String filename = job.file.getName();
+        int pos = filename.lastIndexOf('.');
+        if (pos > 0) filename = filename.substring(0, pos);
+        job.filename = filename;
+        if (!streaming) {
+          try {
+            job.bytes = Files.readAllBytes(job.file.toPath());
+          }
+          catch (IOException e) {
+            XMLIndexer.error(new Exception("ERROR in file " + job.file, e));
+            failed.add(job.file);
+            return;
+          }
+          units.addAndGet(job.bytes.length);
+        }
+        put(job);
+      }
+    };
+    Stage parse = new Stage("parse", parseThreads, bytesQueue, docsQueue) {
+      // by thread
+      final ThreadLocal<SAXIndexer> handler = new ThreadLocal<>();
+      final ThreadLocal<Job> current = new ThreadLocal<>();
+
+      @Override
+      void init() throws Exception
+      {
+        // send blocks of documents as they are built
+        SAXIndexer indexer = new SAXIndexer(writer, (docs) -> {
+          Job job = new Job(current.get().file);
+          job.filename = current.get().filename;
+          job.docs = docs;
+          units.addAndGet(docs.size());
+          try {
+            put(job);
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        });
+        handler.set(indexer);
+      }
+
+      @Override
+      void process(Job job) throws Exception
+      {
+        XMLIndexer.info(job.filename + "                        ".substring(Math.min(22, job.filename.length())) + job.file.getParent());
+        current.set(job);
+        SAXIndexer indexer = handler.get();
+        try {
+          indexer.setFileName(job.filename);
+          // bytes already read, or stream the file
+          InputStream is = (job.bytes != null) ? new ByteArrayInputStream(job.bytes) : null;
+          if (templates != null) {
+            Transformer transformer = Processors.transformer(templates);
+            transformer.setParameter("filename", job.filename);
+            StreamSource source = (is != null) ? new StreamSource(is) : new StreamSource(job.file);
+            transformer.transform(source, new SAXResult(indexer));
+          }
+          else if (is != null) {
+            Processors.saxParser().parse(is, indexer);
+          }
+          else {
+            Processors.saxParser().parse(job.file, indexer);
+          }
+          XMLIndexer.info(job.filename + XMLIndexer.peak(indexer));
+        }
+        catch (Exception e) {
+          if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+          XMLIndexer.error(new Exception("ERROR in file " + job.file, e));
+          failed.add(job.file);
+        }
+        job.bytes = null;
+      }
+    };
+    Stage analyze = new Stage("analyze", analyzeThreads, docsQueue, tokensQueue) {
+      @Override
+      void process(Job job) throws Exception
+      {
+        long toks = 0;
+        try {
+          for (Document doc : job.docs) toks += PreAnalyzedTokens.analyze(doc);
+        }
+        catch (Exception e) {
+          XMLIndexer.error(new Exception("ERROR in file " + job.file, e));
+          failed.add(job.file);
+          return;
+        }
+        units.addAndGet(toks);
+        put(job);
+      }
+    };
+    Stage write = new Stage("write", writeThreads, tokensQueue, null) {
+      @Override
+      void process(Job job) throws Exception
+      {
+        if (failure != null) { // drain the queue
+          failed.add(job.file);
+          return;
+        }
+        try {
+          writer.addDocuments(job.docs);
+          units.addAndGet(job.docs.size());
+        }
+        catch (IOException e) {
+          failure = e;
+          failed.add(job.file);
+        }
+      }
+    };
+    stages = new Stage[] { read, parse, analyze, write };
+    for (int i = 0; i < stages.length - 1; i++) stages[i].next = stages[i + 1].threads;
+    long time = System.nanoTime();
+    List<Thread> threads = new ArrayList<>();
+    for (Stage stage : stages) threads.addAll(stage.start());
+    for (Thread thread : threads) thread.join();
+    nanos = System.nanoTime() - time;
+    if (failure != null) throw failure;
+    List<File> errors = new ArrayList<>();
+    for (File file : files) {
+      if (failed.contains(file)) errors.add(file);
+    }
+    return errors;
+  }
+
+  /**
+   * Stats by stage of the last run: items processed by second, 
+   * units (read: bytes, parse: documents, analyze: tokens, write: documents),
+   * percent of time by thread waiting for input or for output.
+   */
+  public String stats()
+  {
+    if (stages == null) return "";
+    StringBuilder sb = new StringBuilder();
+    double seconds = nanos / 1000000000.0;
+    sb.append(String.format("%-8s %7s %8s %10s %14s %14s %8s %8s\n", 
+        "stage", "threads", "items", "items/s", "units", "units/s", "wait in", "wait out"));
+    for (Stage stage : stages) {
+      long total = Math.max(1, stage.total.get());
+      sb.append(String.format("%-8s %7d %8d %10.1f %14d %14.1f %7.1f%% %7.1f%%\n",
+          stage.name, stage.threads, stage.items.get(), stage.items.get() / seconds, 
+          stage.units.get(), stage.units.get() / seconds,
+          100.0 * stage.waitIn.get() / total, 100.0 * stage.waitOut.get() / total));
+    }
+    sb.append(String.format("%.1f s.", seconds));
+    return sb.toString();
+  }
+}
@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -58,6 +59,7 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import alix.fr.Tag.TagFilter;
 import alix.lucene.analysis.MetaAnalyzer;
+import alix.lucene.analysis.RailFilter;
 
 
 /**
@@ -74,6 +76,13 @@ import alix.lucene.analysis.MetaAnalyzer;
  * <b>NOTE:</b> This indexer do not reuse fields and document object, because the fields provided by source are not predictable.
  *  
  * </p>
+ * <p>
+ * Chapters of a book are kept in memory until the end of the book, to be sent as a block.
+ * For very big books, a cap on the buffered bytes can be set ({@link #setMaxBuffered(long)},
+ * or the system property {@link #MAX_BUFFERED}), chapters are then sent by smaller blocks,
+ * the book document is always sent after its chapters. Chapters and their book share the
+ * {@link Alix#BOOKID} field, and no query relies on the adjacency of docIds in the index.
+ * </p>
  *
  */
 public class SAXIndexer extends DefaultHandler
@@ -92,8 +101,12 @@ public class SAXIndexer extends DefaultHandler
   final static String INT = "int";
   final static String FACET = "facet";
   final static String FACETS = "facets";
+  /** Name of a system property for the default cap of buffered bytes by parser, in megabytes (ex: -Dalix.maxbuffered=64) */
+  public final static String MAX_BUFFERED = "alix.maxbuffered";
   /** Lucene writer */
   private final IndexWriter writer;
+  /** Destination of the documents, default is the writer */
+  private final Sink sink;
   /** Current file processed */
   private String fileName;
   /** Curent document to write */
@@ -118,17 +131,91 @@ public class SAXIndexer extends DefaultHandler
   private boolean empty;
   /** Keep an hand on the text analyzer */
   private final Analyzer analyzer;
+  /** Store term vectors for text fields, or else record rails for co-occurrences */
+  private boolean vectors = true;
+  /** Cap of buffered bytes before sending the pending chapters of a book */
+  private long maxBuffered = Long.MAX_VALUE;
+  /** Estimated bytes of the text of pending chapters */
+  private long buffered;
+  /** Estimated bytes of the text of the pending book document */
+  private long bookBuffered;
+  /** Peak of buffered bytes for current file */
+  private long peak;
   
   /**
    * Keep same writer for 
    * @param writer
    */
   public SAXIndexer(final IndexWriter writer) 
+  {
+    this(writer, null);
+  }
+
+  /**
+   * Send the documents to another destination than the writer 
+   * (ex: a queue, see {@link IndexPipeline}), deletions are still done by the writer.
+   * 
+   * @param writer
+   * @param sink Optional, if null, documents are added to the writer.
+   */
+  public SAXIndexer(final IndexWriter writer, final Sink sink) 
   {
     this.writer = writer;
     this.analyzer = writer.getAnalyzer();
+    if (sink == null) this.sink = writer::addDocuments;
+    else this.sink = sink;
+    String mb = System.getProperty(MAX_BUFFERED);
+    if (mb != null) setMaxBuffered((long)(Double.parseDouble(mb) * 1024 * 1024));
+  }
+
+  /**
+   * Receive the documents built by the parser, a book and its chapters as a block
+   * (or chapters by smaller blocks, see {@link #setMaxBuffered(long)}, the book last),
+   * token streams of text fields are not yet consumed. 
+   * The list is not reused by the parser.
+   */
+  public interface Sink
+  {
+    public void add(List<Document> docs) throws IOException;
   }
   
+  /**
+   * Store term vectors for text fields or not (default true). Without term vectors,
+   * index is smaller, the terms of each doc are recorded by a {@link RailFilter}, 
+   * so that co-occurrences are still available when the file of rails is stale.
+   * 
+   * @param vectors
+   */
+  public void setVectors(final boolean vectors)
+  {
+    this.vectors = vectors;
+  }
+
+  /**
+   * Cap the bytes of text kept in memory for a book (default: no cap). When the chapters
+   * already parsed exceed this size, they are sent to the sink without waiting
+   * for the end of the book. Size is estimated from the chars of the fields (2 bytes by char),
+   * analysis of a text field will need some more.
+   * 
+   * @param bytes
+   */
+  public void setMaxBuffered(final long bytes)
+  {
+    if (bytes < 1) this.maxBuffered = Long.MAX_VALUE;
+    else this.maxBuffered = bytes;
+  }
+
+  /**
+   * Peak of text bytes kept in memory for the last parsed file (pending documents
+   * and the field in progress), to choose a cap, see {@link #setMaxBuffered(long)}.
+   * 
+   * @return estimated bytes
+   */
+  public long peakBuffered()
+  {
+    return peak;
+  }
+
   /**
    * Provide a filename for the documents to be processed.
    * All document from this source will be indexed with this token.
@@ -147,6 +234,19 @@ public class SAXIndexer extends DefaultHandler
   {
     if (this.fileName == null)
       throw new SAXException("Java error, .setFileName() sould be called before sending a document.");
+    // forget a pending state from a previous file in error
+    // (chapters already sent are deleted by a new indexation of the file, see setFileName())
+    document = null;
+    book = null;
+    chapters = new ArrayList<>();
+    chapno = 0;
+    record = false;
+    type = null;
+    fieldName = null;
+    xml.setLength(0);
+    buffered = 0;
+    bookBuffered = 0;
+    peak = 0;
   }
   
   @Override
@@ -407,13 +507,20 @@ public class SAXIndexer extends DefaultHandler
       fieldName = null;
       record = false;
       String text = this.xml.toString();
+      // the builder and its copy are in memory
+      final long bytes = 2L * text.length();
+      peak = Math.max(peak, buffered + bookBuffered + 2 * bytes);
       this.xml.setLength(0);
+      // do not keep a big buffer after a big field, if memory is restricted
+      if (maxBuffered != Long.MAX_VALUE && 2L * xml.capacity() > maxBuffered) xml = new StringBuilder();
       // choose the right doc to which add the field
       Document doc;
       if (document != null) doc = document; // chapter or document
       else if (book != null) doc = book; // book if not chapter
       else throw new SAXException("</\"+qName+\"> no document is opened to write the field in. A field must be nested in one of these:"
           + " document, book, chapter.");
+      if (doc == book) bookBuffered += bytes;
+      else buffered += bytes;
       try {
         switch (this.type) {
           case STORE:
@@ -427,7 +534,15 @@ public class SAXIndexer extends DefaultHandler
           case TEXT:
             doc.add(new StoredField(name , text)); // text has to be stored for snippets and conc
             TokenStream source = analyzer.tokenStream("stats", text);
-            doc.add(new Field(name, source, Alix.ftypeText)); // indexation of the chosen tokens
+            if (vectors) {
+              doc.add(new Field(name, source, Alix.ftypeText)); // indexation of the chosen tokens
+            }
+            else {
+              // no term vectors, record terms by position for co-occurrences, as they are indexed
+              RailFilter rail = new RailFilter(source);
+              doc.add(new Field(name, rail, Alix.ftypeTextNoVectors));
+              doc.add(rail.field(name + Alix._RAIL)); // after the text field, filled when tokens are consumed
+            }
             // source.reset();
             /*
             // A caching token stream allow to replay the tokens and get here stats to add to the document
@@ -457,6 +572,19 @@ public class SAXIndexer extends DefaultHandler
         throw new SAXException("</"+qName+"> empty document, nothing to add.");
       chapters.add(document);
       document = null;
+      // too much memory, send the chapters already parsed
+      if (buffered >= maxBuffered) {
+        try {
+          sink.add(chapters);
+        }
+        catch (Exception e) {
+          throw new SAXException(e);
+        }
+        finally {
+          chapters = new ArrayList<>(); // do not modify the list sent
+          buffered = 0;
+        }
+      }
     }
     else if ("book".equals(localName)) {
       if (document != null)
@@ -465,7 +593,7 @@ public class SAXIndexer extends DefaultHandler
         throw new SAXException("</"+qName+"> a closing book document is missing.");
       chapters.add(book);
       try {
-        writer.addDocuments(chapters);
+        sink.add(chapters);
       }
       catch (Exception e) {
         throw new SAXException(e);
@@ -473,21 +601,26 @@ public class SAXIndexer extends DefaultHandler
       finally {
         document = null;
         book = null;
-        chapters.clear();
+        chapters = new ArrayList<>(); // do not modify the list sent
         chapno = 0;
+        buffered = 0;
+        bookBuffered = 0;
       }
     }
     else if ("document".equals(localName)) {
       if (document == null)
         throw new SAXException("</"+qName+"> empty document, nothing to add.");
       try {
-        writer.addDocument(document);
+        ArrayList<Document> docs = new ArrayList<>(1);
+        docs.add(document);
+        sink.add(docs);
       }
       catch (IOException e) {
         throw new SAXException(e);
       }
       finally {
         document = null;
+        buffered = 0;
       }
     }
   }
@@ -40,14 +40,11 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
@@ -61,35 +58,21 @@ import org.apache.lucene.index.IndexWriter;
 import org.xml.sax.SAXException;
 
 import alix.util.Dir;
-import alix.xml.JarResolver;
+import alix.xml.Processors;
 
 /**
  * A worker for parallel lucene indexing.
  */
 public class XMLIndexer implements Runnable
 {
-  /** XSLT processor (saxon) */
-  static final TransformerFactory XSLFactory;
-  static {
-    // use JAXP standard API with Saxon B (not saxon HE 9, because exslt support has
-    // been removed)
-    System.setProperty("javax.xml.transform.TransformerFactory", "net.sf.saxon.TransformerFactoryImpl");
-    XSLFactory = TransformerFactory.newInstance();
-    XSLFactory.setAttribute("http://saxon.sf.net/feature/version-warning", Boolean.FALSE);
-    XSLFactory.setAttribute("http://saxon.sf.net/feature/recoveryPolicy", Integer.valueOf(0));
-    XSLFactory.setAttribute("http://saxon.sf.net/feature/linenumbering", Boolean.TRUE);
-  }
+  /** XSLT processor (saxon), configured once for the process */
+  static final TransformerFactory XSLFactory = Processors.XSLFactory;
   /** SAX factory */
-  static final SAXParserFactory SAXFactory = SAXParserFactory.newInstance();
-  static {
-    SAXFactory.setNamespaceAware(true);
-  }
+  static final SAXParserFactory SAXFactory = Processors.SAXFactory;
   /** Iterator in a list of files, synchronized */
   private final Iterator<File> it;
-  /** The XSL transformer to parse XML files */
-  private Transformer transformer;
-  /** A SAX processor */
-  private SAXParser SAXParser;
+  /** Optional compiled XSL to transform XML files */
+  private final Templates templates;
   /** SAX handler for indexation */
   private SAXIndexer handler;
   /** SAX output for XSL */
@@ -110,14 +93,9 @@ public class XMLIndexer implements Runnable
       throws TransformerConfigurationException, ParserConfigurationException, SAXException
   {
     this.it = it;
+    this.templates = templates;
     handler = new SAXIndexer(writer);
-    if (templates != null) {
-      transformer = templates.newTransformer();
-      result = new SAXResult(handler);
-    }
-    else {
-      SAXParser = SAXFactory.newSAXParser();
-    }
+    result = new SAXResult(handler);
   }
 
   /**
@@ -134,34 +112,23 @@ public class XMLIndexer implements Runnable
       throws ParserConfigurationException, SAXException, IOException, TransformerException
   {
     SAXIndexer handler = new SAXIndexer(writer);
-    Transformer transformer = null;
-    SAXResult result = null;
-    SAXParser SAXParser = null;
-    if (templates != null) {
-      transformer = templates.newTransformer();
-      result = new SAXResult(handler);
-    }
-    else {
-      SAXParser = SAXFactory.newSAXParser();
-    }
+    SAXResult result = new SAXResult(handler);
     while (it.hasNext()) {
       File file = it.next();
       String filename = file.getName();
       filename = filename.substring(0, filename.lastIndexOf('.'));
-      byte[] bytes = null;
-      // read file as fast as possible to release disk resource for other threads
-      bytes = Files.readAllBytes(file.toPath());
-      // info("bytes="+bytes.length);
       info(filename + "                               ".substring(Math.min(25, filename.length() + 2)) + file.getParent());
       handler.setFileName(filename);
-      if (transformer != null) {
-        StreamSource source = new StreamSource(new ByteArrayInputStream(bytes));
+      // one thread, no need to release the disk, stream the file
+      if (templates != null) {
+        Transformer transformer = Processors.transformer(templates);
         transformer.setParameter("filename", filename);
-        transformer.transform(source, result);
+        transformer.transform(new StreamSource(file), result);
       }
       else {
-        SAXParser.parse(new ByteArrayInputStream(bytes), handler);
+        Processors.saxParser().parse(file, handler);
       }
+      info(peak(handler));
     }
     
   }
@@ -181,14 +148,17 @@ public class XMLIndexer implements Runnable
         // read file as fast as possible to release disk resource for other threads
         bytes = Files.readAllBytes(file.toPath());
         handler.setFileName(filename);
-        if (transformer != null) {
+        // transformer and parser of this thread
+        if (templates != null) {
+          Transformer transformer = Processors.transformer(templates);
           StreamSource source = new StreamSource(new ByteArrayInputStream(bytes));
           transformer.setParameter("filename", filename);
           transformer.transform(source, result);
         }
         else {
-          SAXParser.parse(new ByteArrayInputStream(bytes), handler);
+          Processors.saxParser().parse(new ByteArrayInputStream(bytes), handler);
         }
+        info(filename + peak(handler));
       }
       catch (Exception e) {
         Exception ee = new Exception("ERROR in file " + file, e);
@@ -197,6 +167,14 @@ public class XMLIndexer implements Runnable
     }
   }
 
+  /**
+   * Format the peak of memory used by a parser for last file.
+   */
+  static String peak(final SAXIndexer handler)
+  {
+    return "  peak=" + (handler.peakBuffered() / 1024) + " kB";
+  }
+
   /**
    * A synchonized method to get the next file to index.
    * 
@@ -278,7 +256,9 @@ public class XMLIndexer implements Runnable
   }
 
   /**
-   * Recursive indexation of an XML folder, multi-threadeded.
+   * Recursive indexation of an XML folder, multi-threadeded,
+   * with an {@link IndexPipeline} if more than one thread.
+   * The index is committed and merged in one segment at the end.
    * @throws TransformerException 
    */
   static public void index(final IndexWriter writer, final String[] globs, SrcFormat format, int threads)
@@ -296,35 +276,46 @@ public class XMLIndexer implements Runnable
     if (files.size() < 1) {
       throw new FileNotFoundException("\n["+Alix.NAME+"] No file found to index globs=\""+ String.join(", ", globs) + "\"");
     }
+    index(writer, files, format, threads);
+    writer.commit();
+    writer.forceMerge(1);
+  }
+
+  /**
+   * Index a list of files, multi-threadeded, with an {@link IndexPipeline} if more than one thread.
+   * Documents of a file already indexed (same {@link Alix#FILENAME}) are replaced.
+   * The index is not committed, commit and merges are left to the caller
+   * (ex: incremental indexation, see {@link alix.cli.Load}).
+   * With one thread, indexation stops on the first error.
+   * @return The files with an error (logged), their documents may be missing or incomplete.
+   * @throws TransformerException 
+   */
+  static public List<File> index(final IndexWriter writer, final List<File> files, SrcFormat format, int threads)
+      throws ParserConfigurationException, SAXException, InterruptedException,
+      IOException, TransformerException
+  {
+    if (format == null) format = SrcFormat.alix; // direct alix xml alix:document/alix:field
     if (threads < 1) threads = 1;
 
     
     Iterator<File> it = files.iterator();
 
-    // compile XSLT, maybe it could be done before?
+    // compiled XSLT, cached for the process
     Templates templates = null;
     if (format == SrcFormat.tei) {
-      JarResolver resloader = new JarResolver();
-      XSLFactory.setURIResolver(resloader);
-      StreamSource xsltSrc = new StreamSource(resloader.resolve("alix.xsl"));
-      templates = XSLFactory.newTemplates(xsltSrc);
+      templates = Processors.templates("alix.xsl");
     }
     // one thread, try it as static to start
     if (threads == 1) {
       XMLIndexer.write(writer, it, templates);
+      return new ArrayList<File>();
     }
-    // multithread pool
-    else {
-      ExecutorService pool = Executors.newFixedThreadPool(threads);
-      for (int i = 0; i < threads; i++) {
-        pool.submit(new XMLIndexer(writer, it, templates));
-      }
-      pool.shutdown();
-      // ? verify what should be done here if it hangs
-      pool.awaitTermination(30, TimeUnit.MINUTES);
-    }
-    writer.commit();
-    writer.forceMerge(1);
+    // staged pipeline, xml parsing, analysis and writing in different threads
+    IndexPipeline pipeline = new IndexPipeline(writer, templates);
+    pipeline.setThreads(threads, threads, Math.max(1, threads / 2));
+    List<File> failed = pipeline.run(files);
+    info(pipeline.stats());
+    return failed;
   }
 
 }
@@ -33,7 +33,6 @@
 package alix.lucene.analysis;
 
 import java.io.IOException;
-import java.util.LinkedList;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
@@ -63,8 +62,8 @@ public class CompoundFilter extends TokenFilter
   private final CharsAtt orthAtt = (CharsAtt)addAttribute(CharsOrthAtt.class);
   /** A lemma when possible */
   private final CharsLemAtt lemAtt = addAttribute(CharsLemAtt.class);
-  /** A stack of sates  */
-  private LinkedList<State> stack = new LinkedList<State>();
+  /** A queue of states for look-ahead, no allocation by token */
+  private final StateQueue stack = new StateQueue(this);
   /** A term used to concat a compound */
   private CharsAtt comlem = new CharsAtt();
   /** A term used to concat a compound */
@@ -79,17 +78,12 @@ public class CompoundFilter extends TokenFilter
     super(input);
   }
 
-  public String toString(LinkedList<State> stack) {
+  public String toString(StateQueue stack) {
     String out = "";
-    State restore = captureState();
-    boolean first = true;
-    for(State s: stack) {
-      if (first) first = false;
-      else out += ", ";
-      restoreState(s);
-      out += termAtt;
+    for (int i = 0, size = stack.size(); i < size; i++) {
+      if (i > 0) out += ", ";
+      out += stack.get(i).getAttribute(CharTermAttribute.class);
     }
-    restoreState(restore);
     return out;
   }
   
@@ -114,9 +108,11 @@ public class CompoundFilter extends TokenFilter
       if (!exit) return false;
     }
     else {
-      restoreState(stack.remove());
+      stack.removeFirst();
       // if last token from stack and text, inform consumer
       if (stack.isEmpty() && !exit) return false;
+      // end of text, no more look ahead, empty the stack
+      if (!exit) return true;
       // TODO, do not exit here, try to continue forward lookup, but we have a bug 
       // else return true;
     }
@@ -146,7 +142,7 @@ public class CompoundFilter extends TokenFilter
     final int startOffset = offsetAtt.startOffset();
     
     // capture, if we have to go back, reinsert at start if token was pop from stack
-    stack.addFirst(captureState());
+    stack.addFirst();
     
     while (true) {
       // append space if last is not apos
@@ -158,13 +154,19 @@ public class CompoundFilter extends TokenFilter
       
       // get next token, and keep end event
       exit = input.incrementToken();
+      // end of text, store the end state, restore the first recorded state
+      if (!exit) {
+        stack.addLast();
+        stack.removeFirst();
+        return true; // let continue to empty the stack
+      }
 
       tag = flagsAtt.getFlags();
       // end of compound by tag
       tagBreak = Tag.isPun(tag);
       if (tagBreak) {
-        stack.add(captureState());
-        restoreState(stack.remove());
+        stack.addLast();
+        stack.removeFirst();
         return true; // let continue to empty the stack
       }
       // token is not a tag breaker
@@ -180,9 +182,9 @@ public class CompoundFilter extends TokenFilter
       // end of a look ahead
       if (trieO == null) {
         // store present state with no change
-        stack.add(captureState());
+        stack.addLast();
         // restore the first recorded state, and go away
-        restoreState(stack.remove());
+        stack.removeFirst();
         return true; // let continue to empty the stack
       }
 
@@ -198,17 +200,20 @@ public class CompoundFilter extends TokenFilter
         // no more compound with this prefix, we are happy
         if ((trieflags & FrDics.BRANCH) == 0) return true;
         // compound may continue, lookahead should continue, store this step
-        stack.add(captureState());
+        stack.addLast();
       }
       // should be a part of a compound, store state if it’s a no way
       else {
-        stack.add(captureState());
+        stack.addLast();
       }
     }
   }
   @Override
   public void reset() throws IOException {
     super.reset();
+    stack.clear();
+    exit = true;
+    count = 0;
   }
 
   @Override
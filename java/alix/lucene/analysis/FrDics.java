@@ -33,13 +33,19 @@
 package alix.lucene.analysis;
 
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.zip.CRC32;
 
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.ByteRunAutomaton;
@@ -57,6 +63,9 @@ import alix.util.CsvReader;
  * implementation of chars token attribute {@link CharsAtt},
  * with a cached hash code {@link CharsAtt#hashCode()} and
  * comparison {@link CharsAtt#compareTo(CharsAtt)}.
+ * The big lists of words and names are compiled from the CSV sources
+ * in a {@link Lexicon}, cached in a file (see {@link #LEXICON_DIR}),
+ * and memory-mapped on next loadings while the sources have not changed.
  */
 @SuppressWarnings("unlikely-arg-type")
 public class FrDics
@@ -65,10 +74,16 @@ public class FrDics
   public final static HashSet<CharsAtt> STOP = new HashSet<CharsAtt>((int) (1000 / 0.75));
   /** French stopwords as binary automaton */
   public static ByteRunAutomaton STOP_BYTES;
-  /** 130 000 types French lexicon seems not too bad for memory */
-  public final static HashMap<CharsAtt, LexEntry> WORD = new HashMap<CharsAtt, LexEntry>((int) (150000 / 0.75));
-  /** French names on which keep Capitalization */
-  public final static HashMap<CharsAtt, NameEntry> NAME = new HashMap<CharsAtt, NameEntry>((int) (50000 / 0.75));
+  /** System property for the directory of compiled lexicons, default is the temp directory */
+  public final static String LEXICON_DIR = "alix.lexicon";
+  /** Sources of {@link #WORD} */
+  private final static String[] WORD_FILES = {"word.csv"};
+  /** Sources of {@link #NAME}, put persons after places (Molière is also a village, but not very common) */
+  private final static String[] NAME_FILES = {"commune.csv", "france.csv", "forename.csv", "place.csv", "author.csv", "name.csv"};
+  /** 130 000 types French lexicon, tag, lemma and frequency by orthographic form */
+  public final static Lexicon WORD = lexicon("word", WORD_FILES);
+  /** French names on which keep Capitalization, tag and normalized form */
+  public final static Lexicon NAME = lexicon("name", NAME_FILES);
   /** Graphic normalization (replacement) */
   public final static HashMap<CharsAtt, CharsAtt> NORM = new HashMap<CharsAtt, CharsAtt>((int) (100 / 0.75));
   /** Elisions, for tokenization and normalization */
@@ -102,43 +117,131 @@ public class FrDics
       }
       Automaton automaton = WordsAutomatonBuilder.buildFronStrings(list);
       STOP_BYTES = new ByteRunAutomaton(automaton);
+    }
+    // output errors at start
+    catch (Exception e) {
+      System.out.println("Dictionary parse error in file "+res+" line "+csv.line());
+      e.printStackTrace();
+    }
+    load("caps.csv", NORM);
+    load("orth.csv", NORM);
+    load("ellision.csv", ELISION);
+    load("brevidot.csv", BREVIDOT);
+    tree("compound.csv", COMPOUND);
+  }
 
-      
-      res = "word.csv";
-      reader = new InputStreamReader(Tag.class.getResourceAsStream(res), StandardCharsets.UTF_8);
-      csv = new CsvReader(reader, 6);
-      csv.readRow(); // pass first line
-      while (csv.readRow()) {
-        Chain orth = csv.row().get(0);
-        if (orth.isEmpty() || orth.charAt(0) == '#') continue;
-        if (WORD.containsKey(orth)) continue;
-        CharsAtt key = new CharsAtt(orth);
-        WORD.put(key, new LexEntry(csv.row().get(1), csv.row().get(2), csv.row().get(5)));
+  /**
+   * Get a compiled lexicon from its cache file, or compile it from the sources,
+   * and try to write the cache file for next time.
+   * 
+   * @param name Name of the lexicon, "word" or "name".
+   * @param files Sources.
+   * @return
+   */
+  private static Lexicon lexicon(final String name, final String[] files)
+  {
+    long checksum = -1;
+    Path file = null;
+    try {
+      checksum = checksum(files);
+      String dir = System.getProperty(LEXICON_DIR, System.getProperty("java.io.tmpdir"));
+      file = Paths.get(dir, "alix-" + name + "-" + Long.toHexString(checksum) + ".lex");
+      Lexicon lexicon = Lexicon.open(file, checksum);
+      if (lexicon != null) return lexicon;
+    }
+    catch (IOException e) { // cache not available, compile
+    }
+    Lexicon.Builder builder = new Lexicon.Builder();
+    if ("word".equals(name)) words(files, builder);
+    else names(files, builder);
+    ByteBuffer buf = builder.build(checksum);
+    if (file != null) {
+      try {
+        Lexicon.write(file, buf);
+      }
+      catch (IOException e) { // not writable, not a problem, compile next time
+      }
+    }
+    return new Lexicon(buf);
+  }
+
+  /**
+   * Checksum of sources, to know if a compiled lexicon is up to date.
+   */
+  private static long checksum(final String[] files) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    byte[] bytes = new byte[8192];
+    for (String res : files) {
+      try (InputStream in = Tag.class.getResourceAsStream(res)) {
+        if (in == null) throw new IOException("Resource not found " + res);
+        int n;
+        while ((n = in.read(bytes)) > 0) crc.update(bytes, 0, n);
       }
-      // nouns, put persons after places (Molière is also a village, but not very common)
-      String[] files = {"commune.csv", "france.csv", "forename.csv", "place.csv", "author.csv", "name.csv"};
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Parse the list of words, orth;tag;lem;…;freq, first entry is kept.
+   */
+  private static void words(final String[] files, final Lexicon.Builder builder)
+  {
+    String res = null;
+    CsvReader csv = null;
+    try {
       for (String f : files) {
         res = f;
-        reader = new InputStreamReader(Tag.class.getResourceAsStream(res), StandardCharsets.UTF_8);
+        Reader reader = new InputStreamReader(Tag.class.getResourceAsStream(res), StandardCharsets.UTF_8);
+        csv = new CsvReader(reader, 6);
+        csv.readRow(); // pass first line
+        while (csv.readRow()) {
+          Chain orth = csv.row().get(0);
+          if (orth.isEmpty() || orth.charAt(0) == '#') continue;
+          float freq = 3;
+          Chain cell = csv.row().get(5);
+          if (!cell.isEmpty()) try {
+            freq = Float.parseFloat(cell.toString());
+          }
+          catch (NumberFormatException e) {
+          }
+          builder.put(orth, Tag.code(csv.row().get(1)), csv.row().get(2), freq, false);
+        }
+      }
+    }
+    // output errors at start
+    catch (Exception e) {
+      System.out.println("Dictionary parse error in file "+res+" line "+((csv == null)?"":csv.line()));
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Parse the lists of names, name;tag;orth, last entry is kept.
+   */
+  private static void names(final String[] files, final Lexicon.Builder builder)
+  {
+    String res = null;
+    CsvReader csv = null;
+    try {
+      for (String f : files) {
+        res = f;
+        Reader reader = new InputStreamReader(Tag.class.getResourceAsStream(res), StandardCharsets.UTF_8);
         csv = new CsvReader(reader, 3);
         csv.readRow();
         while (csv.readRow()) {
           Chain key = csv.row().get(0);
           if (key.isEmpty() || key.charAt(0) == '#') continue;
-          NAME.put(new CharsAtt(key), new NameEntry(csv.row().get(1), csv.row().get(2)));
+          int tag = Tag.code(csv.row().get(1));
+          if (tag == 0) tag = Tag.NAME;
+          builder.put(key, tag, csv.row().get(2), 0, true);
         }
       }
     }
-    // output errors at start
     catch (Exception e) {
-      System.out.println("Dictionary parse error in file "+res+" line "+csv.line());
+      System.out.println("Dictionary parse error in file "+res+" line "+((csv == null)?"":csv.line()));
       e.printStackTrace();
     }
-    load("caps.csv", NORM);
-    load("orth.csv", NORM);
-    load("ellision.csv", ELISION);
-    load("brevidot.csv", BREVIDOT);
-    tree("compound.csv", COMPOUND);
   }
 
   private static void load(String res, HashMap<CharsAtt, CharsAtt> map)
@@ -202,13 +305,32 @@ public class FrDics
     }
   }
   
+  /**
+   * Get a word entry, prefer {@link Lexicon#find(CharsAtt)} on {@link #WORD}
+   * to avoid allocation.
+   * 
+   * @param att
+   * @return
+   */
   public static LexEntry word(CharsAtt att)
   {
-    return WORD.get(att);
+    final int id = WORD.find(att);
+    if (id < 0) return null;
+    return new LexEntry(WORD, id);
   }
+
+  /**
+   * Get a name entry, prefer {@link Lexicon#find(CharsAtt)} on {@link #NAME}
+   * to avoid allocation.
+   * 
+   * @param att
+   * @return
+   */
   public static NameEntry name(CharsAtt att)
   {
-    return NAME.get(att);
+    final int id = NAME.find(att);
+    if (id < 0) return null;
+    return new NameEntry(NAME, id);
   }
   public static boolean isStop(CharsAtt att)
   {
@@ -244,6 +366,14 @@ public class FrDics
       else this.orth = null;
     }
 
+    public NameEntry(final Lexicon lexicon, final int id)
+    {
+      this.tag = lexicon.tag(id);
+      CharsAtt orth = new CharsAtt();
+      if (lexicon.value(id, orth)) this.orth = orth;
+      else this.orth = null;
+    }
+
     @Override
     public String toString()
     {
@@ -269,6 +399,15 @@ public class FrDics
       }
     }
 
+    public LexEntry(final Lexicon lexicon, final int id)
+    {
+      this.tag = lexicon.tag(id);
+      CharsAtt lem = new CharsAtt();
+      if (lexicon.value(id, lem)) this.lem = lem;
+      else this.lem = null;
+      this.freq = lexicon.freq(id);
+    }
+
     @Override
     public String toString()
     {
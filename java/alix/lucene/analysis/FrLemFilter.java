@@ -40,8 +40,6 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
 
 import alix.fr.Tag;
-import alix.lucene.analysis.FrDics.LexEntry;
-import alix.lucene.analysis.FrDics.NameEntry;
 import alix.lucene.analysis.tokenattributes.CharsAtt;
 import alix.lucene.analysis.tokenattributes.CharsLemAtt;
 import alix.lucene.analysis.tokenattributes.CharsOrthAtt;
@@ -91,8 +89,6 @@ public final class FrLemFilter extends TokenFilter
   private boolean waspun = true; // first word considered as if it follows a dot
   /** Store state */
   private State save;
-  /** Reusable char sequence for some tests and transformations */
-  private final CharsAtt copy = new CharsAtt();
 
 
   
@@ -133,8 +129,9 @@ public final class FrLemFilter extends TokenFilter
     if (!Char.isToken(c1)) return true;
     
     
-    LexEntry word;
-    NameEntry name;
+    // ids of entries in the lexicons, no allocation
+    int word;
+    int name;
     // First letter of token is upper case, is it a name ? Is it an upper case header ?
     if (Char.isUpperCase(c1)) {
       
@@ -149,43 +146,39 @@ public final class FrLemFilter extends TokenFilter
       // USA ?
       orth.capitalize(); // GRANDE-BRETAGNE -> Grande-Bretagne
       FrDics.norm(orth); // normalise : Etat -> État
-      copy.copy(orth);
       // c1 = orth.charAt(0); // keep initial cap, maybe useful
-      name = FrDics.name(orth); // known name ?
-      if (name != null) {
-        flagsAtt.setFlags(name.tag);
+      name = FrDics.NAME.find(orth); // known name ?
+      if (name >= 0) {
+        flagsAtt.setFlags(FrDics.NAME.tag(name));
         // maybe a normalized form for the name
-        if (name.orth != null) orth.copy(name.orth);
+        if (FrDics.NAME.valueLength(name) > 0) FrDics.NAME.value(name, orth.setEmpty());
         return true;
       }
-      word = FrDics.word(orth.toLower()); // known word ?
-      if (word != null) { // known word
+      // known word ? lower case folding inside the probe, orth is kept if unknown
+      word = FrDics.WORD.findLower(orth.buffer(), 0, orth.length());
+      if (word >= 0) { // known word
+        orth.toLower();
         // if not after a pun, maybe a capitalized concept État, or a name La Fontaine, 
         // or a title — Le Siècle, La Plume, La Nouvelle Revue, etc. 
         // restore initial cap
         if (!waspun) termAtt.buffer()[0] = c1;
-        flagsAtt.setFlags(word.tag);
-        if (word.lem != null) {
-          lemAtt.append(word.lem);
-        }
+        flagsAtt.setFlags(FrDics.WORD.tag(word));
+        FrDics.WORD.value(word, (CharsAtt) lemAtt); // append lemma if any
         return true;
       }
       else { // unknown word, infer it's a MAME
         flagsAtt.setFlags(Tag.NAME);
-        orth.copy(copy);
         return true;
       }
     }
     else {
       FrDics.norm(orth); // normalise oeil -> œil
-      word = FrDics.word(orth);
-      if (word == null) return true;
+      word = FrDics.WORD.find(orth);
+      if (word < 0) return true;
       // known word
-      flagsAtt.setFlags(word.tag);
-      if (word.lem != null) {
-        // who set length to 0 here ?
-        lemAtt.append(word.lem);
-      }
+      flagsAtt.setFlags(FrDics.WORD.tag(word));
+      // who set length to 0 here ?
+      FrDics.WORD.value(word, (CharsAtt) lemAtt); // append lemma if any
     }
     return true;
   }
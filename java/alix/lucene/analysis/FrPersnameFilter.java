@@ -34,7 +34,6 @@ package alix.lucene.analysis;
 
 import java.io.IOException;
 import java.util.HashSet;
-import java.util.LinkedList;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
@@ -43,7 +42,6 @@ import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 
 import alix.fr.Tag;
-import alix.lucene.analysis.FrDics.NameEntry;
 import alix.lucene.analysis.tokenattributes.CharsAtt;
 import alix.lucene.analysis.tokenattributes.CharsLemAtt;
 import alix.lucene.analysis.tokenattributes.CharsOrthAtt;
@@ -82,8 +80,8 @@ public class FrPersnameFilter extends TokenFilter
   private final CharsOrthAtt orthAtt = addAttribute(CharsOrthAtt.class);
   /** A lemma, needed to restore states */
   private final CharsLemAtt lemAtt = addAttribute(CharsLemAtt.class);
-  /** A stack of sates  */
-  private LinkedList<State> stack = new LinkedList<State>();
+  /** A queue of states for look-ahead, no allocation by token */
+  private final StateQueue stack = new StateQueue(this);
   /** A term used to concat names */
   private CharsAtt name = new CharsAtt();
 
@@ -96,7 +94,7 @@ public class FrPersnameFilter extends TokenFilter
   public boolean incrementToken() throws IOException
   {
     if (!stack.isEmpty()) {
-      restoreState(stack.removeLast());
+      stack.removeLast();
       return true;
     }
     if (!input.incrementToken()) {
@@ -136,7 +134,7 @@ public class FrPersnameFilter extends TokenFilter
       }
       // test if it is a particle, but store it, avoid [Europe de l']atome
       if (PARTICLES.contains(term)) {
-        stack.addFirst(captureState());
+        stack.addFirst();
         name.append(' ').append(term);
         // pos += posInc.getPositionIncrement();
         continue;
@@ -148,25 +146,31 @@ public class FrPersnameFilter extends TokenFilter
       // pos = pos - stack.size();
       name.setLength(lastlen);
     }
-    if (notlast) stack.addFirst(captureState());
+    if (notlast) stack.addFirst();
     offsetAtt.setOffset(startOffset, endOffset);
     // posIncAtt.setPositionIncrement(pos);
     // posLenAtt.setPositionLength(pos);
     // get tag
     lem.setEmpty(); // the actual stop token may have set a lemma not relevant for names
-    NameEntry entry = FrDics.name(name);
-    if (entry == null) {
+    final int entry = FrDics.NAME.find(name);
+    if (entry < 0) {
       flagsAtt.setFlags(Tag.NAME);
       term.setEmpty().append(name);
       orth.setEmpty().append(name);
     }
     else {
-      flagsAtt.setFlags(entry.tag);
+      flagsAtt.setFlags(FrDics.NAME.tag(entry));
       // normalized version is same as lem
-      if (entry.orth != null) orth.setEmpty().append(entry.orth);
-      else orth.setEmpty().append(name);
+      if (!FrDics.NAME.value(entry, orth.setEmpty())) orth.append(name);
       term.setEmpty().append(name);
     }
     return true;
   }
+
+  @Override
+  public void reset() throws IOException
+  {
+    super.reset();
+    stack.clear();
+  }
 }
@@ -100,8 +100,8 @@ public class FrTokenizer extends Tokenizer
   CharsAtt test = new CharsAtt();
   /** For string storing */
   CharsAtt copy = new CharsAtt();
-  /** Store state */
-  private State save;
+  /** Store states of tokens to send, no allocation by token */
+  private final StateQueue save = new StateQueue(this);
   /** Source buffer of chars, delegate to Lucene experts */
   private final CharacterBuffer bufSrc = CharacterUtils.newCharacterBuffer(4096);
   /** Pointer in buffer */
@@ -175,9 +175,8 @@ public class FrTokenizer extends Tokenizer
     // The
     clearAttributes();
     // send term event
-    if (save != null) {
-      restoreState(save);
-      save = null;
+    if (!save.isEmpty()) {
+      save.removeFirst();
       return true;
     }
 
@@ -264,14 +263,14 @@ public class FrTokenizer extends Tokenizer
           // Known tag to send
           if (length != 0) { // A word has been started
             // save state with the word
-            State state = captureState();
+            save.addLast();
             // save state with xml tag for next
             offsetAtt.setOffset(correctOffset(ltOffset), correctOffset(offset + bufIndex));
             termAtt.setEmpty().append(el);
             flags.setFlags(Tag.PUNdiv);
-            save = captureState();
+            save.addLast();
             // send the word
-            restoreState(state);
+            save.removeFirst();
             break;
           }
           // A tag has to be sent
@@ -443,7 +442,7 @@ public class FrTokenizer extends Tokenizer
       copy.copy(term);
       term.copy(test);
       offsetAtt.setOffset(correctOffset(hyphOffset), correctOffset(endOffset));
-      save = captureState();
+      save.addFirst(); // before a possible xml tag
       // send the word before hyphen
       term.copy(copy);
       endOffset = hyphOffset - 1;
@@ -473,6 +472,8 @@ public class FrTokenizer extends Tokenizer
     bufLen = 0;
     finalOffset = 0;
     bufSrc.reset(); // make sure to reset the IO buffer!!
+    save.clear();
+    skip = null;
   }
 
   /**
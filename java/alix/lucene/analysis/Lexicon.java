@@ -0,0 +1,500 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.analysis;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+import alix.lucene.analysis.tokenattributes.CharsAtt;
+import alix.util.Char;
+
+/**
+ * A compiled word list, read only, for the dictionaries of the analyzers ({@link FrDics}).
+ * An entry is a key (chars), with a tag, an optional value (chars, ex: a lemma or a normalized form),
+ * and a frequency. Entries are stored in columns of a binary buffer, and found by an open addressing
+ * hash table on the chars of the key, so that the lookup does not allocate objects.
+ * The buffer is built from the CSV sources by a {@link Builder}, and could be saved 
+ * in a file, memory-mapped on next loading.
+ * 
+ * <pre>
+ * header: magic (int), format (int), checksum of sources (long), size (int), table size (int), chars (int), reserved (int)
+ * table: entry id + 1 by slot, 0 if empty (int[table size])
+ * keys: start of key in chars by id, end is start of value (int[size + 1])
+ * values: start of value in chars by id, end is start of next key (int[size + 1])
+ * tags: (int[size])
+ * freqs: (float[size])
+ * chars: (char[chars])
+ * </pre>
+ */
+public class Lexicon
+{
+  /** Magic number of a file of lexicon */
+  private static final int MAGIC = 0x416C784C;
+  /** Version of the format */
+  private static final int FORMAT = 1;
+  /** Size of the header in bytes */
+  private static final int HEADER = 4 + 4 + 8 + 4 + 4 + 4 + 4;
+  /** Checksum of the sources */
+  public final long checksum;
+  /** Number of entries */
+  private final int size;
+  /** Mask for a slot in table */
+  private final int mask;
+  /** Hash table, entry id + 1 by slot */
+  private final IntBuffer table;
+  /** Start of keys in chars, by id */
+  private final IntBuffer keys;
+  /** Start of values in chars, by id */
+  private final IntBuffer values;
+  /** Tags by id */
+  private final IntBuffer tags;
+  /** Freqs by id */
+  private final FloatBuffer freqs;
+  /** All chars of keys and values */
+  private final CharBuffer chars;
+
+  /**
+   * Open a lexicon from a buffer written by {@link Builder#build(long)}.
+   * 
+   * @param buf
+   */
+  public Lexicon(final ByteBuffer buf)
+  {
+    if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT) throw new IllegalArgumentException("Not a lexicon buffer");
+    checksum = buf.getLong(8);
+    size = buf.getInt(16);
+    final int tableSize = buf.getInt(20);
+    final int charCount = buf.getInt(24);
+    mask = tableSize - 1;
+    int pos = HEADER;
+    table = slice(buf, pos).asIntBuffer();
+    table.limit(tableSize);
+    pos += 4 * tableSize;
+    keys = slice(buf, pos).asIntBuffer();
+    keys.limit(size + 1);
+    pos += 4 * (size + 1);
+    values = slice(buf, pos).asIntBuffer();
+    values.limit(size + 1);
+    pos += 4 * (size + 1);
+    tags = slice(buf, pos).asIntBuffer();
+    tags.limit(size);
+    pos += 4 * size;
+    freqs = slice(buf, pos).asFloatBuffer();
+    freqs.limit(size);
+    pos += 4 * size;
+    chars = slice(buf, pos).asCharBuffer();
+    chars.limit(charCount);
+  }
+
+  /**
+   * A view of a buffer from a position.
+   */
+  private static ByteBuffer slice(final ByteBuffer buf, final int pos)
+  {
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos);
+    return dup.slice();
+  }
+
+  /**
+   * Open a lexicon file, return null if the file does not exist, or if
+   * it was not compiled from the same sources (checksum).
+   * 
+   * @param file
+   * @param checksum
+   * @return
+   * @throws IOException
+   */
+  public static Lexicon open(final Path file, final long checksum) throws IOException
+  {
+    if (!Files.exists(file)) return null;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER) return null;
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT || buf.getLong(8) != checksum) return null;
+      return new Lexicon(buf);
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+      return null; // truncated file
+    }
+  }
+
+  /**
+   * Write a buffer built by {@link Builder#build(long)} in a file, to be opened by {@link #open(Path, long)}.
+   * The file is written in a temp file and then moved, to not expose a partial file to a reader.
+   * 
+   * @param file
+   * @param buf
+   * @throws IOException
+   */
+  public static void write(final Path file, final ByteBuffer buf) throws IOException
+  {
+    Path tmp = file.resolveSibling(file.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer dup = buf.duplicate();
+      dup.clear();
+      while (dup.hasRemaining()) channel.write(dup);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Slot in table for a hash code.
+   */
+  private static int slot(int h, final int mask)
+  {
+    h ^= (h >>> 16);
+    h *= 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * Hash code of chars, same as {@link String#hashCode()} and {@link CharsAtt#hashCode()}.
+   */
+  private static int hash(final CharSequence cs)
+  {
+    int h = 0;
+    for (int i = 0, len = cs.length(); i < len; i++) h = 31 * h + cs.charAt(i);
+    return h;
+  }
+
+  /**
+   * Number of entries.
+   * 
+   * @return
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Find the id of an entry, without allocation (hash code of the term is cached).
+   * 
+   * @param term
+   * @return id of the entry, or -1 if not found.
+   */
+  public int find(final CharsAtt term)
+  {
+    return find(term.buffer(), 0, term.length(), term.hashCode());
+  }
+
+  /**
+   * Find the id of an entry for a slice of chars, without allocation.
+   * 
+   * @param buffer
+   * @param off start index of the key in buffer.
+   * @param len length of the key.
+   * @return id of the entry, or -1 if not found.
+   */
+  public int find(final char[] buffer, final int off, final int len)
+  {
+    int h = 0;
+    for (int i = off, end = off + len; i < end; i++) h = 31 * h + buffer[i];
+    return find(buffer, off, len, h);
+  }
+
+  /**
+   * Find the id of an entry for a slice of chars folded to lower case
+   * (same rule as {@link CharsAtt#toLower()}), case folding is done inside the probe,
+   * so that the buffer is not modified and there is no copy to restore.
+   * 
+   * @param buffer
+   * @param off start index of the key in buffer.
+   * @param len length of the key.
+   * @return id of the entry, or -1 if not found.
+   */
+  public int findLower(final char[] buffer, final int off, final int len)
+  {
+    final int end = off + len;
+    int h = 0;
+    for (int i = off; i < end; i++) h = 31 * h + lower(buffer[i]);
+    int slot = slot(h, mask);
+    while (true) {
+      final int id = table.get(slot) - 1;
+      if (id < 0) return -1;
+      final int start = keys.get(id);
+      if (values.get(id) - start == len) {
+        int i = 0;
+        while (i < len && chars.get(start + i) == lower(buffer[off + i])) i++;
+        if (i == len) return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Lower case of a char, same as {@link CharsAtt#toLower()}.
+   */
+  private static char lower(final char c)
+  {
+    if (!Char.isUpperCase(c)) return c;
+    return Character.toLowerCase(c);
+  }
+
+  /**
+   * Find the id of an entry.
+   * 
+   * @param cs
+   * @return id of the entry, or -1 if not found.
+   */
+  public int find(final CharSequence cs)
+  {
+    if (cs instanceof CharsAtt) return find((CharsAtt) cs);
+    final int len = cs.length();
+    final int h = hash(cs);
+    int slot = slot(h, mask);
+    while (true) {
+      final int id = table.get(slot) - 1;
+      if (id < 0) return -1;
+      final int start = keys.get(id);
+      if (values.get(id) - start == len) {
+        int i = 0;
+        while (i < len && chars.get(start + i) == cs.charAt(i)) i++;
+        if (i == len) return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Find the id of an entry by chars.
+   */
+  private int find(final char[] buffer, final int off, final int len, final int h)
+  {
+    int slot = slot(h, mask);
+    while (true) {
+      final int id = table.get(slot) - 1;
+      if (id < 0) return -1;
+      final int start = keys.get(id);
+      if (values.get(id) - start == len) {
+        int i = 0;
+        while (i < len && chars.get(start + i) == buffer[off + i]) i++;
+        if (i == len) return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Tag of an entry.
+   * 
+   * @param id
+   * @return
+   */
+  public int tag(final int id)
+  {
+    return tags.get(id);
+  }
+
+  /**
+   * Frequency of an entry.
+   * 
+   * @param id
+   * @return
+   */
+  public float freq(final int id)
+  {
+    return freqs.get(id);
+  }
+
+  /**
+   * Length of the value of an entry, 0 if none.
+   * 
+   * @param id
+   * @return
+   */
+  public int valueLength(final int id)
+  {
+    return keys.get(id + 1) - values.get(id);
+  }
+
+  /**
+   * Append the value of an entry to a term, without allocation (if buffer of term is big enough).
+   * 
+   * @param id
+   * @param term
+   * @return false if there is no value for this entry.
+   */
+  public boolean value(final int id, final CharTermAttribute term)
+  {
+    final int start = values.get(id);
+    final int len = keys.get(id + 1) - start;
+    if (len == 0) return false;
+    final int from = term.length();
+    final char[] buffer = term.resizeBuffer(from + len);
+    for (int i = 0; i < len; i++) buffer[from + i] = chars.get(start + i);
+    term.setLength(from + len);
+    return true;
+  }
+
+  /**
+   * Append the key of an entry to a term.
+   * 
+   * @param id
+   * @param term
+   */
+  public void key(final int id, final CharTermAttribute term)
+  {
+    final int start = keys.get(id);
+    final int len = values.get(id) - start;
+    final int from = term.length();
+    final char[] buffer = term.resizeBuffer(from + len);
+    for (int i = 0; i < len; i++) buffer[from + i] = chars.get(start + i);
+    term.setLength(from + len);
+  }
+
+  /**
+   * Collect the entries of a lexicon, and build the binary buffer.
+   */
+  public static class Builder
+  {
+    /** Ids of keys */
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    /** All chars */
+    private char[] chars = new char[1024];
+    private int charCount;
+    /** Start of key by id, and its end */
+    private int[] keyStart = new int[64];
+    private int[] keyEnd = new int[64];
+    /** Start of value by id, and its end */
+    private int[] valueStart = new int[64];
+    private int[] valueEnd = new int[64];
+    private int[] tags = new int[64];
+    private float[] freqs = new float[64];
+    /** Count of entries */
+    private int size;
+
+    /**
+     * Add an entry.
+     * 
+     * @param key
+     * @param tag
+     * @param value Optional, null or empty if none.
+     * @param freq
+     * @param replace If key is already known, replace the entry or keep the first.
+     */
+    public void put(final CharSequence key, final int tag, final CharSequence value, final float freq, final boolean replace)
+    {
+      final String k = key.toString();
+      Integer id = ids.get(k);
+      if (id != null && !replace) return;
+      int i;
+      if (id == null) {
+        i = size++;
+        ids.put(k, i);
+        keyStart = ArrayUtil.grow(keyStart, size);
+        keyEnd = ArrayUtil.grow(keyEnd, size);
+        valueStart = ArrayUtil.grow(valueStart, size);
+        valueEnd = ArrayUtil.grow(valueEnd, size);
+        tags = ArrayUtil.grow(tags, size);
+        freqs = ArrayUtil.grow(freqs, size);
+        keyStart[i] = charCount;
+        append(k);
+        keyEnd[i] = charCount;
+      }
+      else i = id;
+      tags[i] = tag;
+      freqs[i] = freq;
+      valueStart[i] = charCount;
+      if (value != null) append(value);
+      valueEnd[i] = charCount;
+    }
+
+    private void append(final CharSequence cs)
+    {
+      final int len = cs.length();
+      chars = ArrayUtil.grow(chars, charCount + len);
+      for (int i = 0; i < len; i++) chars[charCount++] = cs.charAt(i);
+    }
+
+    /**
+     * Build the binary buffer, keys and values are copied in id order,
+     * key, value, next key…, so that ends are known from next start.
+     * 
+     * @param checksum A checksum of the sources.
+     * @return
+     */
+    public ByteBuffer build(final long checksum)
+    {
+      int tableSize = 2;
+      while (tableSize < size * 2) tableSize <<= 1; // load factor <= 0.5
+      final int mask = tableSize - 1;
+      int total = 0;
+      for (int i = 0; i < size; i++) total += (keyEnd[i] - keyStart[i]) + (valueEnd[i] - valueStart[i]);
+      final long length = HEADER + 4L * tableSize + 4L * (size + 1) * 2 + 4L * size * 2 + 2L * total;
+      if (length > Integer.MAX_VALUE) throw new IllegalStateException("Lexicon too big " + length);
+      ByteBuffer buf = ByteBuffer.allocate((int) length);
+      buf.putInt(MAGIC).putInt(FORMAT).putLong(checksum).putInt(size).putInt(tableSize).putInt(total).putInt(0);
+      final int tablePos = HEADER;
+      final int keysPos = tablePos + 4 * tableSize;
+      final int valuesPos = keysPos + 4 * (size + 1);
+      final int tagsPos = valuesPos + 4 * (size + 1);
+      final int freqsPos = tagsPos + 4 * size;
+      final int charsPos = freqsPos + 4 * size;
+      int c = 0; // index in chars of the buffer
+      for (int i = 0; i < size; i++) {
+        buf.putInt(keysPos + 4 * i, c);
+        for (int j = keyStart[i]; j < keyEnd[i]; j++) buf.putChar(charsPos + 2 * c++, chars[j]);
+        buf.putInt(valuesPos + 4 * i, c);
+        for (int j = valueStart[i]; j < valueEnd[i]; j++) buf.putChar(charsPos + 2 * c++, chars[j]);
+        buf.putInt(tagsPos + 4 * i, tags[i]);
+        buf.putFloat(freqsPos + 4 * i, freqs[i]);
+        // hash table
+        int h = 0;
+        for (int j = keyStart[i]; j < keyEnd[i]; j++) h = 31 * h + chars[j];
+        int slot = slot(h, mask);
+        while (buf.getInt(tablePos + 4 * slot) != 0) slot = (slot + 1) & mask;
+        buf.putInt(tablePos + 4 * slot, i + 1);
+      }
+      // end of last value
+      buf.putInt(keysPos + 4 * size, c);
+      buf.putInt(valuesPos + 4 * size, c);
+      buf.clear();
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.analysis;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A token stream analyzed in advance, to replay to an IndexWriter
+ * what the writer needs to invert a field: 
+ * term bytes, position increments and offsets 
+ * (no payloads, frequencies in a position are 1).
+ * The source stream is entirely consumed (and closed) by the constructor,
+ * so that analysis can be done in another thread than the writer, 
+ * filters at the end of the source (ex: {@link RailFilter}) have seen all tokens. 
+ * Tokens are stored in few growing arrays, not as captured states.
+ * 
+ * <pre>
+ * Field field = (Field) doc.getField(name);
+ * field.setTokenStream(new PreAnalyzedTokens(field.tokenStreamValue()));
+ * </pre>
+ */
+public final class PreAnalyzedTokens extends TokenStream
+{
+  /** Term to index */
+  private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
+  /** Position increment */
+  private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+  /** Offsets */
+  private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+  /** Bytes of all terms */
+  private byte[] bytes = new byte[1024];
+  /** End index of each term in bytes */
+  private int[] ends = new int[64];
+  /** Position increment by token */
+  private int[] posIncs = new int[64];
+  /** Start offset by token */
+  private int[] starts = new int[64];
+  /** End offset by token */
+  private int[] stops = new int[64];
+  /** Count of tokens */
+  private int size;
+  /** Final offset, after end() of source */
+  private int finalOffset;
+  /** Final position increment, after end() of source */
+  private int finalPosInc;
+  /** Pointer for replay */
+  private int pointer;
+  /** Reusable ref on a term */
+  private final BytesRef ref = new BytesRef();
+
+  /**
+   * Consume a stream (reset, incrementToken, end, close).
+   * 
+   * @param source
+   * @throws IOException
+   */
+  public PreAnalyzedTokens(final TokenStream source) throws IOException
+  {
+    TermToBytesRefAttribute srcTerm = source.addAttribute(TermToBytesRefAttribute.class);
+    PositionIncrementAttribute srcPosInc = source.addAttribute(PositionIncrementAttribute.class);
+    OffsetAttribute srcOffset = source.addAttribute(OffsetAttribute.class);
+    try {
+      source.reset();
+      int length = 0;
+      while (source.incrementToken()) {
+        final BytesRef term = srcTerm.getBytesRef();
+        if (size == ends.length) {
+          ends = ArrayUtil.grow(ends);
+          posIncs = ArrayUtil.grow(posIncs, ends.length);
+          starts = ArrayUtil.grow(starts, ends.length);
+          stops = ArrayUtil.grow(stops, ends.length);
+        }
+        bytes = ArrayUtil.grow(bytes, length + term.length);
+        System.arraycopy(term.bytes, term.offset, bytes, length, term.length);
+        length += term.length;
+        ends[size] = length;
+        posIncs[size] = srcPosInc.getPositionIncrement();
+        starts[size] = srcOffset.startOffset();
+        stops[size] = srcOffset.endOffset();
+        size++;
+      }
+      source.end();
+      finalOffset = srcOffset.endOffset();
+      finalPosInc = srcPosInc.getPositionIncrement();
+    }
+    finally {
+      source.close();
+    }
+    ref.bytes = bytes;
+  }
+
+  /**
+   * Replace the token streams of the fields of a document by pre-analyzed ones.
+   * 
+   * @param fields Fields of a document.
+   * @return count of tokens analyzed.
+   * @throws IOException
+   */
+  public static long analyze(final Iterable<? extends IndexableField> fields) throws IOException
+  {
+    long toks = 0;
+    for (IndexableField f : fields) {
+      if (!(f instanceof Field)) continue;
+      Field field = (Field) f;
+      TokenStream ts = field.tokenStreamValue();
+      if (ts == null || ts instanceof PreAnalyzedTokens) continue;
+      PreAnalyzedTokens tokens = new PreAnalyzedTokens(ts);
+      field.setTokenStream(tokens);
+      toks += tokens.size();
+    }
+    return toks;
+  }
+
+  /**
+   * Count of tokens.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException
+  {
+    if (pointer >= size) return false;
+    clearAttributes();
+    final int start = (pointer == 0) ? 0 : ends[pointer - 1];
+    ref.offset = start;
+    ref.length = ends[pointer] - start;
+    termAtt.setBytesRef(ref);
+    posIncAtt.setPositionIncrement(posIncs[pointer]);
+    offsetAtt.setOffset(starts[pointer], stops[pointer]);
+    pointer++;
+    return true;
+  }
+
+  @Override
+  public void end() throws IOException
+  {
+    super.end();
+    offsetAtt.setOffset(finalOffset, finalOffset);
+    posIncAtt.setPositionIncrement(finalPosInc);
+  }
+
+  @Override
+  public void reset() throws IOException
+  {
+    super.reset();
+    pointer = 0;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.analysis;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import alix.lucene.Alix;
+import alix.lucene.util.Cooc;
+import alix.util.IntList;
+
+/**
+ * A sink at the end of an analysis chain, recording the indexed terms
+ * by position, as they are streamed to the index writer. 
+ * The sequence is available as a binary field, to add to the document after the text field
+ * (fields are processed in the order of the document), 
+ * so that the “rail” of termIds of a doc can be read for co-occurrences without term vectors,
+ * when the file of rails is stale (see {@link Cooc}).
+ * Only recorded for an index without term vectors (see {@link alix.lucene.SAXIndexer#setVectors(boolean)}).
+ * 
+ * <pre>
+ * TokenStream source = analyzer.tokenStream("stats", text);
+ * RailFilter rail = new RailFilter(source);
+ * doc.add(new Field(name, rail, Alix.ftypeTextNoVectors));
+ * doc.add(rail.field(name + Alix._RAIL));
+ * </pre>
+ * 
+ * The bytes are a local dictionary (count of terms, then length and bytes of each term), 
+ * followed by local ids by position (vint, 0 for an empty position, id + 1 if not).
+ * When more than one term is given for a position, first one is kept.
+ */
+public class RailFilter extends TokenFilter
+{
+  /** Field type of a rail, binary doc values */
+  public static final FieldType TYPE = new FieldType();
+  static {
+    TYPE.setDocValuesType(DocValuesType.BINARY);
+    TYPE.freeze();
+  }
+  /** The indexed bytes of the term */
+  private final TermToBytesRefAttribute termAtt = addAttribute(TermToBytesRefAttribute.class);
+  /** Position increment */
+  private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+  /** Local dictionary of terms */
+  private final BytesRefHash dic = new BytesRefHash();
+  /** Local ids + 1 by position, 0 if empty */
+  private final IntList ids = new IntList();
+  /** Current position */
+  private int pos = -1;
+  /** Encoded bytes */
+  private final GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(1024);
+  /** Flag, bytes are encoded for current state */
+  private boolean encoded;
+
+  public RailFilter(TokenStream input)
+  {
+    super(input);
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException
+  {
+    if (!input.incrementToken()) return false; // end of stream
+    final int inc = posAtt.getPositionIncrement();
+    if (inc == 0 && pos >= 0) return true; // same position, keep first term
+    pos += inc;
+    int id = dic.add(termAtt.getBytesRef());
+    if (id < 0) id = -id - 1;
+    while (ids.size() < pos) ids.push(0); // empty positions
+    ids.push(id + 1);
+    encoded = false;
+    return true;
+  }
+
+  @Override
+  public void reset() throws IOException
+  {
+    super.reset();
+    pos = -1;
+    dic.clear();
+    dic.reinit(); // clear() release arrays
+    ids.reset();
+    encoded = false;
+  }
+
+  /**
+   * Returns the terms of the stream by position, encoded, 
+   * valid until next {@link #reset()}.
+   * 
+   * @return
+   */
+  public BytesRef bytes()
+  {
+    if (!encoded) {
+      out.reset();
+      try {
+        final int size = dic.size();
+        out.writeVInt(size);
+        BytesRef ref = new BytesRef();
+        for (int id = 0; id < size; id++) {
+          dic.get(id, ref);
+          out.writeVInt(ref.length);
+          out.writeBytes(ref.bytes, ref.offset, ref.length);
+        }
+        for (int i = 0, length = ids.size(); i < length; i++) {
+          out.writeVInt(ids.get(i));
+        }
+      }
+      catch (IOException e) { // should not arrive in memory
+        throw new IllegalStateException(e);
+      }
+      encoded = true;
+    }
+    return new BytesRef(out.getBytes(), 0, out.getPosition());
+  }
+
+  /**
+   * A field to add to the document after the field indexed with this token stream, 
+   * its value is read from this sink when the document is written.
+   * 
+   * @param name Name of the field, ex: text + {@link Alix#_RAIL}.
+   * @return
+   */
+  public Field field(final String name)
+  {
+    return new Field(name, TYPE) {
+      @Override
+      public BytesRef binaryValue()
+      {
+        return bytes();
+      }
+    };
+  }
+
+  /**
+   * Decode the bytes written by {@link #bytes()}, fill the terms of the local dictionary
+   * and returns the local ids + 1 by position (0 if empty).
+   * 
+   * @param ref Bytes of a rail.
+   * @param terms Local dictionary to fill, cleared before.
+   * @param ids Ids by position to fill, reset before.
+   */
+  public static void decode(final BytesRef ref, final BytesRefHash terms, final IntList ids)
+  {
+    terms.clear();
+    terms.reinit(); // clear() release arrays
+    ids.reset();
+    ByteArrayDataInput in = new ByteArrayDataInput(ref.bytes, ref.offset, ref.length);
+    final int size = in.readVInt();
+    BytesRef term = new BytesRef();
+    for (int id = 0; id < size; id++) {
+      final int length = in.readVInt();
+      term.bytes = ref.bytes;
+      term.offset = in.getPosition(); // position in the bytes array
+      term.length = length;
+      terms.add(term);
+      in.skipBytes(length);
+    }
+    while (!in.eof()) {
+      ids.push(in.readVInt());
+    }
+  }
+}
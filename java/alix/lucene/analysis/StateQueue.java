@@ -0,0 +1,161 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.analysis;
+
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * A double-ended queue of attribute states for the look-ahead of a token filter,
+ * replacing a <code>LinkedList&lt;State&gt;</code> of {@link AttributeSource#captureState()}.
+ * States are stored in a ring of reusable {@link AttributeSource} slots, 
+ * cloned from the stream at first use, and values are copied 
+ * with {@link AttributeSource#copyTo(AttributeSource)}, 
+ * so that no object is allocated by token, once the queue has reached its max size.
+ * 
+ * <pre>
+ * StateQueue queue = new StateQueue(this);
+ * queue.addLast(); // capture current token
+ * queue.removeFirst(); // restore first token
+ * </pre>
+ */
+public class StateQueue
+{
+  /** The attributes to capture and restore */
+  private final AttributeSource source;
+  /** Ring of slots */
+  private AttributeSource[] slots = new AttributeSource[4];
+  /** Index of first state */
+  private int head;
+  /** Count of states */
+  private int size;
+
+  public StateQueue(final AttributeSource source)
+  {
+    this.source = source;
+  }
+
+  /**
+   * Capture current state of the source at the start of the queue.
+   */
+  public void addFirst()
+  {
+    grow();
+    head = (head - 1) & (slots.length - 1);
+    capture(head);
+    size++;
+  }
+
+  /**
+   * Capture current state of the source at the end of the queue.
+   */
+  public void addLast()
+  {
+    grow();
+    capture((head + size) & (slots.length - 1));
+    size++;
+  }
+
+  /**
+   * Restore the first state of the queue in the source, and remove it.
+   */
+  public void removeFirst()
+  {
+    if (size == 0) throw new IllegalStateException("Empty queue");
+    slots[head].copyTo(source);
+    head = (head + 1) & (slots.length - 1);
+    size--;
+  }
+
+  /**
+   * Restore the last state of the queue in the source, and remove it.
+   */
+  public void removeLast()
+  {
+    if (size == 0) throw new IllegalStateException("Empty queue");
+    size--;
+    slots[(head + size) & (slots.length - 1)].copyTo(source);
+  }
+
+  /**
+   * Get a state, without removing it, to read its attributes.
+   * 
+   * @param i index from start of the queue.
+   * @return
+   */
+  public AttributeSource get(final int i)
+  {
+    if (i < 0 || i >= size) throw new IndexOutOfBoundsException("i=" + i + " size=" + size);
+    return slots[(head + i) & (slots.length - 1)];
+  }
+
+  /**
+   * Forget the states (slots are kept for reuse).
+   */
+  public void clear()
+  {
+    head = 0;
+    size = 0;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Copy the source in a slot, cloned if not yet created.
+   */
+  private void capture(final int slot)
+  {
+    if (slots[slot] == null) slots[slot] = source.cloneAttributes();
+    else source.copyTo(slots[slot]);
+  }
+
+  /**
+   * Ensure room for one more state, length of ring is kept as a power of 2.
+   */
+  private void grow()
+  {
+    final int length = slots.length;
+    if (size < length) return;
+    AttributeSource[] dest = new AttributeSource[length << 1];
+    for (int i = 0; i < size; i++) dest[i] = slots[(head + i) & (length - 1)];
+    slots = dest;
+    head = 0;
+  }
+}
@@ -0,0 +1,386 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.search;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import alix.util.IntList;
+
+/**
+ * Occurrences of the terms of a text field, by bucket of an int field
+ * (ex: year), for a chronology of any term without reading its postings,
+ * see {@link Scale#curves(TermList, int, boolean)}. 
+ * 
+ * <p>
+ * Buckets are the distinct values of the int field, in ascending order.
+ * Counts are stored as sparse columns by termId of the {@link Freqs} of the text field:
+ * for each term, a range of (bucket, occurrences), only for buckets where the
+ * term appears (like a compressed sparse row matrix).
+ * </p>
+ * <p>
+ * Built offline, after a commit (ex: by the loader), and written in the index directory,
+ * see {@link #write(Path)}. The file is only relevant for the commit on which it has been
+ * built, see {@link #open(IndexReader, Freqs, String, Path)}. Opened from a file,
+ * the columns are read from the mapped file, without copy.
+ * </p>
+ * 
+ * <pre>
+ * header: magic (int), format (int), generation (long), version (long), maxDoc (int), leaves (int),
+ *   terms (int), buckets (int)
+ * values: value of the int field by bucket (int[buckets])
+ * offsets: start index of the range of a term in the columns, by termId (int[terms + 1])
+ * buckets: bucket of an entry (int[offsets[terms]])
+ * counts: occurrences of the term in the bucket of an entry (int[offsets[terms]])
+ * </pre>
+ */
+public class BucketFreqs implements Accountable
+{
+  /** Magic number of a file of buckets, see {@link #write(Path)} */
+  private static final int MAGIC = 0x416C7842; // "AlxB"
+  /** Version of the format of a file of buckets, see {@link #write(Path)} */
+  private static final int FORMAT = 2;
+  /** Size of the header in bytes */
+  private static final int HEADER = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+  /** The reader from which to get counts */
+  final IndexReader reader;
+  /** Name of the int field, type: NumericDocValuesField */
+  public final String fieldInt;
+  /** Name of the text field */
+  public final String fieldText;
+  /** Dictionary of the text field, termIds from its {@link Freqs} */
+  private final BytesRefHash hashDic;
+  /** Distinct values of the int field, in ascending order, the index is the bucket */
+  private final int[] values;
+  /** By termId, start of the range of the term in the columns, termId + 1 is the end */
+  private final IntBuffer offsets;
+  /** Bucket of the count */
+  private final IntBuffer buckets;
+  /** Count of occurrences of a term in a bucket */
+  private final IntBuffer counts;
+
+  /**
+   * Build the counts from the postings of each term.
+   * 
+   * @param reader
+   * @param freqs Stats of the text field, as a dictionary of terms.
+   * @param fieldInt A NumericDocValuesField, values are forced to int.
+   * @throws IOException
+   */
+  public BucketFreqs(final IndexReader reader, final Freqs freqs, final String fieldInt) throws IOException
+  {
+    this.reader = reader;
+    this.fieldInt = fieldInt;
+    this.fieldText = freqs.field;
+    this.hashDic = freqs.hashDic();
+    final List<LeafReaderContext> leaves = reader.leaves();
+    // bucket of each doc, -1 without value
+    final int maxDoc = reader.maxDoc();
+    final int[] docValue = new int[maxDoc];
+    final boolean[] hasValue = new boolean[maxDoc];
+    IntList list = new IntList();
+    for (LeafReaderContext context : leaves) {
+      NumericDocValues docs4num = context.reader().getNumericDocValues(fieldInt);
+      if (docs4num == null) continue;
+      final int docBase = context.docBase;
+      int docLeaf;
+      while ((docLeaf = docs4num.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        final int v = (int) docs4num.longValue(); // force label to int
+        docValue[docBase + docLeaf] = v;
+        hasValue[docBase + docLeaf] = true;
+        list.push(v);
+      }
+    }
+    int[] values = list.toArray();
+    Arrays.sort(values);
+    int nb = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (nb > 0 && values[nb - 1] == values[i]) continue;
+      values[nb++] = values[i];
+    }
+    values = Arrays.copyOf(values, nb);
+    final int[] docBucket = new int[maxDoc];
+    for (int docId = 0; docId < maxDoc; docId++) {
+      docBucket[docId] = (hasValue[docId]) ? Arrays.binarySearch(values, docValue[docId]) : -1;
+    }
+    // loop on terms in termId order, seek the term in each leaf
+    final int size = hashDic.size();
+    final TermsEnum[] tenums = new TermsEnum[leaves.size()];
+    for (LeafReaderContext context : leaves) {
+      Terms terms = context.reader().terms(fieldText);
+      if (terms != null) tenums[context.ord] = terms.iterator();
+    }
+    final int[] offsets = new int[size + 1];
+    IntList buckets = new IntList();
+    IntList counts = new IntList();
+    final int[] scratch = new int[nb];
+    IntList touched = new IntList();
+    BytesRef ref = new BytesRef();
+    PostingsEnum postings = null;
+    int entries = 0;
+    for (int termId = 0; termId < size; termId++) {
+      hashDic.get(termId, ref);
+      for (LeafReaderContext context : leaves) {
+        final TermsEnum tenum = tenums[context.ord];
+        if (tenum == null || !tenum.seekExact(ref)) continue;
+        final LeafReader leaf = context.reader();
+        final Bits liveDocs = leaf.getLiveDocs();
+        final int docBase = context.docBase;
+        postings = tenum.postings(postings, PostingsEnum.FREQS);
+        int docLeaf;
+        while ((docLeaf = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          if (liveDocs != null && !liveDocs.get(docLeaf)) continue;
+          final int bucket = docBucket[docBase + docLeaf];
+          if (bucket < 0) continue;
+          if (scratch[bucket] == 0) touched.push(bucket);
+          scratch[bucket] += postings.freq();
+        }
+      }
+      // flush the buckets of the term, in bucket order
+      int[] row = touched.toArray();
+      Arrays.sort(row);
+      for (int bucket : row) {
+        buckets.push(bucket);
+        counts.push(scratch[bucket]);
+        scratch[bucket] = 0;
+        entries++;
+      }
+      touched.reset();
+      offsets[termId + 1] = entries;
+    }
+    this.values = values;
+    this.offsets = IntBuffer.wrap(offsets);
+    this.buckets = IntBuffer.wrap(buckets.toArray());
+    this.counts = IntBuffer.wrap(counts.toArray());
+  }
+
+  /**
+   * Constructor for a file, the columns are views on the mapped file, positioned after the values.
+   */
+  private BucketFreqs(final IndexReader reader, final Freqs freqs, final String fieldInt, 
+      final int[] values, final MappedByteBuffer buf, final int size)
+  {
+    this.reader = reader;
+    this.fieldInt = fieldInt;
+    this.fieldText = freqs.field;
+    this.hashDic = freqs.hashDic();
+    this.values = values;
+    int position = buf.position();
+    offsets = buf.slice().asIntBuffer();
+    offsets.limit(size + 1);
+    final int entries = offsets.get(size);
+    position += 4 * (size + 1);
+    buf.position(position);
+    buckets = buf.slice().asIntBuffer();
+    buckets.limit(entries);
+    position += 4 * entries;
+    buf.position(position);
+    counts = buf.slice().asIntBuffer();
+    counts.limit(entries);
+  }
+
+  /**
+   * Get the counts from a file written by {@link #write(Path)}, if it has been
+   * written for the same state of the index (generation, version and segments),
+   * or null (not built, or the index has changed). 
+   * 
+   * @param reader A reader opened on a commit of the index.
+   * @param freqs Stats of the text field, for the same reader.
+   * @param fieldInt
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static BucketFreqs open(final IndexReader reader, final Freqs freqs, final String fieldInt, final Path file) throws IOException
+  {
+    final long generation = Freqs.generation(reader);
+    if (generation < 0 || !Files.exists(file)) return null;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long length = channel.size();
+      if (length < HEADER) return null;
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if (buf.getInt() != MAGIC || buf.getInt() != FORMAT) return null;
+      if (buf.getLong() != generation) return null;
+      if (buf.getLong() != ((DirectoryReader) reader).getVersion()) return null;
+      if (buf.getInt() != reader.maxDoc() || buf.getInt() != reader.leaves().size()) return null;
+      final int size = buf.getInt();
+      if (size != freqs.size) return null;
+      final int nb = buf.getInt();
+      // truncated file
+      if (length < HEADER + 4L * nb + 4L * (size + 1)) return null;
+      final int entries = buf.getInt(HEADER + 4 * nb + 4 * size);
+      if (length != HEADER + 4L * nb + 4L * (size + 1) + 8L * entries) return null;
+      // values are few, binary search in a copy
+      final int[] values = new int[nb];
+      buf.asIntBuffer().get(values);
+      buf.position(HEADER + 4 * nb);
+      // a mapping is still valid after the channel is closed
+      return new BucketFreqs(reader, freqs, fieldInt, values, buf, size);
+    }
+  }
+
+  /**
+   * Write the counts in a binary file, to be loaded by {@link #open(IndexReader, Freqs, String, Path)}.
+   * The file is written in a temp file and then moved, to not expose a partial file to a reader.
+   * 
+   * @param file
+   * @throws IOException
+   */
+  public void write(final Path file) throws IOException
+  {
+    final long generation = Freqs.generation(reader);
+    if (generation < 0) throw new IOException("Reader not on a commit, no persistence of buckets for field \"" + fieldText + "\"");
+    final int size = offsets.limit() - 1;
+    final int entries = offsets.get(size);
+    long length = HEADER;
+    length += 4L * values.length + 4L * (size + 1) + 4L * entries + 4L * entries;
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+      buf.putInt(MAGIC).putInt(FORMAT).putLong(generation).putLong(((DirectoryReader) reader).getVersion());
+      buf.putInt(reader.maxDoc()).putInt(reader.leaves().size());
+      buf.putInt(size).putInt(values.length);
+      buf.asIntBuffer().put(values);
+      buf.position(buf.position() + values.length * 4);
+      buf.asIntBuffer().put(offsets.duplicate());
+      buf.position(buf.position() + (size + 1) * 4);
+      buf.asIntBuffer().put(buckets.duplicate());
+      buf.position(buf.position() + entries * 4);
+      buf.asIntBuffer().put(counts.duplicate());
+      buf.force();
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Count of buckets.
+   */
+  public int size()
+  {
+    return values.length;
+  }
+
+  /**
+   * Value of the int field for a bucket.
+   */
+  public int value(final int bucket)
+  {
+    return values[bucket];
+  }
+
+  /**
+   * Bucket of a value of the int field, or a negative number if no doc has this value
+   * (see {@link Arrays#binarySearch(int[], int)}).
+   */
+  public int bucket(final int value)
+  {
+    return Arrays.binarySearch(values, value);
+  }
+
+  /**
+   * Occurrences of a term by bucket, a new array, with 0 if the term is not found.
+   * 
+   * @param bytes A term of the text field.
+   * @return
+   */
+  public long[] freqs(final BytesRef bytes)
+  {
+    final long[] freqs = new long[values.length];
+    final int termId = hashDic.find(bytes);
+    if (termId < 0) return freqs;
+    for (int i = offsets.get(termId), end = offsets.get(termId + 1); i < end; i++) {
+      freqs[buckets.get(i)] = counts.get(i);
+    }
+    return freqs;
+  }
+
+  /**
+   * Add the occurrences of a term to some rows of a destination, by bucket.
+   * 
+   * @param bytes A term of the text field.
+   * @param rows By bucket, a row of the destination, or a negative number to skip the bucket.
+   * @param dest Where to add the occurrences.
+   */
+  public void add(final BytesRef bytes, final int[] rows, final long[] dest)
+  {
+    final int termId = hashDic.find(bytes);
+    if (termId < 0) return;
+    for (int i = offsets.get(termId), end = offsets.get(termId + 1); i < end; i++) {
+      final int row = rows[buckets.get(i)];
+      if (row < 0) continue;
+      dest[row] += counts.get(i);
+    }
+  }
+
+  @Override
+  public long ramBytesUsed()
+  {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance(BucketFreqs.class);
+    bytes += RamUsageEstimator.sizeOf(values);
+    // columns mapped from a file are not on heap
+    if (offsets.hasArray()) bytes += RamUsageEstimator.sizeOf(offsets.array());
+    if (buckets.hasArray()) bytes += RamUsageEstimator.sizeOf(buckets.array());
+    if (counts.hasArray()) bytes += RamUsageEstimator.sizeOf(counts.array());
+    return bytes;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "BucketFreqs " + fieldInt + " by " + fieldText + ", " + values.length + " buckets, " 
+      + (offsets.limit() - 1) + " terms, " + counts.limit() + " counts";
+  }
+}
@@ -36,21 +36,30 @@ import java.io.IOException;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.util.BitSet;
-import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.SparseFixedBitSet;
 
 /**
  * Collect found document as a set of docids in a bitSet.
+ * Docs are collected by a {@link DocIdSetBuilder} (a buffer of docIds, upgraded to bits 
+ * if dense), the bitSet is built on demand, sparse or not according to the count of hits,
+ * see {@link BitSet#of(DocIdSetIterator, int)}.
  * Caching should be ensure by user.
  * @author fred
  *
  */
 public class CollectorBits extends SimpleCollector implements Collector
 {
-  /** The bitset (optimized for spare or all bits) */
+  /** Size of the bitset */
+  private final int maxDoc;
+  /** Collected docs, before a bitSet is requested */
+  private DocIdSetBuilder builder;
+  /** The bitset (optimized for spare or all bits), built on demand */
   private BitSet bits;
   /** Number of hits */
   private int hits = 0;
@@ -62,14 +71,20 @@ public class CollectorBits extends SimpleCollector implements Collector
 
   public CollectorBits(IndexSearcher searcher) 
   {
-    bits = new FixedBitSet(searcher.getIndexReader().maxDoc());
+    maxDoc = searcher.getIndexReader().maxDoc();
+    builder = new DocIdSetBuilder(maxDoc);
   }
   
   /**
    * Get the document filter.
+   * @throws IOException 
    */
-  public BitSet bits()
+  public BitSet bits() throws IOException
   {
+    if (bits != null) return bits;
+    DocIdSetIterator it = builder.build().iterator();
+    bits = (it == null) ? new SparseFixedBitSet(maxDoc) : BitSet.of(it, maxDoc);
+    builder = null;
     return bits;
   }
   
@@ -91,7 +106,8 @@ public class CollectorBits extends SimpleCollector implements Collector
   @Override
   public void collect(int docLeaf) throws IOException
   {
-    bits.set(docBase + docLeaf);
+    if (bits != null) bits.set(docBase + docLeaf); // bits already requested
+    else builder.grow(1).add(docBase + docLeaf);
     hits++;
   }
 
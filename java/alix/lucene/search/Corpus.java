@@ -51,6 +51,7 @@ import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SparseFixedBitSet;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -64,6 +65,11 @@ import alix.lucene.Alix;
  * can contain multiple “chapters“ (documents). User should maintain unicity of
  * his bookdids. These bookids allow to keep a stable reference between
  * different lucene index states. They can be stored as a json string.
+ * 
+ * <p>
+ * The docs are stored in a {@link BitSet} chosen by density (see {@link DocSets#compact(BitSet)}),
+ * a corpus of a few books costs the size of its docs, not of the index.
+ * </p>
  */
 public class Corpus
 {
@@ -75,8 +81,8 @@ public class Corpus
   private final Alix alix;
   /** Max number of docs */
   private final int maxDoc;
-  /** The bitset */
-  private final BitSet docs;
+  /** The bitset, representation may change with the count of docs */
+  private BitSet docs;
   /** Optional description for the corpus */
   private String desc;
 
@@ -99,7 +105,7 @@ public class Corpus
     IndexReader reader = alix.reader();
     this.maxDoc = reader.maxDoc();
     this.name = name;
-    this.docs = new FixedBitSet(maxDoc);
+    this.docs = new SparseFixedBitSet(maxDoc);
   }
 
   /**
@@ -116,7 +122,7 @@ public class Corpus
     this.field = field;
     IndexReader reader = alix.reader();
     this.maxDoc = reader.maxDoc();
-    this.docs = new FixedBitSet(maxDoc);
+    this.docs = new SparseFixedBitSet(maxDoc);
     JSONObject jsobj = new JSONObject(json);
     name = jsobj.getString("name");
     JSONArray jsarr = jsobj.getJSONArray("books");
@@ -129,7 +135,8 @@ public class Corpus
   }
   
   /**
-   * Provide the documents as a bitset.
+   * Provide the documents as a bitset. The object may be replaced
+   * after a modification of the corpus ({@link #add(String)}, {@link #remove(String)}).
    * @return
    */
   public BitSet bits()
@@ -230,6 +237,7 @@ public class Corpus
     IndexSearcher searcher = alix.searcher();
     CollectorBits collector = new AddBits();
     searcher.search(q, collector);
+    docs = DocSets.compact(docs);
     return collector.hits;
   }
 
@@ -241,6 +249,7 @@ public class Corpus
     IndexSearcher searcher = alix.searcher();
     CollectorBits collector = new RemoveBits();
     searcher.search(q, collector);
+    docs = DocSets.compact(docs);
     return collector.hits;
   }
 
@@ -260,6 +269,29 @@ public class Corpus
     return removeBits(new TermQuery(new Term(field, bookid)));
   }
 
+  /**
+   * Docs of this corpus also in another set (ex: another corpus, results of a query).
+   * 
+   * @param bits
+   * @return A new set.
+   */
+  public BitSet and(final BitSet bits)
+  {
+    return DocSets.and(docs, bits);
+  }
+
+  /**
+   * Docs of this corpus or in another set (ex: another corpus).
+   * 
+   * @param bits
+   * @return A new set.
+   * @throws IOException 
+   */
+  public BitSet or(final BitSet bits) throws IOException
+  {
+    return DocSets.or(docs, bits);
+  }
+
   /**
    * Local collector used to add docId to the vector.
    */
@@ -58,6 +58,8 @@ public class CorpusQuery extends Query
   final BitSet corpus;
   /** Name of the corpus, unique for a user */
   final String name;
+  /** Count of docs in the corpus, for the cost of iterators */
+  final long cost;
   /**
    * Build the query with a BitSet of docids, and a name, used as a key for caching.
    * @param name
@@ -66,12 +68,14 @@ public class CorpusQuery extends Query
   public CorpusQuery(final String name, final BitSet corpus) {
     this.name = name;
     this.corpus = corpus;
+    this.cost = corpus.approximateCardinality();
   }
   
   /**
-   * An iterator on a global index reader bitSet returning doc ids local to a leaf context.
+   * An iterator on a global index reader bitSet returning doc ids local to a leaf context,
+   * jumping to the next set bit.
    */
-  public class LeafBitsIterator extends DocIdSetIterator {
+  public static class LeafBitsIterator extends DocIdSetIterator {
     /** The global Index reader BitSet for the corpus */
     final BitSet corpus;
     /** Start docId in the global index BitSet */
@@ -80,14 +84,15 @@ public class CorpusQuery extends Query
     final int docMax;
     /** Current id in the context leaf */
     private int docLeaf = -1;
-    /** Required but not used field */
-    final int cost;
+    /** Count of docs in the corpus, used to lead intersections */
+    final long cost;
 
-    LeafBitsIterator(final LeafReaderContext context, final BitSet corpus) {
+    LeafBitsIterator(final LeafReaderContext context, final BitSet corpus, final long cost) {
       this.corpus = corpus;
-      this.cost = corpus.length(); // not really meaningfull
+      this.cost = cost;
       this.docBase = context.docBase;
-      this.docMax = context.reader().maxDoc();
+      // docs of the leaf may be out of the corpus (ex: a corpus built on a previous state of index)
+      this.docMax = Math.max(0, Math.min(context.reader().maxDoc(), corpus.length() - docBase));
     }
     @Override
     public int docID() {
@@ -125,7 +130,7 @@ public class CorpusQuery extends Query
       }
       @Override
       public Scorer scorer(LeafReaderContext context) throws IOException {
-        DocIdSetIterator docIt = new LeafBitsIterator(context, corpus);
+        DocIdSetIterator docIt = new LeafBitsIterator(context, corpus, cost);
         return new ConstantScoreScorer(this, score(), scoreMode, docIt);
       }
 
@@ -147,19 +152,24 @@ public class CorpusQuery extends Query
             DummyScorer scorer = new DummyScorer();
             scorer.score = score;
             collector.setScorer(scorer);
-            int docId = docBase + min;
-            for (int docLeaf = min; docLeaf < max; ++docLeaf) {
+            // jump to the docs of the corpus
+            final int end = Math.min(max, corpus.length() - docBase);
+            for (int docLeaf = next(min, end); docLeaf < end; docLeaf = next(docLeaf + 1, end)) {
               scorer.doc = docLeaf;
-              if (acceptDocs == null || acceptDocs.get(docLeaf)) {
-                if (corpus.get(docId)) collector.collect(docLeaf);
-              }
-              docId++; // faster than addition
+              if (acceptDocs == null || acceptDocs.get(docLeaf)) collector.collect(docLeaf);
             }
             return max == maxDoc ? DocIdSetIterator.NO_MORE_DOCS : max;
           }
+          /**
+           * Next doc of the leaf in the corpus, from a doc of the leaf, or end.
+           */
+          private int next(final int docLeaf, final int end) {
+            if (docLeaf >= end) return end;
+            return Math.min(end, corpus.nextSetBit(docBase + docLeaf) - docBase);
+          }
           @Override
           public long cost() {
-            return maxDoc;
+            return cost;
           }
         };
       }
@@ -456,7 +456,6 @@ public class Doc
     Rail rail = new Rail(tvek, include, null);
     Token[] toks = rail.toks;
     // group tokens for expression ?
-    System.out.println(include.getSize());
     // do better testing here
     if(expressions) toks = rail.group(gap);
     // no token or expression found
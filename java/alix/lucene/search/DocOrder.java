@@ -0,0 +1,225 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Sort a set of docIds according to a lucene {@link Sort}, with the doc values
+ * of the sort fields, without a search and a priority queue of {@link org.apache.lucene.search.ScoreDoc}. 
+ * Useful to order all the docs of a type (ex: books), without a limit
+ * of size like for a {@link org.apache.lucene.search.TopFieldDocs}.
+ * Results are the same as a search with this sort, ties are broken by docId.
+ * 
+ * <p>
+ * Supported sort fields: {@link SortField.Type#DOC}, {@link SortField.Type#INT}, 
+ * {@link SortField.Type#LONG}, {@link SortField.Type#FLOAT}, {@link SortField.Type#DOUBLE}
+ * ({@link NumericDocValues}), {@link SortField.Type#STRING} ({@link SortedDocValues}).
+ * </p>
+ */
+public class DocOrder
+{
+  /** Avoid instantiation, static tools */
+  private DocOrder()
+  {
+  }
+
+  /**
+   * Test if all fields of a sort are supported.
+   * 
+   * @param sort
+   * @return
+   */
+  public static boolean supports(final Sort sort)
+  {
+    for (SortField field : sort.getSort()) {
+      switch (field.getType()) {
+        case DOC:
+        case INT:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+        case STRING:
+          continue;
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sort docIds in place.
+   * 
+   * @param reader The reader of the docIds.
+   * @param docs DocIds in ascending order (ex: from postings), will be sorted.
+   * @param sort Fields should be supported, see {@link #supports(Sort)}.
+   * @return The docs array, sorted.
+   * @throws IOException
+   */
+  public static int[] sort(final IndexReader reader, final int[] docs, final Sort sort) throws IOException
+  {
+    final SortField[] fields = sort.getSort();
+    final int size = docs.length;
+    final int width = fields.length;
+    // sort keys by field, in the order of the docs
+    final long[][] keys = new long[width][];
+    final boolean[] reverse = new boolean[width];
+    for (int f = 0; f < width; f++) {
+      keys[f] = keys(reader, docs, fields[f]);
+      reverse[f] = fields[f].getReverse();
+    }
+    new IntroSorter() {
+      /** Keys of the pivot */
+      final long[] pivot = new long[width];
+      /** DocId of the pivot */
+      int pivotDoc;
+
+      @Override
+      protected void swap(int i, int j)
+      {
+        int doc = docs[i];
+        docs[i] = docs[j];
+        docs[j] = doc;
+        for (int f = 0; f < width; f++) {
+          long[] fieldKeys = keys[f];
+          long key = fieldKeys[i];
+          fieldKeys[i] = fieldKeys[j];
+          fieldKeys[j] = key;
+        }
+      }
+
+      @Override
+      protected int compare(int i, int j)
+      {
+        for (int f = 0; f < width; f++) {
+          int cmp = Long.compare(keys[f][i], keys[f][j]);
+          if (cmp != 0) return reverse[f] ? -cmp : cmp;
+        }
+        return Integer.compare(docs[i], docs[j]);
+      }
+
+      @Override
+      protected void setPivot(int i)
+      {
+        for (int f = 0; f < width; f++) pivot[f] = keys[f][i];
+        pivotDoc = docs[i];
+      }
+
+      @Override
+      protected int comparePivot(int j)
+      {
+        for (int f = 0; f < width; f++) {
+          int cmp = Long.compare(pivot[f], keys[f][j]);
+          if (cmp != 0) return reverse[f] ? -cmp : cmp;
+        }
+        return Integer.compare(pivotDoc, docs[j]);
+      }
+    }.sort(0, size);
+    return docs;
+  }
+
+  /**
+   * Get a sortable key for each doc, according to the type of the sort field
+   * (ascending order, the reverse is done by the comparison).
+   */
+  private static long[] keys(final IndexReader reader, final int[] docs, final SortField field) throws IOException
+  {
+    final int size = docs.length;
+    final long[] keys = new long[size];
+    final Object missing = field.getMissingValue();
+    switch (field.getType()) {
+      case DOC:
+        for (int i = 0; i < size; i++) keys[i] = docs[i];
+        return keys;
+      case STRING: {
+        // global ords for all segments, missing first by default, like lucene
+        final long missingKey = (missing == SortField.STRING_LAST) ? Long.MAX_VALUE : -1;
+        SortedDocValues values = MultiDocValues.getSortedValues(reader, field.getField());
+        for (int i = 0; i < size; i++) {
+          if (values != null && values.advanceExact(docs[i])) keys[i] = values.ordValue();
+          else keys[i] = missingKey;
+        }
+        return keys;
+      }
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE: {
+        // missing value is 0 by default, like lucene
+        final long missingKey = sortable(field.getType(), missing, 0);
+        NumericDocValues values = MultiDocValues.getNumericValues(reader, field.getField());
+        for (int i = 0; i < size; i++) {
+          if (values != null && values.advanceExact(docs[i])) keys[i] = sortable(field.getType(), null, values.longValue());
+          else keys[i] = missingKey;
+        }
+        return keys;
+      }
+      default:
+        throw new IllegalArgumentException("Sort field type not supported: " + field);
+    }
+  }
+
+  /**
+   * Convert a value of a numeric doc value, or a missing value, to a long
+   * in the same order as the type.
+   */
+  private static long sortable(final SortField.Type type, final Object missing, final long value)
+  {
+    switch (type) {
+      case INT:
+        if (missing != null) return ((Number) missing).intValue();
+        return (int) value;
+      case LONG:
+        if (missing != null) return ((Number) missing).longValue();
+        return value;
+      case FLOAT:
+        if (missing != null) return NumericUtils.floatToSortableInt(((Number) missing).floatValue());
+        return NumericUtils.floatToSortableInt(Float.intBitsToFloat((int) value));
+      case DOUBLE:
+        if (missing != null) return NumericUtils.doubleToSortableLong(((Number) missing).doubleValue());
+        return NumericUtils.doubleToSortableLong(Double.longBitsToDouble(value));
+      default:
+        return value;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConjunctionDISI;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SparseFixedBitSet;
+
+/**
+ * Tools for sets of docIds (a corpus, a filter), as lucene {@link BitSet}, 
+ * in a representation chosen by density: a {@link SparseFixedBitSet} for few docs
+ * (blocks of 4096 docs, only non empty words are stored), or a {@link FixedBitSet}
+ * (a bit for each doc of the index). 
+ * The threshold is the one of {@link BitSet#of(DocIdSetIterator, int)}, 1/128 of the docs.
+ * Filters given to {@link Freqs}, {@link Facet} or {@link alix.lucene.util.Cooc} are intersected
+ * with postings by skipping, see {@link #filter(DocIdSetIterator, BitSet, LeafReaderContext, long)}.
+ */
+public final class DocSets
+{
+  /** A filter leads an intersection if its cost by this factor is less than the docs, see {@link #leadCost(BitSet, LeafReaderContext, long)} */
+  private static final int LEAD = 8;
+  /** Avoid instantiation */
+  private DocSets()
+  {
+  }
+
+  /**
+   * Threshold of cardinality under which a sparse set is preferred.
+   */
+  private static int threshold(final int maxDoc)
+  {
+    return maxDoc >>> 7;
+  }
+
+  /**
+   * Get an empty set for an expected count of docs.
+   * 
+   * @param maxDoc Size of the set.
+   * @param expected Expected cardinality.
+   * @return
+   */
+  public static BitSet create(final int maxDoc, final long expected)
+  {
+    if (expected < threshold(maxDoc)) return new SparseFixedBitSet(maxDoc);
+    return new FixedBitSet(maxDoc);
+  }
+
+  /**
+   * Get a set in the representation fitting its density, the same if already relevant, 
+   * or a copy. A sparse set becomes fixed over the threshold, a fixed set becomes 
+   * sparse under the half of the threshold (to not switch back and forth
+   * for a set modified around the threshold).
+   * 
+   * @param bits
+   * @return
+   * @throws IOException
+   */
+  public static BitSet compact(final BitSet bits) throws IOException
+  {
+    if (bits == null) return null;
+    final int maxDoc = bits.length();
+    final int threshold = threshold(maxDoc);
+    if (bits instanceof SparseFixedBitSet) {
+      final int card = bits.approximateCardinality();
+      if (card < threshold) return bits;
+      return copy(bits, new FixedBitSet(maxDoc), card);
+    }
+    if (bits instanceof FixedBitSet) {
+      final int card = bits.cardinality();
+      if (card >= threshold / 2) return bits;
+      return copy(bits, new SparseFixedBitSet(maxDoc), card);
+    }
+    return bits;
+  }
+
+  /**
+   * A copy of a set, in the representation fitting its density.
+   * 
+   * @param bits
+   * @return null if bits is null.
+   * @throws IOException
+   */
+  public static BitSet copy(final BitSet bits) throws IOException
+  {
+    if (bits == null) return null;
+    final int card = bits.cardinality();
+    return copy(bits, create(bits.length(), card), card);
+  }
+
+  /**
+   * Test if two sets have the same docs, whatever their representation.
+   * 
+   * @param a
+   * @param b
+   * @return true if both are null.
+   */
+  public static boolean same(final BitSet a, final BitSet b)
+  {
+    if (a == b) return true;
+    if (a == null || b == null) return false;
+    int docA = next(a, 0);
+    int docB = next(b, 0);
+    while (docA == docB) {
+      if (docA == DocIdSetIterator.NO_MORE_DOCS) return true;
+      docA = next(a, docA + 1);
+      docB = next(b, docB + 1);
+    }
+    return false;
+  }
+
+  /**
+   * Next doc of a set from an index, or {@link DocIdSetIterator#NO_MORE_DOCS}.
+   */
+  private static int next(final BitSet bits, final int from)
+  {
+    return (from < bits.length()) ? bits.nextSetBit(from) : DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   * Copy docs from a set to another.
+   */
+  private static BitSet copy(final BitSet src, final BitSet dst, final long cost) throws IOException
+  {
+    dst.or(new BitSetIterator(src, cost));
+    return dst;
+  }
+
+  /**
+   * Intersection of two sets, a new set.
+   * The docs of the smaller set are tested in the other.
+   * 
+   * @param a
+   * @param b
+   * @return
+   */
+  public static BitSet and(final BitSet a, final BitSet b)
+  {
+    final int maxDoc = Math.max(a.length(), b.length());
+    final int cardA = a.approximateCardinality();
+    final int cardB = b.approximateCardinality();
+    final BitSet small = (cardA <= cardB) ? a : b;
+    final BitSet big = (small == a) ? b : a;
+    final BitSet and = create(maxDoc, Math.min(cardA, cardB));
+    final int max = Math.min(small.length(), big.length());
+    for (int docId = (max > 0) ? small.nextSetBit(0) : DocIdSetIterator.NO_MORE_DOCS; 
+        docId < max; 
+        docId = (docId + 1 < max) ? small.nextSetBit(docId + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+      if (big.get(docId)) and.set(docId);
+    }
+    return and;
+  }
+
+  /**
+   * Union of two sets, a new set.
+   * 
+   * @param a
+   * @param b
+   * @return
+   * @throws IOException
+   */
+  public static BitSet or(final BitSet a, final BitSet b) throws IOException
+  {
+    if (a.length() != b.length()) throw new IllegalArgumentException("Not the same size, a.length()=" + a.length() + " b.length()=" + b.length());
+    final int cardA = a.approximateCardinality();
+    final int cardB = b.approximateCardinality();
+    final BitSet or = create(a.length(), (long) cardA + cardB);
+    or.or(new BitSetIterator(a, cardA));
+    or.or(new BitSetIterator(b, cardB));
+    return or;
+  }
+
+  /**
+   * Iterator on the docs of a set of the index, for a leaf (docIds of the leaf).
+   * 
+   * @param bits A set of docIds for the index.
+   * @param context The leaf.
+   * @param cost Cardinality of the set, for intersections, see {@link BitSet#approximateCardinality()}.
+   * @return
+   */
+  public static DocIdSetIterator leaf(final BitSet bits, final LeafReaderContext context, final long cost)
+  {
+    return new CorpusQuery.LeafBitsIterator(context, bits, cost);
+  }
+
+  /**
+   * Iterator on the docs of a leaf iterator (ex: postings) which are also in a filter, 
+   * the filter leads if it is much less costly, see {@link #leadCost(BitSet, LeafReaderContext, long)}.
+   * If the filter leads, the docs iterator advances to its docs (ex: a small corpus skips the postings of a frequent term), else the
+   * docs are tested in the filter (a bitset has random access, no need to advance it). 
+   * The source iterator is positioned on the docs returned, its data are available (ex: freq).
+   * 
+   * @param docs An iterator of docIds of a leaf, not yet started.
+   * @param filter A set of docIds for the index, or null.
+   * @param context The leaf.
+   * @param cost Cardinality of the filter, see {@link BitSet#approximateCardinality()}.
+   * @return The docs iterator if filter is null.
+   */
+  public static DocIdSetIterator filter(final DocIdSetIterator docs, final BitSet filter, final LeafReaderContext context, final long cost)
+  {
+    if (filter == null) return docs;
+    return new FilterIterator(docs, filter, context, cost);
+  }
+
+  /**
+   * Minimum cost of a leaf iterator (ex: postings, {@link DocIdSetIterator#cost()}) 
+   * for a filter to lead the intersection 
+   * (see {@link #filter(DocIdSetIterator, BitSet, LeafReaderContext, long)}), 
+   * the filter should be much sparser than the docs. An advance() of postings
+   * decodes a block of docs, cheaper than a scan only if it skips many docs.
+   * If not, a loop on the docs testing the filter (random access) 
+   * is faster, without an iterator wrapper (ex: all the terms of a dictionary).
+   * 
+   * @param filter A set of docIds for the index.
+   * @param context The leaf.
+   * @param cost Cardinality of the filter, see {@link BitSet#approximateCardinality()}.
+   * @return Docs with a bigger cost should be intersected by the filter.
+   */
+  public static long leadCost(final BitSet filter, final LeafReaderContext context, final long cost)
+  {
+    return leafCost(filter, context, cost) * LEAD;
+  }
+
+  /**
+   * Estimation of the count of docs of a filter in a leaf.
+   */
+  private static long leafCost(final BitSet filter, final LeafReaderContext context, final long cost)
+  {
+    final int length = Math.max(1, filter.length());
+    return Math.max(1, cost * context.reader().maxDoc() / length);
+  }
+
+  /**
+   * Intersection of a leaf iterator with a bitset of the index, 
+   * lighter than a {@link ConjunctionDISI}, created for each term of a dictionary.
+   */
+  private static final class FilterIterator extends DocIdSetIterator
+  {
+    /** Source iterator */
+    private final DocIdSetIterator docs;
+    /** The global Index reader BitSet for the filter */
+    private final BitSet filter;
+    /** Start docId in the global index BitSet */
+    private final int docBase;
+    /** Max id in the context leaf */
+    private final int docMax;
+    /** Estimation of the count of docs of the filter in the leaf */
+    private final long cost;
+    /** True if the filter leads the intersection */
+    private final boolean filterLeads;
+    /** Current id in the context leaf */
+    private int docLeaf = -1;
+
+    FilterIterator(final DocIdSetIterator docs, final BitSet filter, final LeafReaderContext context, final long cost)
+    {
+      this.docs = docs;
+      this.filter = filter;
+      this.docBase = context.docBase;
+      final int maxDoc = context.reader().maxDoc();
+      // docs of the leaf may be out of the filter (ex: a filter built on a previous state of index)
+      this.docMax = Math.max(0, Math.min(maxDoc, filter.length() - docBase));
+      this.cost = Math.min(docs.cost(), leafCost(filter, context, cost));
+      this.filterLeads = (leadCost(filter, context, cost) < docs.cost());
+    }
+
+    @Override
+    public int docID()
+    {
+      return docLeaf;
+    }
+
+    @Override
+    public long cost()
+    {
+      return cost;
+    }
+
+    @Override
+    public int nextDoc() throws IOException
+    {
+      if (filterLeads) return advance(docLeaf + 1);
+      return docLeaf = test(docs.nextDoc());
+    }
+
+    @Override
+    public int advance(int target) throws IOException
+    {
+      if (!filterLeads) return docLeaf = test(docs.advance(target));
+      while (true) {
+        if (target >= docMax) return docLeaf = NO_MORE_DOCS;
+        final int docTest = filter.nextSetBit(docBase + target) - docBase;
+        if (docTest >= docMax) return docLeaf = NO_MORE_DOCS;
+        int doc = docs.docID();
+        if (doc < docTest) doc = docs.advance(docTest);
+        if (doc == docTest) return docLeaf = doc;
+        if (doc == NO_MORE_DOCS) return docLeaf = NO_MORE_DOCS;
+        target = doc;
+      }
+    }
+
+    /**
+     * From a doc of the source, next doc also in the filter.
+     */
+    private int test(int doc) throws IOException
+    {
+      while (doc < docMax) {
+        if (filter.get(docBase + doc)) return doc;
+        doc = docs.nextDoc();
+      }
+      return NO_MORE_DOCS;
+    }
+  }
+}
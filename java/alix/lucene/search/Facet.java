@@ -33,7 +33,12 @@
 package alix.lucene.search;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.FieldInfo;
@@ -50,14 +55,18 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
 import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
 
 import alix.lucene.Alix;
+import alix.lucene.util.Cache;
+import alix.lucene.util.LeafCache;
 import alix.util.IntList;
 
 /**
@@ -94,7 +103,7 @@ import alix.util.IntList;
  * <p>
  *
  */
-public class Facet
+public class Facet implements Accountable
 {
   /** Name of the field for facets, source key for this dictionary */
   public final String facet;
@@ -110,8 +119,17 @@ public class Facet
   public final long occsAll;
   /** Global number of values for this facet */
   public final int size;
-  /** A table docId => facetId*n, used to get freqs */
-  private final int[][] docFacets;
+  /** 
+   * Start index in {@link #facetIds} by docId, size = maxDoc + 1, facets of a doc are
+   * facetIds[docStart[docId]] to facetIds[docStart[docId + 1]] (exclusive).
+   * Null for a single valued field, see {@link #facetIds}.
+   */
+  private final int[] docStart;
+  /** 
+   * Flat vector of facetIds, by docId if single valued (-1 if no facet for the doc),
+   * or indexed by {@link #docStart} if multi valued.
+   */
+  private final int[] facetIds;
   /** Count of tokens by facet */
   private final long[] facetLength;
   /** Count of docs by facet */
@@ -120,6 +138,10 @@ public class Facet
   private final int[] facetCover;
   /** The reader from which to get freqs */
   private IndexReader reader;
+  /** Optional pool of threads to score terms by leaf, null for sequential */
+  private final ForkJoinPool pool;
+  /** Max count of terms for a task of the parallel scoring, bigger lists are split */
+  private static final int SPLIT = 16;
   /** A cached vector for each docId, size in occurrences */
   // private final int[] docLength;
 
@@ -143,10 +165,12 @@ public class Facet
       throw new IllegalArgumentException("Field \"" + facet + "\", the type "+type+" is not supported as a facet.");
     }
     final BytesRefHash hashDic = new BytesRefHash();
+    // stats of the text field, with the reader on which they are built, for all the facet
+    final Freqs freqs = alix.freqs(text);
     // get a vector of possible docids used as a cover for a facetId
     BitSet coverBits = null;
     if (coverTerm != null) {
-      IndexSearcher searcher = alix.searcher(); // ensure reader or decache
+      IndexSearcher searcher = new IndexSearcher(freqs.reader());
       Query coverQuery = new TermQuery(coverTerm);
       CollectorBits coverCollector = new CollectorBits(searcher);
       searcher.search(coverQuery, coverCollector);
@@ -154,8 +178,14 @@ public class Facet
     }
     this.facet = facet;
     this.text = text;
-    this.reader = alix.reader();
-    docFacets = new int[reader.maxDoc()][];
+    this.reader = freqs.reader();
+    this.pool = alix.forkJoinPool();
+    final int maxDoc = reader.maxDoc();
+    // columnar storage of docId => facetId*n, single valued or compressed rows
+    final int[] docStart;
+    final int[] facetIds;
+    final LeafFacets[] leaves = new LeafFacets[reader.leaves().size()];
+    final int[][] leavesFacetId = new int[leaves.length][]; // by leaf, map ord -> facetId
     int docsAll = 0;
     long occsAll = 0;
     // prepare local arrays to populate with leaf data
@@ -163,31 +193,168 @@ public class Facet
     int[] facetDocs = new int[32];
     int[] facetCover = new int[32];
 
-    int[] docLength = alix.docLength(text); // length of each doc for the text field
+    int[] docLength = freqs.docLength; // length of each doc for the text field
     // this.docLength = docLength;
-    // max int for an array collecttor
-    int ordMax = -1;
+    final LeafCache leafCache = alix.leafCache();
+    final BitSet covers = coverBits;
     for (LeafReaderContext context: reader.leaves()) { // loop on the reader leaves
+      int docBase = context.docBase;
+      // data of the leaf, cached by segment (deleted docs excluded)
+      LeafFacets leafFacets = leafCache.get(context, false, 
+        "Facet" + Cache.SEP + facet + Cache.SEP + text + Cache.SEP + coverTerm, 
+        new Cache.Loader<LeafFacets>() {
+          @Override
+          public LeafFacets load() throws IOException
+          {
+            return new LeafFacets(context, type, facet, docLength, covers);
+          }
+        }
+      );
+      leaves[context.ord] = leafFacets;
+      if (leafFacets == null) continue;
+      docsAll += leafFacets.docsAll;
+      occsAll += leafFacets.occsAll;
+      final int ordMax = leafFacets.ordMax;
+      // build a local map for this leaf to record the ord -> facetId
+      int[] ordFacetId = new int[ordMax];
+      // copy the data fron this leaf to the global dic, and get facetId for it
+      for (int ord = 0; ord < ordMax; ord++) {
+        int facetId = hashDic.add(leafFacets.ordBytes[ord]);
+        // value already given
+        if (facetId < 0) facetId = -facetId - 1;
+        facetCover = ArrayUtil.grow(facetCover, facetId + 1);
+        // if more than one cover by facet, last will replace previous
+        if (leafFacets.leafCover[ord] >= 0) facetCover[facetId] = docBase + leafFacets.leafCover[ord];
+        facetDocs = ArrayUtil.grow(facetDocs, facetId + 1);
+        facetDocs[facetId] += leafFacets.leafDocs[ord];
+        facetLength = ArrayUtil.grow(facetLength, facetId + 1);
+        facetLength[facetId] += leafFacets.leafOccs[ord];
+        ordFacetId[ord] = facetId;
+      }
+      leavesFacetId[context.ord] = ordFacetId;
+    }
+    // global dic has set a unified int id for terms
+    // build a map docId -> facetId*n, used to get freqs from docs found
+    if (type == DocValuesType.SORTED) {
+      docStart = null;
+      facetIds = new int[maxDoc];
+      Arrays.fill(facetIds, -1);
+      for (LeafReaderContext context: reader.leaves()) {
+        final LeafFacets leafFacets = leaves[context.ord];
+        if (leafFacets == null) continue;
+        final int docBase = context.docBase;
+        final int[] ords = leafFacets.ords;
+        final int[] ordFacetId = leavesFacetId[context.ord];
+        for (int docLeaf = 0, max = ords.length; docLeaf < max; docLeaf++) {
+          if (ords[docLeaf] < 0) continue;
+          facetIds[docBase + docLeaf] = ordFacetId[ords[docLeaf]];
+        }
+      }
+    }
+    else {
+      int count = 0;
+      for (LeafFacets leafFacets: leaves) {
+        if (leafFacets != null) count += leafFacets.ords.length;
+      }
+      docStart = new int[maxDoc + 1];
+      facetIds = new int[count];
+      int pos = 0;
+      for (LeafReaderContext context: reader.leaves()) {
+        final LeafFacets leafFacets = leaves[context.ord];
+        final int docBase = context.docBase;
+        if (leafFacets == null) { // no facets for this leaf, empty rows
+          Arrays.fill(docStart, docBase, docBase + context.reader().maxDoc(), pos);
+          continue;
+        }
+        final int[] ords = leafFacets.ords;
+        final int[] leafStart = leafFacets.docStart;
+        final int[] ordFacetId = leavesFacetId[context.ord];
+        for (int docLeaf = 0, max = leafStart.length - 1; docLeaf < max; docLeaf++) {
+          docStart[docBase + docLeaf] = pos;
+          for (int i = leafStart[docLeaf], end = leafStart[docLeaf + 1]; i < end; i++) {
+            facetIds[pos++] = ordFacetId[ords[i]];
+          }
+        }
+      }
+      docStart[maxDoc] = pos;
+    }
+    this.docStart = docStart;
+    this.facetIds = facetIds;
+    // this should avoid some opcode upper
+    this.docsAll = docsAll;
+    this.occsAll = occsAll;
+    this.hashDic = hashDic;
+    this.size = hashDic.size();
+    this.facetLength = facetLength;
+    this.facetDocs = facetDocs;
+    this.facetCover = facetCover;
+  }
+
+  
+  
+  /**
+   * Data of a facet for a segment, by ord of the facet values in the leaf,
+   * merged in the global dictionary. 
+   */
+  private static class LeafFacets implements Accountable
+  {
+    /** Count of facet values in the leaf */
+    final int ordMax;
+    /** Facet values by ord */
+    final BytesRef[] ordBytes;
+    /** Doc counts by ord */
+    final int[] leafDocs;
+    /** Occ counts by ord */
+    final long[] leafOccs;
+    /** Cover docId of the leaf by ord, -1 if none */
+    final int[] leafCover;
+    /** Start index in {@link #ords} by docId of the leaf (size = maxDoc + 1), null if single valued */
+    final int[] docStart;
+    /** Ords by docId of the leaf if single valued (-1 if none), or flat vector indexed by {@link #docStart} */
+    int[] ords;
+    /** Count of docs with occurrences */
+    int docsAll;
+    /** Count of occurrences */
+    long occsAll;
+
+    LeafFacets(final LeafReaderContext context, final DocValuesType type, final String facet, 
+        final int[] docLength, final BitSet coverBits) throws IOException
+    {
       int docBase = context.docBase;
       LeafReader leaf = context.reader();
       // get a doc iterator for the facet field
       DocIdSetIterator docs4terms = null;
+      int ordMax = 0;
       if (type == DocValuesType.SORTED) {
         docs4terms = leaf.getSortedDocValues(facet);
-        if (docs4terms == null) continue;
-        ordMax = (int)((SortedDocValues)docs4terms).getValueCount();
+        if (docs4terms != null) ordMax = (int)((SortedDocValues)docs4terms).getValueCount();
       }
       else if (type == DocValuesType.SORTED_SET) {
         docs4terms = leaf.getSortedSetDocValues(facet);
-        if (docs4terms == null) continue;
-        ordMax = (int)((SortedSetDocValues)docs4terms).getValueCount();
+        if (docs4terms != null) ordMax = (int)((SortedSetDocValues)docs4terms).getValueCount();
       }
+      this.ordMax = ordMax;
+      ordBytes = new BytesRef[ordMax];
       // record doc counts for each term by a temp ord index
-      int[] leafDocs = new int[ordMax];
+      leafDocs = new int[ordMax];
       // record occ counts for each term by a temp ord index
-      long[] leafOccs = new long[ordMax];
+      leafOccs = new long[ordMax];
       // record cover docId for each term by a temp ord index
-      int[] leafCover = new int[ordMax];
+      leafCover = new int[ordMax];
+      Arrays.fill(leafCover, -1);
+      final int maxDoc = leaf.maxDoc();
+      if (type == DocValuesType.SORTED) {
+        docStart = null;
+        ords = new int[maxDoc];
+        Arrays.fill(ords, -1);
+      }
+      else {
+        docStart = new int[maxDoc + 1];
+        ords = new int[0];
+      }
+      if (docs4terms == null) return;
+      IntList flat = new IntList(); // a growable int array
+      int next = 0; // next docLeaf for which to set a start
       // loop on docs
       int docLeaf;
       Bits live = leaf.getLiveDocs();
@@ -198,9 +365,10 @@ public class Facet
         int ord;
         if (type == DocValuesType.SORTED) {
           ord = ((SortedDocValues)docs4terms).ordValue();
+          ords[docLeaf] = ord;
           // doc is a cover
           if (coverBits != null && coverBits.get(docId)) {
-            leafCover[ord] = docId;
+            leafCover[ord] = docLeaf;
           }
           // do not add stats for empty docs
           if(docOccs > 0) { 
@@ -209,11 +377,13 @@ public class Facet
           }
         }
         else if (type == DocValuesType.SORTED_SET) {
+          for (; next <= docLeaf; next++) docStart[next] = flat.size();
           SortedSetDocValues it = (SortedSetDocValues)docs4terms;
           while ((ord = (int)it.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+            flat.push(ord);
             // doc is a cover, record it and do not add to stats
             if (coverBits != null && coverBits.get(docId)) {
-              leafCover[ord] = docId;
+              leafCover[ord] = docLeaf;
             }
             // do not add stats for empty docs
             if(docOccs > 0) { 
@@ -226,60 +396,34 @@ public class Facet
         docsAll++; // one more doc for this facet
         occsAll += docOccs; // count of tokens for this doc
       }
-      BytesRef bytes = null;
-      // build a local map for this leaf to record the ord -> facetId
-      int[] ordFacetId = new int[ordMax];
-      // copy the data fron this leaf to the global dic, and get facetId for it
+      if (type == DocValuesType.SORTED_SET) {
+        for (; next <= maxDoc; next++) docStart[next] = flat.size();
+        ords = flat.toArray();
+      }
+      // copy the values of the facet
       for (int ord = 0; ord < ordMax; ord++) {
+        BytesRef bytes = null;
         if (type == DocValuesType.SORTED) bytes = ((SortedDocValues)docs4terms).lookupOrd(ord);
         else if (type == DocValuesType.SORTED_SET) bytes = ((SortedSetDocValues)docs4terms).lookupOrd(ord);
-        int facetId = hashDic.add(bytes);
-        // value already given
-        if (facetId < 0) facetId = -facetId - 1;
-        facetCover = ArrayUtil.grow(facetCover, facetId + 1);
-        // if more than one cover by facet, last will replace previous
-        facetCover[facetId] = leafCover[ord];
-        facetDocs = ArrayUtil.grow(facetDocs, facetId + 1);
-        facetDocs[facetId] += leafDocs[ord];
-        facetLength = ArrayUtil.grow(facetLength, facetId + 1);
-        facetLength[facetId] += leafOccs[ord];
-        ordFacetId[ord] = facetId;
+        ordBytes[ord] = BytesRef.deepCopyOf(bytes);
       }
-      // global dic has set a unified int id for terms
-      // build a map docId -> facetId*n, used to get freqs from docs found
-      // restart the loop on docs
-      if (type == DocValuesType.SORTED) docs4terms = leaf.getSortedDocValues(facet);
-      else if (type == DocValuesType.SORTED_SET) docs4terms = leaf.getSortedSetDocValues(facet);
-      IntList row = new IntList(); // a growable imt array
-      while ((docLeaf = docs4terms.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-        if (live != null && !live.get(docLeaf)) continue; // deleted doc
-        int ord;
-        if (type == DocValuesType.SORTED) {
-          ord = ((SortedDocValues)docs4terms).ordValue();
-          docFacets[docBase + docLeaf] = new int[]{ordFacetId[ord]};
-        }
-        else if (type == DocValuesType.SORTED_SET) {
-          row.reset();
-          SortedSetDocValues it = (SortedSetDocValues)docs4terms;
-          while ((ord = (int)it.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-            row.push(ordFacetId[ord]);
-          }
-          docFacets[docBase + docLeaf] = row.toArray();
-        }
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+      long bytes = RamUsageEstimator.shallowSizeOfInstance(LeafFacets.class);
+      bytes += RamUsageEstimator.shallowSizeOf(ordBytes);
+      for (BytesRef ref : ordBytes) {
+        if (ref != null) bytes += RamUsageEstimator.shallowSizeOf(ref) + RamUsageEstimator.sizeOf(ref.bytes);
       }
+      bytes += RamUsageEstimator.sizeOf(leafDocs) + RamUsageEstimator.sizeOf(leafOccs) + RamUsageEstimator.sizeOf(leafCover);
+      if (docStart != null) bytes += RamUsageEstimator.sizeOf(docStart);
+      if (ords != null) bytes += RamUsageEstimator.sizeOf(ords);
+      return bytes;
     }
-    // this should avoid some opcode upper
-    this.docsAll = docsAll;
-    this.occsAll = occsAll;
-    this.hashDic = hashDic;
-    this.size = hashDic.size();
-    this.facetLength = facetLength;
-    this.facetDocs = facetDocs;
-    this.facetCover = facetCover;
   }
 
-  
-  
   /**
    * Returns list of all facets in orthographic order
    * @return
@@ -302,10 +446,12 @@ public class Facet
     // loop on doc in order
     for (int n = 0, docs = scoreDocs.length; n < docs ; n ++) {
       final int docId = scoreDocs[n].doc;
-      int[] facets = docFacets[docId]; // get the facets of this doc
-      if (facets == null) continue; // could be null if doc not faceted
-      for (int i = 0, length = facets.length; i < length; i++) {
-        final int facetId = facets[i];
+      // get the facets of this doc, could be empty if doc not faceted
+      final int from = (docStart == null) ? docId : docStart[docId];
+      final int to = (docStart == null) ? docId + 1 : docStart[docId + 1];
+      for (int i = from; i < to; i++) {
+        final int facetId = facetIds[i];
+        if (facetId < 0) continue; // single valued, no facet
         if (nos[facetId] > -0) continue; // already set
         nos[facetId] = n;
       }
@@ -314,11 +460,18 @@ public class Facet
   }
   
   /**
-   * Returns a dictionary of the terms of a facet, with scores and other stats.   * @return
+   * Returns a dictionary of the terms of a facet, with scores and other stats.
+   * If the Alix instance has a pool of threads (see {@link Alix#parallelism(int)}),
+   * the scoring of a list of terms is parallel, see {@link #topTerms(BitSet, TermList, Scorer, ForkJoinPool)}.
+   * 
+   * @return
    * @throws IOException
    */
   public TopTerms topTerms(final BitSet filter, final TermList terms, Scorer scorer) throws IOException
   {
+    if (pool != null && pool.getParallelism() > 1 && !pool.isShutdown() && terms != null && terms.sizeNotNull() != 0) {
+      return topTerms(filter, terms, scorer, pool);
+    }
     TopTerms dic = new TopTerms(hashDic);
     dic.setLengths(facetLength);
     dic.setCovers(facetCover);
@@ -335,6 +488,7 @@ public class Facet
       // loop on each term of the query to update the score vector
       int facetMatch = 0; // number of matched facets by this query
       long occsMatch = 0; // total occurrences matched
+      final long cost = (filter == null) ? 0 : filter.approximateCardinality();
       // loop first on the reader leaves, opening has a disk cost
       for (LeafReaderContext context : reader.leaves()) {
         int docBase = context.docBase;
@@ -345,19 +499,30 @@ public class Facet
           // get the ocurrence count for the query in each doc
           PostingsEnum postings = leaf.postings(term);
           if (postings == null) continue;
+          // docs of the term in the metadata filter, by skipping
+          final DocIdSetIterator docs = DocSets.filter(postings, filter, context, cost);
           int docLeaf;
           long freq;
           // loop on the docs for this term
-          while ((docLeaf = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          while ((docLeaf = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
             int docId = docBase + docLeaf;
-            if (filter != null && !filter.get(docId)) continue; // document not in the metadata fillter
             if ((freq = postings.freq()) == 0) continue; // no occurrence for this term (?)
             final boolean docSeen = docMap.get(docId);
-            int[] facets = docFacets[docId]; // get the facets of this doc
-            if (facets == null) continue; // could be null if doc matching but not faceted
+            // get the facets of this doc
+            final int from, to;
+            if (docStart != null) {
+              from = docStart[docId];
+              to = docStart[docId + 1];
+            }
+            else if (facetIds[docId] >= 0) {
+              from = docId;
+              to = docId + 1;
+            }
+            else continue; // doc matching but not faceted
+            if (from == to) continue; // doc matching but not faceted
             occsMatch += freq;
-            for (int i = 0, length = facets.length; i < length; i++) {
-              int facetId = facets[i];
+            for (int i = from; i < to; i++) {
+              final int facetId = facetIds[i];
               // first match for this facet, increment the counter of matched facets
               if (occs[facetId] == 0) {
                 facetMatch++;
@@ -380,26 +545,18 @@ public class Facet
     // Filter of docs, 
     else if (filter != null) {
       int[] hits = new int[size];
-      // loop on the docs of the filter
-      // loop on the reader leaves
-      for (LeafReaderContext ctx : reader.leaves()) { // loop on the reader leaves
-        int docBase = ctx.docBase;
-        LeafReader leaf = ctx.reader();
-        // get a doc iterator for the facet field
-        SortedSetDocValues docs4terms = leaf.getSortedSetDocValues(facet);
-        if (docs4terms == null) continue;
-
-        // loop on the docs with a facet
-        int docLeaf;
-        while ((docLeaf = docs4terms.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-          int docId = docBase + docLeaf;
-          if (!filter.get(docId)) continue;// not in the filter do not count
-          int[] facets = docFacets[docId]; // get the facets of this doc
-          // if (facets == null) continue; // should not arrive, wait and see
-          for (int i = 0, length = facets.length; i < length; i++) {
-            int facetId = facets[i];
-            hits[facetId]++; // weight is here in docs
-          }
+      // loop on the docs of the filter, facets are in memory
+      final int maxDoc = Math.min(filter.length(), reader.maxDoc());
+      for (int docId = (maxDoc > 0) ? filter.nextSetBit(0) : DocIdSetIterator.NO_MORE_DOCS; 
+          docId < maxDoc;
+          docId = (docId + 1 < maxDoc) ? filter.nextSetBit(docId + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+        if (docStart == null) {
+          final int facetId = facetIds[docId];
+          if (facetId >= 0) hits[facetId]++; // weight is here in docs
+          continue;
+        }
+        for (int i = docStart[docId], to = docStart[docId + 1]; i < to; i++) {
+          hits[facetIds[i]]++; // weight is here in docs
         }
       }
       dic.setHits(hits);
@@ -408,6 +565,221 @@ public class Facet
     return dic;
   }
 
+  /**
+   * Same as {@link #topTerms(BitSet, TermList, Scorer)} for a list of terms, computed in parallel.
+   * Work is split by leaf, and by ranges of terms for long lists (ex: wildcard queries).
+   * Tasks count occurrences by facet, and record the matched docs, in the arrays of the thread
+   * running them (see {@link ThreadScore}), so that no state is shared between threads,
+   * and arrays are allocated by thread, not by task.
+   * Hits by facet are counted at the end, from the union of matched docs of the threads,
+   * a doc is counted once for all terms, like in the sequential version.
+   * 
+   * @param filter Optional, a set of docs.
+   * @param terms A list of terms, not empty.
+   * @param scorer Optional, default is BM25.
+   * @param pool A pool of threads.
+   * @return
+   * @throws IOException
+   */
+  public TopTerms topTerms(final BitSet filter, final TermList terms, Scorer scorer, final ForkJoinPool pool) throws IOException
+  {
+    TopTerms dic = new TopTerms(hashDic);
+    dic.setLengths(facetLength);
+    dic.setCovers(facetCover);
+    dic.setDocs(facetDocs);
+    ArrayList<Term> list = new ArrayList<Term>();
+    for (Term term : terms) {
+      if (term != null) list.add(term);
+    }
+    final Term[] termArray = list.toArray(new Term[list.size()]);
+    // results by thread
+    final ConcurrentHashMap<Thread, ThreadScore> results = new ConcurrentHashMap<>();
+    ArrayList<LeafScore> tasks = new ArrayList<LeafScore>();
+    for (LeafReaderContext context : reader.leaves()) {
+      tasks.add(new LeafScore(context, termArray, 0, termArray.length, filter, results));
+    }
+    try {
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected void compute()
+        {
+          invokeAll(tasks);
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    // reduction, sequential
+    int[] hits = new int[size];
+    int[] occs = null;
+    long occsMatch = 0;
+    // union of the docs matched by the threads, to count each doc once
+    FixedBitSet matched = null;
+    for (ThreadScore result : results.values()) {
+      occsMatch += result.occsMatch;
+      if (occs == null) {
+        occs = result.occs;
+        matched = result.matched;
+        continue;
+      }
+      for (int facetId = 0; facetId < size; facetId++) {
+        occs[facetId] += result.occs[facetId];
+      }
+      matched.or(result.matched);
+    }
+    if (occs == null) occs = new int[size]; // no match
+    if (matched != null) {
+      final int maxDoc = matched.length();
+      for (int docId = (maxDoc > 0) ? matched.nextSetBit(0) : DocIdSetIterator.NO_MORE_DOCS; 
+          docId < maxDoc;
+          docId = (docId + 1 < maxDoc) ? matched.nextSetBit(docId + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+        if (docStart == null) {
+          hits[facetIds[docId]]++;
+          continue;
+        }
+        for (int i = docStart[docId], to = docStart[docId + 1]; i < to; i++) {
+          hits[facetIds[i]]++;
+        }
+      }
+    }
+    int facetMatch = 0; // number of matched facets by this query
+    for (int facetId = 0; facetId < size; facetId++) {
+      if (occs[facetId] != 0) facetMatch++;
+    }
+    dic.setOccs(occs);
+    dic.setHits(hits);
+    if (scorer == null) scorer = new ScorerBM25(); // default scorer is BM25 (for now)
+    scorer.setAll(occsAll, size);
+    scorer.weight(occsMatch, facetMatch);
+    double[] scores = new double[size];
+    for (int facetId = 0; facetId < size; facetId++) { // get score for each facet
+      scores[facetId] = scorer.score(occs[facetId], facetLength[facetId]);
+    }
+    dic.setScores(scores);
+    return dic;
+  }
+
+  /**
+   * Results of a thread for parallel {@link #topTerms(BitSet, TermList, Scorer, ForkJoinPool)},
+   * shared by all the tasks run by this thread, for all leaves.
+   */
+  private class ThreadScore
+  {
+    /** Count of matched occurrences by facetId */
+    final int[] occs = new int[size];
+    /** Matched and faceted docs, by global docId */
+    final FixedBitSet matched = new FixedBitSet(reader.maxDoc());
+    /** Matched occurrences */
+    long occsMatch;
+  }
+
+  /**
+   * A task of parallel {@link #topTerms(BitSet, TermList, Scorer, ForkJoinPool)},
+   * occurrences by facet for a range of terms in a leaf, split in two if too much terms.
+   * Results are added to the {@link ThreadScore} of the running thread.
+   */
+  private class LeafScore extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    /** The leaf */
+    final LeafReaderContext context;
+    /** The terms to search */
+    final Term[] terms;
+    /** Index in terms, from (inclusive) */
+    final int from;
+    /** Index in terms, to (exclusive) */
+    final int to;
+    /** Optional filter of documents */
+    final BitSet filter;
+    /** Results by thread */
+    final ConcurrentHashMap<Thread, ThreadScore> results;
+
+    LeafScore(final LeafReaderContext context, final Term[] terms, final int from, final int to, final BitSet filter, 
+        final ConcurrentHashMap<Thread, ThreadScore> results)
+    {
+      this.context = context;
+      this.terms = terms;
+      this.from = from;
+      this.to = to;
+      this.filter = filter;
+      this.results = results;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (to - from > SPLIT) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(
+          new LeafScore(context, terms, from, mid, filter, results), 
+          new LeafScore(context, terms, mid, to, filter, results)
+        );
+        return;
+      }
+      try {
+        score();
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Loop on the postings of the terms of the range.
+     */
+    private void score() throws IOException
+    {
+      final int docBase = context.docBase;
+      final LeafReader leaf = context.reader();
+      // localize fields
+      final int[] docStart = Facet.this.docStart;
+      final int[] facetIds = Facet.this.facetIds;
+      // arrays of the thread, got at first match
+      ThreadScore result = null;
+      int[] occs = null;
+      FixedBitSet matched = null;
+      long occsMatch = 0;
+      final long cost = (filter == null) ? 0 : filter.approximateCardinality();
+      PostingsEnum postings = null;
+      for (int t = from; t < to; t++) {
+        postings = leaf.postings(terms[t]);
+        if (postings == null) continue;
+        // docs of the term in the metadata filter, by skipping
+        final DocIdSetIterator docs = DocSets.filter(postings, filter, context, cost);
+        int docLeaf;
+        long freq;
+        while ((docLeaf = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          final int docId = docBase + docLeaf;
+          if ((freq = postings.freq()) == 0) continue; // no occurrence for this term (?)
+          final int start, end;
+          if (docStart != null) {
+            start = docStart[docId];
+            end = docStart[docId + 1];
+          }
+          else if (facetIds[docId] >= 0) {
+            start = docId;
+            end = docId + 1;
+          }
+          else continue; // doc matching but not faceted
+          if (start == end) continue; // doc matching but not faceted
+          if (result == null) {
+            result = results.computeIfAbsent(Thread.currentThread(), thread -> new ThreadScore());
+            occs = result.occs;
+            matched = result.matched;
+          }
+          occsMatch += freq;
+          matched.set(docId);
+          for (int i = start; i < end; i++) {
+            occs[facetIds[i]] += freq;
+          }
+        }
+      }
+      if (result != null) result.occsMatch += occsMatch;
+    }
+  }
+
 
   /**
    * Number of terms in the list.
@@ -419,6 +791,17 @@ public class Facet
     return hashDic.size();
   }
 
+  @Override
+  public long ramBytesUsed()
+  {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance(Facet.class);
+    bytes += hashDic.ramBytesUsed();
+    bytes += RamUsageEstimator.sizeOf(facetLength) + RamUsageEstimator.sizeOf(facetDocs) + RamUsageEstimator.sizeOf(facetCover);
+    bytes += RamUsageEstimator.sizeOf(facetIds);
+    if (docStart != null) bytes += RamUsageEstimator.sizeOf(docStart);
+    return bytes;
+  }
+
   @Override
   public String toString()
   {
@@ -33,7 +33,20 @@
 package alix.lucene.search;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
@@ -41,12 +54,19 @@ import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.RamUsageEstimator;
 
-public class Freqs
+import alix.lucene.util.Cache;
+import alix.lucene.util.LeafCache;
+
+public class Freqs implements Accountable
 {
   /** The reader from which to get freqs */
   final IndexReader reader;
@@ -66,12 +86,61 @@ public class Freqs
   private int[] termDocs;
   /** Count of occurrences by termId */
   private final long[] termLength;
+  /** By leaf ord, the global termId of each term of the leaf, in the enumeration order of the leaf */
+  private final int[][] leafTermIds;
+  /** Optional pool of threads to compute stats by leaf, null for sequential */
+  private final ForkJoinPool pool;
+  /** Magic number of a file of stats, see {@link #write(Path)} */
+  private static final int MAGIC = 0x416C7846; // "AlxF"
+  /** Version of the format of a file of stats, see {@link #write(Path)} */
+  private static final int FORMAT = 2;
+  /** Max count of terms by task, for parallel computation of stats */
+  private static final int SPLIT = 1 << 14;
   /** An internal pointer on a term, to get some stats about it */
   private int termId;
 
+  /**
+   * Build the dictionary of a field, with stats for terms and docs.
+   * The terms of all leaves are merged in one pass, termIds are dense
+   * and follow the sorted order of the terms (0 is reserved for the empty term).
+   * 
+   * @param reader
+   * @param field
+   * @throws IOException
+   */
   public Freqs(final IndexReader reader, final String field) throws IOException
   {
-    final int END = DocIdSetIterator.NO_MORE_DOCS;
+    this(reader, field, null);
+  }
+
+  /**
+   * Build the dictionary of a field, with a pool of threads for stats by leaf,
+   * see {@link #topTerms(BitSet)}.
+   * 
+   * @param reader
+   * @param field
+   * @param pool Optional, null for sequential computation.
+   * @throws IOException
+   */
+  public Freqs(final IndexReader reader, final String field, final ForkJoinPool pool) throws IOException
+  {
+    this(reader, field, pool, null);
+  }
+
+  /**
+   * Build the dictionary of a field, with a pool of threads for stats by leaf,
+   * and a cache of the stats by segment, computed from postings only for segments
+   * not seen in a previous reader.
+   * 
+   * @param reader
+   * @param field
+   * @param pool Optional, null for sequential computation.
+   * @param leafCache Optional, null to compute stats of all segments.
+   * @throws IOException
+   */
+  public Freqs(final IndexReader reader, final String field, final ForkJoinPool pool, final LeafCache leafCache) throws IOException
+  {
+    this.pool = pool;
     this.reader = reader;
     final int[] docLength = new int[reader.maxDoc()];
     this.field = field;
@@ -81,43 +150,57 @@ public class Freqs
     // no sense for a field where stopwors are skipped
     this.docsAll = reader.getDocCount(field);
     this.occsAll = reader.getSumTotalTermFreq(field);
-    // BM25 seems the best scorer
-    Scorer scorer = new ScorerBM25(); 
-    scorer.setAll(occsAll, docsAll);
-    int[] termDocs = null;
-    long[] termLength = null;
-    BytesRef ref;
-    // loop on the index leaves
-    for (LeafReaderContext context : reader.leaves()) {
-      LeafReader leaf = context.reader();
-      int docBase = context.docBase;
-      Terms terms = leaf.terms(field);
+    final List<LeafReaderContext> leaves = reader.leaves();
+    final int[][] leafTermIds = new int[leaves.size()][];
+    // terms are sorted in each leaf, merge the leaves with a queue
+    // to give a sorted termId to each term, only once
+    LeafQueue queue = new LeafQueue(leaves.size());
+    final LeafFreqs[] leafFreqs = new LeafFreqs[leaves.size()];
+    int termCount = 0;
+    for (LeafReaderContext context : leaves) {
+      Terms terms = context.reader().terms(field);
       if (terms == null) continue;
-      // first leaf
-      if (termDocs == null) {
-        termDocs = new int[(int) terms.size()];
-        termLength = new long[(int) terms.size()];
-      }
-      TermsEnum tenum = terms.iterator(); // org.apache.lucene.codecs.blocktree.SegmentTermsEnum
-      PostingsEnum docsEnum = null;
-      // because terms are sorted, we could merge dics more efficiently
-      // between leaves, but index in Alix are generally merged
-      while ((ref = tenum.next()) != null) {
-        int termId = hashDic.add(ref);
-        if (termId < 0) termId = -termId - 1; // value already given
+      // stats by term ord of the leaf, from postings, or cached for this segment
+      final LeafFreqs stats;
+      if (leafCache == null) stats = new LeafFreqs(context.reader(), field);
+      else stats = leafCache.get(context, true, "Freqs" + Cache.SEP + field, new Cache.Loader<LeafFreqs>() {
+        @Override
+        public LeafFreqs load() throws IOException
+        {
+          return new LeafFreqs(context.reader(), field);
+        }
+      });
+      leafFreqs[context.ord] = stats;
+      System.arraycopy(stats.docLength, 0, docLength, context.docBase, stats.docLength.length);
+      leafTermIds[context.ord] = new int[stats.termCount];
+      termCount = Math.max(termCount, stats.termCount);
+      LeafTerms cursor = new LeafTerms(context, terms.iterator());
+      if (cursor.next()) queue.add(cursor);
+    }
+    int[] termDocs = new int[termCount + 1];
+    long[] termLength = new long[termCount + 1];
+    BytesRefBuilder last = null; // last term added to the dic
+    int termId = 0;
+    while (queue.size() > 0) {
+      LeafTerms cursor = queue.top();
+      final BytesRef ref = cursor.term;
+      // a new term in the merged order, sequential id
+      if (last == null || !last.get().bytesEquals(ref)) {
+        termId = hashDic.add(ref);
+        if (termId < 0) termId = -termId - 1; // empty term, value already given
+        if (last == null) last = new BytesRefBuilder();
+        last.copyBytes(ref);
         // growing is needed if index has more than one leaf
         termDocs = ArrayUtil.grow(termDocs, termId + 1);
         termLength = ArrayUtil.grow(termLength, termId + 1);
-        termDocs[termId] += tenum.docFreq();
-        // termLength[termId] += tenum.totalTermFreq(); // not faster if not yet cached
-        docsEnum = tenum.postings(docsEnum, PostingsEnum.FREQS);
-        int docLeaf;
-        while ((docLeaf = docsEnum.nextDoc()) != END) {
-          int freq = docsEnum.freq();
-          docLength[docBase + docLeaf] += freq;
-          termLength[termId] += freq;
-        }
       }
+      leafTermIds[cursor.ord][cursor.termOrd] = termId;
+      final LeafFreqs stats = leafFreqs[cursor.ord];
+      termDocs[termId] += stats.termDocs[cursor.termOrd];
+      termLength[termId] += stats.termLength[cursor.termOrd];
+      // forward this leaf, and reorder the queue
+      if (cursor.next()) queue.updateTop();
+      else queue.pop();
     }
     // for a dictionary with scorer, we need global stats here
     this.hashDic = hashDic;
@@ -125,6 +208,301 @@ public class Freqs
     this.termDocs = termDocs;
     this.termLength = termLength;
     this.docLength = docLength;
+    this.leafTermIds = leafTermIds;
+  }
+
+  /**
+   * Constructor with all data, loaded from a file, see {@link #open(IndexReader, String, ForkJoinPool, LeafCache, Path)}.
+   */
+  private Freqs(final IndexReader reader, final String field, final ForkJoinPool pool,
+      final int docsAll, final long occsAll, final BytesRefHash hashDic, final int[] docLength,
+      final int[] termDocs, final long[] termLength, final int[][] leafTermIds)
+  {
+    this.reader = reader;
+    this.field = field;
+    this.pool = pool;
+    this.docsAll = docsAll;
+    this.occsAll = occsAll;
+    this.hashDic = hashDic;
+    this.size = hashDic.size();
+    this.docLength = docLength;
+    this.termDocs = termDocs;
+    this.termLength = termLength;
+    this.leafTermIds = leafTermIds;
+  }
+
+  /**
+   * Get the stats of a field from a file written by {@link #write(Path)}, if it has been
+   * written for the same state of the index (generation, version and segments), or build
+   * them from the postings and try to write the file for the next time.
+   * The file is mapped in memory, arrays are bulk read from it.
+   * 
+   * @param reader A reader opened on a commit of the index.
+   * @param field
+   * @param pool Optional, see {@link #Freqs(IndexReader, String, ForkJoinPool)}.
+   * @param leafCache Optional, see {@link #Freqs(IndexReader, String, ForkJoinPool, LeafCache)}.
+   * @param file A path where to store the stats, ex: in the index directory.
+   * @return
+   * @throws IOException
+   */
+  public static Freqs open(final IndexReader reader, final String field, final ForkJoinPool pool, final LeafCache leafCache, final Path file) throws IOException
+  {
+    long generation = generation(reader);
+    // not a reader on a commit, no persistence
+    if (generation < 0) return new Freqs(reader, field, pool, leafCache);
+    Freqs freqs = null;
+    if (Files.exists(file)) freqs = read(reader, field, pool, file, generation);
+    if (freqs != null) return freqs;
+    freqs = new Freqs(reader, field, pool, leafCache);
+    try {
+      freqs.write(file);
+    }
+    catch (IOException e) {
+      // index may be read only, not a problem, stats will be rebuilt next time
+    }
+    return freqs;
+  }
+
+  /**
+   * Get the generation of the commit for a reader, or -1 if not relevant.
+   */
+  static long generation(final IndexReader reader) throws IOException
+  {
+    if (!(reader instanceof DirectoryReader)) return -1;
+    try {
+      return ((DirectoryReader) reader).getIndexCommit().getGeneration();
+    }
+    catch (IllegalStateException e) { // near real time reader
+      return -1;
+    }
+  }
+
+  /**
+   * Load a file written by {@link #write(Path)}, return null if the file is
+   * not relevant for this reader.
+   */
+  private static Freqs read(final IndexReader reader, final String field, final ForkJoinPool pool, final Path file, final long generation) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buf.getInt() != MAGIC || buf.getInt() != FORMAT) return null;
+      if (buf.getLong() != generation) return null;
+      // version changes with each change of the index, even not committed (near real time)
+      if (buf.getLong() != ((DirectoryReader) reader).getVersion()) return null;
+      final int maxDoc = reader.maxDoc();
+      final List<LeafReaderContext> leaves = reader.leaves();
+      if (buf.getInt() != maxDoc || buf.getInt() != leaves.size()) return null;
+      final int docsAll = buf.getInt();
+      final long occsAll = buf.getLong();
+      final int size = buf.getInt();
+      final int[] docLength = new int[maxDoc];
+      buf.asIntBuffer().get(docLength);
+      buf.position(buf.position() + maxDoc * 4);
+      final int[] termDocs = new int[size];
+      buf.asIntBuffer().get(termDocs);
+      buf.position(buf.position() + size * 4);
+      final long[] termLength = new long[size];
+      buf.asLongBuffer().get(termLength);
+      buf.position(buf.position() + size * 8);
+      // dictionary, offsets and bytes
+      final int[] offsets = new int[size + 1];
+      buf.asIntBuffer().get(offsets);
+      buf.position(buf.position() + (size + 1) * 4);
+      final byte[] bytes = new byte[offsets[size]];
+      buf.get(bytes);
+      final BytesRefHash hashDic = new BytesRefHash();
+      final BytesRef ref = new BytesRef(bytes);
+      for (int termId = 0; termId < size; termId++) {
+        ref.offset = offsets[termId];
+        ref.length = offsets[termId + 1] - offsets[termId];
+        if (hashDic.add(ref) != termId) return null; // duplicate, not a valid dic
+      }
+      // leaves
+      final int[][] leafTermIds = new int[leaves.size()][];
+      for (LeafReaderContext context : leaves) {
+        final int count = buf.getInt();
+        if (count < 0) continue; // no terms for this leaf
+        Terms terms = context.reader().terms(field);
+        if (terms == null) return null;
+        final long leafSize = terms.size();
+        if (leafSize >= 0 && leafSize != count) return null; // not the same segment
+        final int[] termIds = new int[count];
+        buf.asIntBuffer().get(termIds);
+        buf.position(buf.position() + count * 4);
+        leafTermIds[context.ord] = termIds;
+      }
+      return new Freqs(reader, field, pool, docsAll, occsAll, hashDic, docLength, termDocs, termLength, leafTermIds);
+    }
+    catch (BufferUnderflowException e) { // truncated file
+      return null;
+    }
+  }
+
+  /**
+   * Write the stats in a binary file, to be loaded by {@link #open(IndexReader, String, ForkJoinPool, LeafCache, Path)}.
+   * The file is written in a temp file and then moved, to not expose a partial file to a reader.
+   * 
+   * @param file
+   * @throws IOException
+   */
+  public void write(final Path file) throws IOException
+  {
+    final long generation = generation(reader);
+    if (generation < 0) throw new IOException("Reader not on a commit, no persistence of stats for field \"" + field + "\"");
+    final int maxDoc = docLength.length;
+    // dictionary
+    final int[] offsets = new int[size + 1];
+    final BytesRef ref = new BytesRef();
+    for (int termId = 0; termId < size; termId++) {
+      hashDic.get(termId, ref);
+      offsets[termId + 1] = offsets[termId] + ref.length;
+    }
+    long length = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 8 + 4;
+    length += 4L * maxDoc + 4L * size + 8L * size + 4L * (size + 1) + offsets[size];
+    for (int[] termIds : leafTermIds) {
+      length += 4 + ((termIds == null) ? 0 : 4L * termIds.length);
+    }
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+      buf.putInt(MAGIC).putInt(FORMAT).putLong(generation).putLong(((DirectoryReader) reader).getVersion());
+      buf.putInt(maxDoc).putInt(leafTermIds.length);
+      buf.putInt(docsAll).putLong(occsAll).putInt(size);
+      buf.asIntBuffer().put(docLength);
+      buf.position(buf.position() + maxDoc * 4);
+      buf.asIntBuffer().put(termDocs, 0, size);
+      buf.position(buf.position() + size * 4);
+      buf.asLongBuffer().put(termLength, 0, size);
+      buf.position(buf.position() + size * 8);
+      buf.asIntBuffer().put(offsets);
+      buf.position(buf.position() + (size + 1) * 4);
+      for (int termId = 0; termId < size; termId++) {
+        hashDic.get(termId, ref);
+        buf.put(ref.bytes, ref.offset, ref.length);
+      }
+      for (int[] termIds : leafTermIds) {
+        if (termIds == null) {
+          buf.putInt(-1);
+          continue;
+        }
+        buf.putInt(termIds.length);
+        buf.asIntBuffer().put(termIds);
+        buf.position(buf.position() + termIds.length * 4);
+      }
+      buf.force();
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Stats of a field for a segment, by term ord of the leaf (enumeration order),
+   * computed from the postings, merged in the global dictionary.
+   */
+  private static class LeafFreqs implements Accountable
+  {
+    /** Count of terms in the leaf */
+    final int termCount;
+    /** Count of occurrences by doc of the leaf */
+    final int[] docLength;
+    /** Count of docs by term ord */
+    final int[] termDocs;
+    /** Count of occurrences by term ord */
+    final long[] termLength;
+
+    LeafFreqs(final LeafReader leaf, final String field) throws IOException
+    {
+      final int END = DocIdSetIterator.NO_MORE_DOCS;
+      final int[] docLength = new int[leaf.maxDoc()];
+      Terms terms = leaf.terms(field);
+      long leafSize = terms.size(); // may be unknown, -1
+      int[] termDocs = new int[(leafSize > 0)?(int)leafSize:16];
+      long[] termLength = new long[termDocs.length];
+      TermsEnum tenum = terms.iterator(); // org.apache.lucene.codecs.blocktree.SegmentTermsEnum
+      PostingsEnum docsEnum = null;
+      int termOrd = 0;
+      while (tenum.next() != null) {
+        if (termOrd >= termDocs.length) {
+          termDocs = ArrayUtil.grow(termDocs, termOrd + 1);
+          termLength = ArrayUtil.grow(termLength, termOrd + 1);
+        }
+        termDocs[termOrd] = tenum.docFreq();
+        // termLength[termOrd] = tenum.totalTermFreq(); // not faster if not yet cached
+        docsEnum = tenum.postings(docsEnum, PostingsEnum.FREQS);
+        int docLeaf;
+        long length = 0;
+        while ((docLeaf = docsEnum.nextDoc()) != END) {
+          int freq = docsEnum.freq();
+          docLength[docLeaf] += freq;
+          length += freq;
+        }
+        termLength[termOrd] = length;
+        termOrd++;
+      }
+      this.termCount = termOrd;
+      this.docLength = docLength;
+      this.termDocs = termDocs;
+      this.termLength = termLength;
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+      return RamUsageEstimator.shallowSizeOfInstance(LeafFreqs.class) + RamUsageEstimator.sizeOf(docLength)
+        + RamUsageEstimator.sizeOf(termDocs) + RamUsageEstimator.sizeOf(termLength);
+    }
+  }
+
+  /**
+   * A cursor on the terms of a leaf, used to merge the sorted dictionaries
+   * of the leaves.
+   */
+  private static class LeafTerms
+  {
+    /** Index of the leaf in the reader */
+    final int ord;
+    /** Start of the docIds of the leaf in the reader */
+    final int docBase;
+    /** Terms of the leaf */
+    final TermsEnum tenum;
+    /** Current term */
+    BytesRef term;
+    /** Index of the current term in the enumeration order of the leaf */
+    int termOrd = -1;
+
+    LeafTerms(final LeafReaderContext context, final TermsEnum tenum)
+    {
+      this.ord = context.ord;
+      this.docBase = context.docBase;
+      this.tenum = tenum;
+    }
+
+    /** Forward to next term, false if no more terms */
+    boolean next() throws IOException
+    {
+      term = tenum.next();
+      if (term == null) return false;
+      termOrd++;
+      return true;
+    }
+  }
+
+  /**
+   * Leaves ordered by their current term.
+   */
+  private static class LeafQueue extends PriorityQueue<LeafTerms>
+  {
+    LeafQueue(final int size)
+    {
+      super(size);
+    }
+
+    @Override
+    protected boolean lessThan(LeafTerms a, LeafTerms b)
+    {
+      final int cmp = a.term.compareTo(b.term);
+      if (cmp != 0) return cmp < 0;
+      return a.ord < b.ord;
+    }
   }
 
   /**
@@ -135,6 +513,15 @@ public class Freqs
     return docLength;
   }
 
+  /**
+   * The reader on which stats have been built, objects built on these stats 
+   * should use the same reader (docIds and termIds).
+   */
+  public IndexReader reader()
+  {
+    return reader;
+  }
+
   /**
    * A short access to the hash to get the codes of term
    */
@@ -157,6 +544,19 @@ public class Freqs
     return topTerms(null);
   }
 
+  /**
+   * For a leaf of the reader (by {@link LeafReaderContext#ord}), get the global termId
+   * of its terms, in the enumeration order of the leaf {@link TermsEnum#next()}.
+   * Allow to map leaf terms to the dictionary without a lookup in the hash.
+   * 
+   * @param leafOrd
+   * @return null if no terms in this leaf.
+   */
+  public int[] leafTermIds(final int leafOrd)
+  {
+    return leafTermIds[leafOrd];
+  }
+
   /**
    * Set an internal cursor on a term
    */
@@ -208,6 +608,7 @@ public class Freqs
    * defined as a BitSet. The return dictionary is not sorted.
    * Contrasted scores are available by the method scores()
    * in the dictionary.
+   * If a pool of threads has been given at construction, see {@link #topTerms(BitSet, ForkJoinPool)}.
    * 
    * @param filter
    * @return A dictionary of terms with diffrent stats.
@@ -215,6 +616,7 @@ public class Freqs
    */
   public TopTerms topTerms(final BitSet filter) throws IOException
   {
+    if (pool != null && pool.getParallelism() > 1 && !pool.isShutdown()) return topTerms(filter, pool);
     TopTerms dic = new TopTerms(hashDic);
     dic.setAll(occsAll, docsAll);
     // BM25 seems the best scorer
@@ -225,32 +627,51 @@ public class Freqs
     double[] scores = new double[size];
     int[] occs = new int[size];
     int[] hits = new int[size];
-    // A set to avoid duplicate for count of docs bay term
-    final java.util.BitSet docSet = new java.util.BitSet(reader.maxDoc());
-    BytesRef bytes;
     final int[] docLength = this.docLength; // localize var
+    final long cost = (filter == null) ? 0 : filter.approximateCardinality();
+    final int filterMax = (filter == null) ? 0 : filter.length();
     
     for (LeafReaderContext context : reader.leaves()) {
       int docBase = context.docBase;
       LeafReader leaf = context.reader();
       Terms terms = leaf.terms(field);
       if (terms == null) continue;
+      // termIds of the leaf, in the enumeration order, no hash lookup
+      final int[] termIds = leafTermIds[context.ord];
+      // cost of the docs of a term for the filter to lead
+      final long leadCost = (filter == null) ? Long.MAX_VALUE : DocSets.leadCost(filter, context, cost);
+      // docs of the leaf to scan
+      final int docMax = (filter == null) ? DocIdSetIterator.NO_MORE_DOCS : Math.max(0, Math.min(leaf.maxDoc(), filterMax - docBase));
+      int termOrd = 0;
       TermsEnum tenum = terms.iterator();
       PostingsEnum docsEnum = null;
-      while ((bytes = tenum.next()) != null) {
-        int termId = hashDic.find(bytes);
-        // if termId is negative, let the error go, problem in reader
+      while (tenum.next() != null) {
+        int termId = termIds[termOrd++];
         // for each term, set scorer with global stats
         scorer.weight(termLength[termId], termDocs[termId]);
         docsEnum = tenum.postings(docsEnum, PostingsEnum.FREQS);
         int docLeaf;
-        while ((docLeaf = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-          int docId = docBase + docLeaf;
-          if (filter != null && !filter.get(docId)) continue; // document not in the filter
-          int freq = docsEnum.freq();
-          hits[termId]++;
-          scores[termId] += scorer.score(freq, docLength[docId]);
-          occs[termId] += freq;
+        // a filter much sparser than the docs of the term, skip to the docs of the filter
+        if (docsEnum.cost() > leadCost) {
+          final DocIdSetIterator docs = DocSets.filter(docsEnum, filter, context, cost);
+          while ((docLeaf = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            int docId = docBase + docLeaf;
+            int freq = docsEnum.freq();
+            hits[termId]++;
+            scores[termId] += scorer.score(freq, docLength[docId]);
+            occs[termId] += freq;
+          }
+        }
+        else {
+          // docs of the leaf out of the filter (ex: built on a previous state of the index) are not tested
+          while ((docLeaf = docsEnum.nextDoc()) < docMax) {
+            int docId = docBase + docLeaf;
+            if (filter != null && !filter.get(docId)) continue; // document not in the filter
+            int freq = docsEnum.freq();
+            hits[termId]++;
+            scores[termId] += scorer.score(freq, docLength[docId]);
+            occs[termId] += freq;
+          }
         }
       }
     }
@@ -259,6 +680,191 @@ public class Freqs
     dic.setScores(scores);
     return dic;
   }
+  /**
+   * Same as {@link #topTerms(BitSet)}, computed in parallel. Leaves, and term ranges
+   * inside big leaves, are shared between the tasks of a fork-join pool.
+   * Each task accumulates its counts in its own arrays (by term ord of the leaf),
+   * reduced by termId when all tasks are done.
+   * 
+   * @param filter
+   * @param pool
+   * @return A dictionary of terms with diffrent stats.
+   * @throws IOException
+   */
+  public TopTerms topTerms(final BitSet filter, final ForkJoinPool pool) throws IOException
+  {
+    TopTerms dic = new TopTerms(hashDic);
+    dic.setAll(occsAll, docsAll);
+    dic.setLengths(termLength);
+    dic.setDocs(termDocs);
+    double[] scores = new double[size];
+    int[] occs = new int[size];
+    int[] hits = new int[size];
+    ArrayList<LeafStats> tasks = new ArrayList<LeafStats>();
+    for (LeafReaderContext context : reader.leaves()) {
+      final int[] termIds = leafTermIds[context.ord];
+      if (termIds == null) continue;
+      tasks.add(new LeafStats(context, termIds, 0, termIds.length, filter));
+    }
+    try {
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected void compute()
+        {
+          invokeAll(tasks);
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    // reduction, sequential, termIds may be shared between leaves
+    for (LeafStats task : tasks) {
+      task.reduce(scores, occs, hits);
+    }
+    dic.setHits(hits);
+    dic.setOccs(occs);
+    dic.setScores(scores);
+    return dic;
+  }
+
+  /**
+   * A task of parallel {@link #topTerms(BitSet, ForkJoinPool)},
+   * stats for a range of terms in a leaf, split in two if too big.
+   */
+  private class LeafStats extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    /** The leaf */
+    final LeafReaderContext context;
+    /** Global termIds of the leaf, by term ord */
+    final int[] termIds;
+    /** Term ord of the leaf, from (inclusive) */
+    final int from;
+    /** Term ord of the leaf, to (exclusive) */
+    final int to;
+    /** Optional filter of documents */
+    final BitSet filter;
+    /** Results, by term ord - from */
+    double[] scores;
+    int[] occs;
+    int[] hits;
+    /** Sub-tasks, if split */
+    LeafStats left;
+    LeafStats right;
+
+    LeafStats(final LeafReaderContext context, final int[] termIds, final int from, final int to, final BitSet filter)
+    {
+      this.context = context;
+      this.termIds = termIds;
+      this.from = from;
+      this.to = to;
+      this.filter = filter;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (to - from > SPLIT) {
+        final int mid = (from + to) >>> 1;
+        left = new LeafStats(context, termIds, from, mid, filter);
+        right = new LeafStats(context, termIds, mid, to, filter);
+        invokeAll(left, right);
+        return;
+      }
+      try {
+        stats();
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Loop on the terms of the range.
+     */
+    private void stats() throws IOException
+    {
+      final int len = to - from;
+      final double[] scores = this.scores = new double[len];
+      final int[] occs = this.occs = new int[len];
+      final int[] hits = this.hits = new int[len];
+      final int docBase = context.docBase;
+      final int[] docLength = Freqs.this.docLength;
+      final long cost = (filter == null) ? 0 : filter.approximateCardinality();
+      final int filterMax = (filter == null) ? 0 : filter.length();
+      // cost of the docs of a term for the filter to lead
+      final long leadCost = (filter == null) ? Long.MAX_VALUE : DocSets.leadCost(filter, context, cost);
+      // docs of the leaf to scan
+      final int docMax = (filter == null) ? DocIdSetIterator.NO_MORE_DOCS : Math.max(0, Math.min(context.reader().maxDoc(), filterMax - docBase));
+      // a scorer by task, keeps state for current term
+      Scorer scorer = new ScorerBM25(); 
+      scorer.setAll(occsAll, docsAll);
+      Terms terms = context.reader().terms(field);
+      TermsEnum tenum = terms.iterator();
+      boolean found;
+      // seek to the first term of the range, terms of the global dic are the same bytes
+      if (from == 0) {
+        found = (tenum.next() != null);
+      }
+      else {
+        BytesRef ref = new BytesRef();
+        hashDic.get(termIds[from], ref);
+        found = tenum.seekExact(ref);
+      }
+      PostingsEnum docsEnum = null;
+      for (int i = 0; found && i < len; i++) {
+        final int termId = termIds[from + i];
+        scorer.weight(termLength[termId], termDocs[termId]);
+        docsEnum = tenum.postings(docsEnum, PostingsEnum.FREQS);
+        int docLeaf;
+        // a filter much sparser than the docs of the term, skip to the docs of the filter
+        if (docsEnum.cost() > leadCost) {
+          final DocIdSetIterator docs = DocSets.filter(docsEnum, filter, context, cost);
+          while ((docLeaf = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            int docId = docBase + docLeaf;
+            int freq = docsEnum.freq();
+            hits[i]++;
+            scores[i] += scorer.score(freq, docLength[docId]);
+            occs[i] += freq;
+          }
+        }
+        else {
+          // docs of the leaf out of the filter (ex: built on a previous state of the index) are not tested
+          while ((docLeaf = docsEnum.nextDoc()) < docMax) {
+            int docId = docBase + docLeaf;
+            if (filter != null && !filter.get(docId)) continue; // document not in the filter
+            int freq = docsEnum.freq();
+            hits[i]++;
+            scores[i] += scorer.score(freq, docLength[docId]);
+            occs[i] += freq;
+          }
+        }
+        if (i + 1 < len) found = (tenum.next() != null);
+      }
+    }
+
+    /**
+     * Add results of this task to global arrays by termId.
+     */
+    void reduce(final double[] scores, final int[] occs, final int[] hits)
+    {
+      if (left != null) {
+        left.reduce(scores, occs, hits);
+        right.reduce(scores, occs, hits);
+        return;
+      }
+      if (this.scores == null) return; // nothing computed
+      for (int i = 0, len = to - from; i < len; i++) {
+        final int termId = termIds[from + i];
+        scores[termId] += this.scores[i];
+        occs[termId] += this.occs[i];
+        hits[termId] += this.hits[i];
+      }
+    }
+  }
+
   /**
    * Get a dictionary of terms, without statistics.
    * @param reader
@@ -284,6 +890,19 @@ public class Freqs
     return hashDic;
   }
 
+  @Override
+  public long ramBytesUsed()
+  {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance(Freqs.class);
+    bytes += RamUsageEstimator.sizeOf(docLength) + RamUsageEstimator.sizeOf(termDocs) + RamUsageEstimator.sizeOf(termLength);
+    bytes += hashDic.ramBytesUsed();
+    bytes += RamUsageEstimator.shallowSizeOf(leafTermIds);
+    for (int[] termIds : leafTermIds) {
+      if (termIds != null) bytes += RamUsageEstimator.sizeOf(termIds);
+    }
+    return bytes;
+  }
+
   @Override
   public String toString()
   {
@@ -46,18 +46,39 @@ import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.PointValues;
 import org.apache.lucene.index.PointValues.Relation;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import alix.lucene.util.Cache;
+import alix.lucene.util.LeafCache;
+import alix.util.IntList;
 
 /**
  * Retrieve all values of an int field, store it in docId order,
  * calculate some statistics.
+ * 
+ * <p>
+ * Values are stored by docId in an array of maxDoc size, or, if less than half of
+ * the docs have a value (ex: a year only on book docs), as two columns of docIds and values.
+ * The distinct values are also stored in ascending order, with their count of docs 
+ * (a run-length encoding of the sorted values), for quantiles and histograms
+ * of the whole index or of a corpus, see {@link #stats(BitSet)}, without sorting.
+ * </p>
  */
-public class IntSeries
+public class IntSeries implements Accountable
 {
+  /** Max range of values (max - min) for a table of distinct values by value */
+  private static final int RANGE_MAX = 1 << 16;
   /** Field name */
   private final String field;
-  /** The values in docId order */
+  /** The values in docId order, {@link Integer#MIN_VALUE} for no value, or null if sparse */
   private final int[] docInt;
+  /** If sparse, docIds with a value, in ascending order */
+  private final int[] sparseDocs;
+  /** If sparse, values of the docs */
+  private final int[] sparseValues;
   /** Maximum value */
   private final int maximum;
   /** Minimum value */
@@ -68,12 +89,34 @@ public class IntSeries
   private final long sum;
   /** Mean of the series */
   private final double mean;
-  /** A copy of values, sorted, to get median and other n-tiles (on demand) */
+  /** True if the values in docId order are already sorted (ex: index sorted by this field) */
+  private final boolean ascending;
+  /** Distinct values, in ascending order */
+  private final int[] distinct;
+  /** Count of docs by distinct value */
+  private final int[] counts;
+  /** Optional, index in distinct values by value - minimum, if range is not too big */
+  private final int[] distinctIndex;
+  /** Stats of the whole series */
+  private final Stats stats;
+  /** A copy of values, sorted, (on demand) */
   private int[] sorted;
-  /** Median of the series */
-  private double median;
   
   public IntSeries(IndexReader reader, String field) throws IOException
+  {
+    this(reader, field, null);
+  }
+
+  /**
+   * Build the series with a cache of values by segment, 
+   * read from the index only for segments not seen in a previous reader.
+   * 
+   * @param reader
+   * @param field
+   * @param leafCache Optional, null to read all segments.
+   * @throws IOException
+   */
+  public IntSeries(final IndexReader reader, final String field, final LeafCache leafCache) throws IOException
   {
     this.field = field;
     FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(reader);
@@ -91,57 +134,193 @@ public class IntSeries
     }
     // should be NumericDocValues or IntPoint with one dimension here
 
-    int maxDoc = reader.maxDoc();
-    final int[] docInt = new int[maxDoc];
-    // fill with min value for docs deleted or with no values
-    Arrays.fill(docInt, Integer.MIN_VALUE);
-    
+    final int maxDoc = reader.maxDoc();
+    final boolean numeric = (info.getDocValuesType() == DocValuesType.NUMERIC);
+    // values of the leaves, deleted docs excluded, so not only the core of the segment
+    final LeafInts[] leaves = new LeafInts[reader.leaves().size()];
+    int card = 0; // card
+    for (LeafReaderContext context : reader.leaves()) {
+      final LeafInts leafInts;
+      if (leafCache == null) leafInts = LeafInts.read(context.reader(), field, numeric);
+      else leafInts = leafCache.get(context, false, "IntSeries" + Cache.SEP + field, new Cache.Loader<LeafInts>() {
+        @Override
+        public LeafInts load() throws IOException
+        {
+          return LeafInts.read(context.reader(), field, numeric);
+        }
+      });
+      leaves[context.ord] = leafInts;
+      if (leafInts != null) card += leafInts.docs.length;
+    }
+    // a few docs with values, keep only them
+    final boolean sparse = (card < maxDoc / 2);
+    final int[] docInt;
+    final int[] sparseDocs;
+    final int[] sparseValues;
+    if (sparse) {
+      docInt = null;
+      sparseDocs = new int[card];
+      sparseValues = new int[card];
+    }
+    else {
+      docInt = new int[maxDoc];
+      // fill with min value for docs deleted or with no values
+      Arrays.fill(docInt, Integer.MIN_VALUE);
+      sparseDocs = null;
+      sparseValues = null;
+    }
     int min = Integer.MAX_VALUE; // min
     int max = Integer.MIN_VALUE; // max
-    int card = 0; // card
     long sum = 0; // sum
-    // NumericDocValues
-    if (info.getDocValuesType() == DocValuesType.NUMERIC) {
-      for (LeafReaderContext context : reader.leaves()) {
-        LeafReader leaf = context.reader();
-        NumericDocValues docs4num = leaf.getNumericDocValues(field);
-        // no values for this leaf, go next
-        if (docs4num == null) continue;
-        final Bits liveDocs = leaf.getLiveDocs();
-        final int docBase = context.docBase;
-        int docLeaf;
-        while ((docLeaf = docs4num.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-          if (liveDocs != null && !liveDocs.get(docLeaf)) continue;
-          // TODO, if no value ?
-          int v = (int) docs4num.longValue(); // long value is force to int;
-          card++;
-          sum += v;
-          docInt[docBase + docLeaf] = v;
-          if (min > v) min = v;
-          if (max < v) max = v;
+    int last = Integer.MIN_VALUE; // last value in docId order
+    boolean ascending = true;
+    int i = 0;
+    for (LeafReaderContext context : reader.leaves()) {
+      final LeafInts leafInts = leaves[context.ord];
+      if (leafInts == null) continue;
+      final int docBase = context.docBase;
+      final int[] docs = leafInts.docs;
+      final int[] values = leafInts.values;
+      for (int j = 0, length = docs.length; j < length; j++) {
+        final int v = values[j];
+        sum += v;
+        if (v < last) ascending = false;
+        last = v;
+        if (sparse) {
+          sparseDocs[i] = docBase + docs[j];
+          sparseValues[i] = v;
+          i++;
         }
+        else {
+          docInt[docBase + docs[j]] = v;
+        }
+        if (min > v) min = v;
+        if (max < v) max = v;
       }
     }
-    // IntPoint
-    else if (info.getPointDimensionCount() > 0) {
-      IntPointVisitor visitor = new IntPointVisitor(docInt);
-      for (LeafReaderContext context : reader.leaves()) {
-        visitor.setContext(context); // for liveDocs and docBase
-        LeafReader leaf = context.reader();
-        PointValues points = leaf.getPointValues(field);
-        points.intersect(visitor);
-      }
-      min = visitor.min;
-      max = visitor.max;
-      card = visitor.card;
-      sum = visitor.sum;
-    }
     this.minimum = min;
     this.maximum = max;
     this.cardinal = card;
     this.sum = sum;
     this.docInt = docInt;
+    this.sparseDocs = sparseDocs;
+    this.sparseValues = sparseValues;
     this.mean = (double)sum / card;
+    this.ascending = ascending;
+    // distinct values, by a table of counts if range is small (ex: years), or a sort
+    final long range = (card == 0) ? 0 : (long) max - min + 1;
+    if (range > 0 && range <= RANGE_MAX) {
+      final int[] byValue = new int[(int) range];
+      if (sparse) for (int v : sparseValues) byValue[v - min]++;
+      else for (int v : docInt) if (v != Integer.MIN_VALUE) byValue[v - min]++;
+      int size = 0;
+      for (int c : byValue) if (c > 0) size++;
+      final int[] distinct = new int[size];
+      final int[] counts = new int[size];
+      int n = 0;
+      for (int k = 0; k < range; k++) {
+        final int c = byValue[k];
+        if (c == 0) {
+          byValue[k] = -1;
+          continue;
+        }
+        distinct[n] = min + k;
+        counts[n] = c;
+        byValue[k] = n; // reuse the table as an index
+        n++;
+      }
+      this.distinct = distinct;
+      this.counts = counts;
+      this.distinctIndex = byValue;
+    }
+    else {
+      final int[] sorted = sorted();
+      IntList distinct = new IntList();
+      IntList counts = new IntList();
+      for (int k = 0; k < card; k++) {
+        if (k == 0 || sorted[k] != sorted[k - 1]) {
+          distinct.push(sorted[k]);
+          counts.push(1);
+        }
+        else counts.inc(counts.size() - 1);
+      }
+      this.distinct = distinct.toArray();
+      this.counts = counts.toArray();
+      this.distinctIndex = null;
+    }
+    this.stats = new Stats(distinct, counts);
+  }
+
+  /**
+   * Values of a segment, docs with a value, in docId order, deleted docs excluded.
+   */
+  static class LeafInts implements Accountable
+  {
+    /** DocIds of the leaf with a value */
+    final int[] docs;
+    /** Values of the docs */
+    final int[] values;
+
+    LeafInts(final int[] docs, final int[] values)
+    {
+      this.docs = docs;
+      this.values = values;
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+      return RamUsageEstimator.shallowSizeOfInstance(LeafInts.class) 
+        + RamUsageEstimator.sizeOf(docs) + RamUsageEstimator.sizeOf(values);
+    }
+
+    /**
+     * Get the values of a segment.
+     * 
+     * @param leaf
+     * @param field
+     * @param numeric True for a {@link NumericDocValues}, false for an {@link IntPoint}.
+     * @return null if no values for this leaf.
+     * @throws IOException
+     */
+    static LeafInts read(final LeafReader leaf, final String field, final boolean numeric) throws IOException
+    {
+      final Bits liveDocs = leaf.getLiveDocs();
+      // NumericDocValues
+      if (numeric) {
+        NumericDocValues docs4num = leaf.getNumericDocValues(field);
+        // no values for this leaf, go next
+        if (docs4num == null) return null;
+        IntList docs = new IntList();
+        IntList values = new IntList();
+        int docLeaf;
+        while ((docLeaf = docs4num.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          if (liveDocs != null && !liveDocs.get(docLeaf)) continue;
+          docs.push(docLeaf);
+          values.push((int) docs4num.longValue()); // long value is force to int;
+        }
+        return new LeafInts(docs.toArray(), values.toArray());
+      }
+      // IntPoint, visited in the order of the tree, not docId
+      PointValues points = leaf.getPointValues(field);
+      if (points == null) return null;
+      IntPointVisitor visitor = new IntPointVisitor(liveDocs, (int) Math.min(points.size(), 1 << 20));
+      points.intersect(visitor);
+      final long[] keys = Arrays.copyOf(visitor.keys, visitor.size);
+      Arrays.sort(keys);
+      IntList docs = new IntList();
+      IntList values = new IntList();
+      int lastDoc = -1;
+      for (long key : keys) {
+        final int docLeaf = (int) (key >>> 32);
+        // in case of multiple values, take the smallest
+        if (docLeaf == lastDoc) continue;
+        lastDoc = docLeaf;
+        docs.push(docLeaf);
+        values.push((int) key ^ Integer.MIN_VALUE);
+      }
+      return new LeafInts(docs.toArray(), values.toArray());
+    }
   }
 
   public String field()
@@ -174,27 +353,330 @@ public class IntSeries
     return this.sum;
   }
 
-  class IntPointVisitor implements PointValues.IntersectVisitor
+  /**
+   * Value of a doc, or {@link Integer#MIN_VALUE} if no value.
+   * 
+   * @param docId
+   * @return
+   */
+  public int value(final int docId)
   {
-    public final int[] docInt;
-    private Bits liveDocs;
-    private int docBase;
-    public int min = Integer.MAX_VALUE;
-    public int max = Integer.MIN_VALUE;
-    public int card = 0;
-    public long sum = 0;
-    
-    public IntPointVisitor(int[] docInt)
+    if (docInt != null) return docInt[docId];
+    final int i = Arrays.binarySearch(sparseDocs, docId);
+    return (i < 0) ? Integer.MIN_VALUE : sparseValues[i];
+  }
+
+  /**
+   * Distinct values, in ascending order.
+   * 
+   * @return A shared array, do not modify.
+   */
+  public int[] distinct()
+  {
+    return distinct;
+  }
+
+  /**
+   * Count of docs by distinct value, see {@link #distinct()}.
+   * 
+   * @return A shared array, do not modify.
+   */
+  public int[] counts()
+  {
+    return counts;
+  }
+
+  /**
+   * Get the values in ascending order, docs without value excluded.
+   * The values are only copied in docId order if the index is sorted 
+   * by this field (see {@link alix.lucene.Alix#indexSort(org.apache.lucene.search.Sort)}).
+   * 
+   * @return A shared array, do not modify.
+   */
+  public int[] sorted()
+  {
+    if (sorted != null) return sorted;
+    final int[] values = new int[cardinal];
+    // distinct values are known, expand them
+    if (distinct != null) {
+      int i = 0;
+      for (int k = 0; k < distinct.length; k++) {
+        Arrays.fill(values, i, i + counts[k], distinct[k]);
+        i += counts[k];
+      }
+    }
+    else if (docInt == null) {
+      System.arraycopy(sparseValues, 0, values, 0, cardinal);
+      if (!ascending) Arrays.sort(values);
+    }
+    else {
+      int i = 0;
+      for (int v : docInt) {
+        if (v == Integer.MIN_VALUE) continue;
+        values[i++] = v;
+      }
+      if (!ascending) Arrays.sort(values);
+    }
+    sorted = values;
+    return values;
+  }
+
+  /**
+   * Median of the series.
+   * 
+   * @return
+   */
+  public double median()
+  {
+    return stats.median();
+  }
+
+  /**
+   * Get statistics for the docs of a corpus, from the values of the series, 
+   * counted by distinct value.
+   * 
+   * @param filter A set of docIds, or null for the whole series.
+   * @return
+   */
+  public Stats stats(final BitSet filter)
+  {
+    if (filter == null) return stats;
+    final int[] counts = new int[distinct.length];
+    final int length = filter.length();
+    if (docInt == null) { // sparse, loop on the docs with a value
+      for (int i = 0; i < cardinal; i++) {
+        final int docId = sparseDocs[i];
+        if (docId >= length) break;
+        if (!filter.get(docId)) continue;
+        counts[index(sparseValues[i])]++;
+      }
+    }
+    else if (length > 0) {
+      final int max = Math.min(length, docInt.length);
+      for (int docId = filter.nextSetBit(0); docId < max; docId = filter.nextSetBit(docId + 1)) {
+        final int v = docInt[docId];
+        if (v != Integer.MIN_VALUE) counts[index(v)]++;
+        if (docId + 1 >= max) break;
+      }
+    }
+    return new Stats(distinct, counts);
+  }
+
+  /**
+   * Index of a value in the distinct values.
+   */
+  private int index(final int value)
+  {
+    if (distinctIndex != null) return distinctIndex[value - minimum];
+    return Arrays.binarySearch(distinct, value);
+  }
+
+  @Override
+  public long ramBytesUsed()
+  {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance(IntSeries.class);
+    if (docInt != null) bytes += RamUsageEstimator.sizeOf(docInt);
+    else bytes += RamUsageEstimator.sizeOf(sparseDocs) + RamUsageEstimator.sizeOf(sparseValues);
+    bytes += RamUsageEstimator.sizeOf(distinct) + RamUsageEstimator.sizeOf(counts);
+    if (distinctIndex != null) bytes += RamUsageEstimator.sizeOf(distinctIndex);
+    if (sorted != null) bytes += RamUsageEstimator.sizeOf(sorted);
+    return bytes;
+  }
+
+  /**
+   * Statistics of a set of values, as distinct values in ascending order
+   * with their count of docs.
+   */
+  public static class Stats
+  {
+    /** Distinct values in ascending order, with a count of docs */
+    private final int[] values;
+    /** Count of docs by value */
+    private final int[] counts;
+    /** Cumulative count of docs before the value */
+    private final int[] cumuls;
+    /** Count of docs */
+    private final int card;
+    /** Minimum value */
+    private final int min;
+    /** Maximum value */
+    private final int max;
+    /** Arithmetic sum */
+    private final long sum;
+
+    /**
+     * Keep only the values with a count.
+     */
+    Stats(final int[] values, final int[] counts)
     {
-      this.docInt = docInt;
+      int size = 0;
+      for (int c : counts) if (c > 0) size++;
+      this.values = new int[size];
+      this.counts = new int[size];
+      this.cumuls = new int[size];
+      int card = 0;
+      long sum = 0;
+      int n = 0;
+      for (int i = 0; i < counts.length; i++) {
+        final int c = counts[i];
+        if (c == 0) continue;
+        this.values[n] = values[i];
+        this.counts[n] = c;
+        this.cumuls[n] = card;
+        card += c;
+        sum += (long) values[i] * c;
+        n++;
+      }
+      this.card = card;
+      this.sum = sum;
+      this.min = (size > 0) ? this.values[0] : Integer.MAX_VALUE;
+      this.max = (size > 0) ? this.values[size - 1] : Integer.MIN_VALUE;
     }
+
+    /** Count of docs */
+    public int card()
+    {
+      return card;
+    }
+
+    /** Count of distinct values */
+    public int distinct()
+    {
+      return values.length;
+    }
+
+    public int min()
+    {
+      return min;
+    }
+
+    public int max()
+    {
+      return max;
+    }
+
+    public long sum()
+    {
+      return sum;
+    }
+
+    public double mean()
+    {
+      return (double) sum / card;
+    }
+
+    /**
+     * Distinct values, in ascending order.
+     * 
+     * @return A shared array, do not modify.
+     */
+    public int[] values()
+    {
+      return values;
+    }
+
+    /**
+     * Count of docs by distinct value, see {@link #values()}.
+     * 
+     * @return A shared array, do not modify.
+     */
+    public int[] counts()
+    {
+      return counts;
+    }
+
+    /**
+     * The value at a rank in ascending order.
+     */
+    private int rank(final int rank)
+    {
+      int i = Arrays.binarySearch(cumuls, rank);
+      if (i < 0) i = -i - 2; // the value with cumul before the rank
+      return values[i];
+    }
+
+    /**
+     * Quantile, with a linear interpolation between the closest ranks
+     * (the median of an even count of values is the mean of the two middle values).
+     * 
+     * @param p A probability, from 0 to 1.
+     * @return NaN if no values.
+     */
+    public double quantile(final double p)
+    {
+      if (card == 0) return Double.NaN;
+      if (p < 0 || p > 1) throw new IllegalArgumentException("p=" + p + ", should be in [0, 1]");
+      final double h = (card - 1) * p;
+      final int low = (int) Math.floor(h);
+      final double v = rank(low);
+      if (low + 1 >= card) return v;
+      return v + (h - low) * (rank(low + 1) - v);
+    }
+
+    /**
+     * Median of the values.
+     */
+    public double median()
+    {
+      return quantile(0.5);
+    }
+
+    /**
+     * Bounds of n parts with the same count of docs (ex: n=10 for deciles).
+     * 
+     * @param n Count of parts.
+     * @return n + 1 values, from min to max.
+     */
+    public double[] quantiles(final int n)
+    {
+      final double[] quantiles = new double[n + 1];
+      for (int i = 0; i <= n; i++) quantiles[i] = quantile((double) i / n);
+      return quantiles;
+    }
+
+    /**
+     * Count of docs by intervals of same width, from min to max.
+     * 
+     * @param bins Count of intervals.
+     * @return
+     */
+    public int[] histogram(final int bins)
+    {
+      final int[] histogram = new int[bins];
+      if (card == 0) return histogram;
+      final double width = ((double) max - min + 1) / bins;
+      for (int i = 0; i < values.length; i++) {
+        int bin = (int) ((values[i] - (double) min) / width);
+        if (bin >= bins) bin = bins - 1;
+        histogram[bin] += counts[i];
+      }
+      return histogram;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "card=" + card + " distinct=" + values.length + " min=" + min + " max=" + max + " mean=" + mean() + " median=" + median();
+    }
+  }
+
+  /**
+   * Collect the values of an IntPoint for a leaf, as longs, docId in the high bits,
+   * value in the low bits (sign bit flipped for an unsigned sort).
+   */
+  static class IntPointVisitor implements PointValues.IntersectVisitor
+  {
+    /** Deleted docs */
+    private final Bits liveDocs;
+    /** Doc and value */
+    long[] keys;
+    /** Count of keys */
+    int size;
     
-    
-    public void setContext(LeafReaderContext context)
+    public IntPointVisitor(final Bits liveDocs, final int capacity)
     {
-      docBase = context.docBase;
-      LeafReader leaf = context.reader();
-      liveDocs = leaf.getLiveDocs();
+      this.liveDocs = liveDocs;
+      this.keys = new long[Math.max(16, capacity)];
     }
     
     @Override
@@ -206,17 +688,10 @@ public class IntSeries
     @Override
     public void visit(int docLeaf, byte[] packedValue) throws IOException
     {
-      // will be visited one time for each values in ascending order for each doc
-      final int docId = docBase + docLeaf;
       if (liveDocs != null && !liveDocs.get(docLeaf)) return;
-      // in case of multiple values, take the first one
-      if (docInt[docId] > Integer.MIN_VALUE) return;
-      int v = IntPoint.decodeDimension(packedValue, 0);
-      docInt[docId] = v;
-      card++;
-      if (min > v) min = v;
-      if (max < v) max = v;
-      sum += v;
+      if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+      final int v = IntPoint.decodeDimension(packedValue, 0);
+      keys[size++] = ((long) docLeaf << 32) | ((v ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
     }
 
     @Override
@@ -224,7 +699,5 @@ public class IntSeries
     {
       return Relation.CELL_CROSSES_QUERY; // cross is needed to have a visit
     }
-
-    
   }
 }
@@ -32,9 +32,13 @@
  */
 package alix.lucene.search;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
@@ -43,132 +47,233 @@ import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.RamUsageEstimator;
 
 import alix.lucene.Alix;
+import alix.lucene.util.Cache;
+import alix.lucene.util.LeafCache;
+import alix.util.IntList;
 
 /**
  * Handle data to display results as a chronology, according to 
  * subset of an index, given as a bitset.
  * 
+ * <p>
+ * Data are stored as columns of primitive arrays, by “ord”, the index of
+ * a doc of the scale in docId order: docIds, int values, lengths, and position
+ * on the axis (cumulative length of the docs before in value order).
+ * The value order is a permutation of the ords, sorted as primitive longs.
+ * Docs of the scale are found from their docId by binary search. 
+ * </p>
  * 
  * @author fred
  *
  */
-public class Scale
+public class Scale implements Accountable
 {
   /** The lucene index */
   private final Alix alix;
-  /** An optional corpus as a set of docIds */
-  private final BitSet filter;
+  /** The reader of the scale, the one of the stats of the text field */
+  private final IndexReader reader;
   /** Field name, type: NumericDocValuesField, for int values */
   private final String fieldInt;
   /** Field name, type. TextField, for text occurrences */
   private final String fieldText;
   /** Count of docs */
   private final int docs;
-  /** Data, sorted in fieldInt order, used to write an axis */
-  private final Tick[] byValue;
-  /** Data, sorted in docid order, used in term query stats */
-  private final Tick[] byDocid;
+  /** By ord, docId, in ascending order */
+  private final int[] docIds;
+  /** By ord, value of the int field */
+  private final int[] values;
+  /** By ord, length of doc in occurrences of the text field */
+  private final int[] lengths;
+  /** By ord, start position of the doc on the axis */
+  private final long[] cumuls;
+  /** Ords in value order, null if same as docId order (ex: index sorted by the int field) */
+  private final int[] byValue;
   /** Global width of the corpus in occurrences of the text field */
   private final long length;
   /** Minimum int label of the int field for the corpus */
   private final int min;
   /** Maximum int label of the int field for the corpus */
   private final int max;
+  /** Scale of all the docs of the index (no filter), occurrences by bucket could be used */
+  private final boolean all;
+  /** A copy of the filter of the corpus, null for all docs, to check a scale found by {@link #key(BitSet)} */
+  private final BitSet filter;
+  /** Last plan to count curves from buckets, see {@link #bucketPlan(BucketFreqs, int, long)} */
+  private volatile BucketPlan bucketPlan;
 
   public Scale(final Alix alix, final String fieldInt, final String fieldText) throws IOException
   {
     this(alix, null, fieldInt, fieldText);
   }
 
+  /**
+   * Build a scale for a corpus, values of the int field are read by segment,
+   * and cached by segment by the {@link Alix#leafCache()} across refreshes of the reader.
+   * Docs without value are not in the scale. The reader is the one of the stats 
+   * of the text field ({@link Freqs#reader()}), kept open while reading it.
+   * 
+   * @param alix
+   * @param filter Optional, a set of docIds, a copy is kept by the scale, see {@link #isFor(BitSet)}.
+   * @param fieldInt A NumericDocValuesField used as a sorted value.
+   * @param fieldText A TextField to count occurrences, used as a size for docs.
+   * @throws IOException
+   */
   public Scale(final Alix alix, final BitSet filter, final String fieldInt, final String fieldText) throws IOException
   {
     this.alix = alix;
-    this.filter = filter;
     this.fieldInt = fieldInt;
     this.fieldText = fieldText;
-    IndexReader reader = alix.reader();
+    this.all = (filter == null);
+    this.filter = DocSets.copy(filter);
+    final Freqs freqs = alix.freqs(fieldText);
+    final IndexReader reader = this.reader = freqs.reader();
     int card;
     if (filter == null) card = reader.maxDoc();
     else card = filter.cardinality();
-    this.docs = card;
-    Tick[] byValue = new Tick[card];
-    Tick[] byDocid = new Tick[card];
-    int ord = 0; // pointer in the array of axis
-    int[] docLength = alix.docLength(fieldText);
+    int[] docIds = new int[card];
+    int[] values = new int[card];
+    int[] lengths = new int[card];
+    int ord = 0; // pointer in the columns
+    int[] docLength = freqs.docLength;
     int min = Integer.MAX_VALUE;
     int max = Integer.MIN_VALUE;
     int last = -1;
+    // values found in docId order are already sorted (ex: index sorted by this field, see Alix.indexSort())
+    boolean sorted = true;
     // loop an all docs of index to catch the int label 
-    for (LeafReaderContext context : reader.leaves()) {
-      LeafReader leaf = context.reader();
-      NumericDocValues docs4num = leaf.getNumericDocValues(fieldInt);
-      // no values for this leaf, go next
-      if (docs4num == null) continue;
-      final Bits liveDocs = leaf.getLiveDocs();
-      final int docBase = context.docBase;
-      int docLeaf;
-      while ((docLeaf = docs4num.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-        int docId = docBase + docLeaf;
-        // doc not in corpus, go next
-        if (filter != null && !filter.get(docId)) continue;
-        Tick tick;
-        // doc is deleted, should not be in a corpus, but sometimes...
-        if (liveDocs != null && !liveDocs.get(docLeaf)) {
-          tick = new Tick(docId, last, 0); // insert an empty slice for deleted docs
-        }
-        else {
-          int v = (int) docs4num.longValue(); // force label to int;
-          last = v;
-          if (min > v) min = v;
-          if (max < v) max = v;
-          tick = new Tick(docId, v, docLength[docId]);
-        }
-        // full index, as much ticks as docs
-        if (filter == null) {
-          byValue[docId] = tick;
-          byDocid[docId] = tick;
-        }
-        // a tick for each doc in the corpus
-        else {
-          byValue[ord] = tick;
-          byDocid[ord] = tick;
+    final LeafCache leafCache = alix.leafCache();
+    // keep the reader open during the loop, even if a refresh happens
+    if (!reader.tryIncRef()) throw new AlreadyClosedException("Reader closed by a refresh, get a new Scale from Alix");
+    try {
+      for (LeafReaderContext context : reader.leaves()) {
+        LeafReader leaf = context.reader();
+        LeafValues leafValues = leafCache.get(context, false, "Scale" + Cache.SEP + fieldInt, new Cache.Loader<LeafValues>() {
+          @Override
+          public LeafValues load() throws IOException
+          {
+            return LeafValues.read(context.reader(), fieldInt);
+          }
+        });
+        // no values for this leaf, go next
+        if (leafValues == null) continue;
+        final Bits liveDocs = leaf.getLiveDocs();
+        final int docBase = context.docBase;
+        final int[] docs = leafValues.docs;
+        final int[] leafInt = leafValues.values;
+        for (int i = 0, length = docs.length; i < length; i++) {
+          final int docLeaf = docs[i];
+          int docId = docBase + docLeaf;
+          // doc not in corpus, go next
+          if (filter != null && !filter.get(docId)) continue;
+          docIds[ord] = docId;
+          // doc is deleted, should not be in a corpus, but sometimes...
+          if (liveDocs != null && !liveDocs.get(docLeaf)) {
+            values[ord] = last; // insert an empty slice for deleted docs
+          }
+          else {
+            int v = leafInt[i];
+            if (v < last) sorted = false;
+            last = v;
+            if (min > v) min = v;
+            if (max < v) max = v;
+            values[ord] = v;
+            lengths[ord] = docLength[docId];
+          }
           ord++;
         }
       }
     }
+    finally {
+      reader.decRef();
+    }
+    // some docs without values
+    if (ord < card) {
+      docIds = Arrays.copyOf(docIds, ord);
+      values = Arrays.copyOf(values, ord);
+      lengths = Arrays.copyOf(lengths, ord);
+    }
+    final int size = ord;
+    this.docs = size;
     this.min = min;
     this.max = max;
-    // sort axis by date, to record a position as the cumulative length
-    Arrays.sort(byValue, new Comparator<Tick>()
-    {
-      @Override
-      public int compare(Tick tick1, Tick tick2)
-      {
-        if (tick1.value < tick2.value) return -1;
-        if (tick1.value > tick2.value) return +1;
-        if (tick1.docId < tick2.docId) return -1;
-        if (tick1.docId > tick2.docId) return +1;
-        return 0;
-      }
-    });
+    // sort axis by value, then docId, to record a position as the cumulative length,
+    // docId order is the value order for a sorted index
+    int[] byValue = null;
+    if (!sorted) {
+      // value in the high bits, ord (docId order) in the low bits, primitive sort
+      long[] keys = new long[size];
+      for (int i = 0; i < size; i++) keys[i] = ((long)values[i] << 32) | i;
+      Arrays.sort(keys);
+      byValue = new int[size];
+      for (int i = 0; i < size; i++) byValue[i] = (int) keys[i];
+    }
     // update positon on an axis, with cumulation of length in occs
+    long[] cumuls = new long[size];
     long cumul = 0;
-    for (int i = 0; i < card; i++) {
-      Tick tick = byValue[i];
-      tick.cumul = cumul; // cumul of previous length
-      long length = tick.length;
+    for (int i = 0; i < size; i++) {
+      final int o = (byValue == null) ? i : byValue[i];
+      cumuls[o] = cumul; // cumul of previous length
+      long length = lengths[o];
       // length should never been less 0, quick fix
       if (length > 0) cumul += length;
     }
+    this.docIds = docIds;
+    this.values = values;
+    this.lengths = lengths;
+    this.cumuls = cumuls;
     this.byValue = byValue;
-    this.byDocid = byDocid;
     this.length = cumul;
   }
 
+  /**
+   * Values of a NumericDocValues field for a segment, docs with a value, in docId order,
+   * with their value.
+   */
+  private static class LeafValues implements Accountable
+  {
+    /** DocIds of the leaf with a value */
+    final int[] docs;
+    /** Values of the docs, forced to int */
+    final int[] values;
+
+    LeafValues(final int[] docs, final int[] values)
+    {
+      this.docs = docs;
+      this.values = values;
+    }
+
+    /**
+     * Read values from a leaf, null if no values.
+     */
+    static LeafValues read(final LeafReader leaf, final String field) throws IOException
+    {
+      NumericDocValues docs4num = leaf.getNumericDocValues(field);
+      if (docs4num == null) return null;
+      IntList docs = new IntList();
+      IntList values = new IntList();
+      int docLeaf;
+      while ((docLeaf = docs4num.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        docs.push(docLeaf);
+        values.push((int) docs4num.longValue()); // force label to int;
+      }
+      return new LeafValues(docs.toArray(), values.toArray());
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+      return RamUsageEstimator.shallowSizeOfInstance(LeafValues.class) 
+        + RamUsageEstimator.sizeOf(docs) + RamUsageEstimator.sizeOf(values);
+    }
+  }
+
   /** A row of data for a crossing axis */
   public static class Tick
   {
@@ -191,6 +296,52 @@ public class Scale
     }
   }
 
+  @Override
+  public long ramBytesUsed()
+  {
+    long bytes = RamUsageEstimator.shallowSizeOfInstance(Scale.class);
+    bytes += RamUsageEstimator.sizeOf(docIds) + RamUsageEstimator.sizeOf(values);
+    bytes += RamUsageEstimator.sizeOf(lengths) + RamUsageEstimator.sizeOf(cumuls);
+    if (byValue != null) bytes += RamUsageEstimator.sizeOf(byValue);
+    if (filter != null) bytes += filter.ramBytesUsed();
+    return bytes;
+  }
+
+  /**
+   * Test if this scale was built for a filter, with the same docs,
+   * to not return the scale of another corpus with the same {@link #key(BitSet)}.
+   * 
+   * @param filter Optional, a set of docIds.
+   * @return
+   */
+  public boolean isFor(final BitSet filter)
+  {
+    return DocSets.same(this.filter, filter);
+  }
+
+  /**
+   * Get a stable key for a filter, to cache a scale by corpus, see {@link Alix#scale(String, String, BitSet)}.
+   * Two sets with same bits have the same key, but two different sets may have 
+   * the same key (a hash), a scale found by this key should be checked, see {@link #isFor(BitSet)}.
+   * 
+   * @param filter
+   * @return
+   */
+  public static String key(final BitSet filter)
+  {
+    if (filter == null) return "all";
+    long hash = 0xcbf29ce484222325L; // FNV-1a, 64 bits, on the docIds
+    final int length = filter.length();
+    int card = 0;
+    for (int docId = 0; docId < length; docId++) {
+      docId = filter.nextSetBit(docId);
+      if (docId == DocIdSetIterator.NO_MORE_DOCS) break;
+      hash = (hash ^ docId) * 0x100000001b3L;
+      card++;
+    }
+    return length + "-" + card + "-" + Long.toHexString(hash);
+  }
+
   /**
    * Minimum label of this scale
    */
@@ -216,13 +367,50 @@ public class Scale
   }
 
   /**
-   * Return data to display an axis for the corpus
+   * Count of docs in this scale.
+   */
+  public int docs()
+  {
+    return docs;
+  }
+
+  /**
+   * Find the ord of a doc in the scale, from an ord, the doc is supposed to be near
+   * (ex: next doc of postings), bounds are found by exponential steps, then a binary search.
+   * 
+   * @param from Lower bound of the search.
+   * @param docId
+   * @return ord of the doc, or (-(insertion point) - 1) if not found, like {@link Arrays#binarySearch(int[], int)}.
+   */
+  private int ord(final int from, final int docId)
+  {
+    if (from >= docs) return -docs - 1;
+    if (docIds[from] >= docId) return (docIds[from] == docId) ? from : -from - 1;
+    int low = from;
+    int bound = 1;
+    while (low + bound < docs && docIds[low + bound] < docId) {
+      low += bound;
+      bound <<= 1;
+    }
+    return Arrays.binarySearch(docIds, low + 1, Math.min(low + bound + 1, docs), docId);
+  }
+
+  /**
+   * Return data to display an axis for the corpus, ticks are built on each call.
    * @return
    */
   public Tick[] axis()
   {
-    return byValue;
+    Tick[] ticks = new Tick[docs];
+    for (int i = 0; i < docs; i++) {
+      final int o = (byValue == null) ? i : byValue[i];
+      Tick tick = new Tick(docIds[o], values[o], lengths[o]);
+      tick.cumul = cumuls[o];
+      ticks[i] = tick;
+    }
+    return ticks;
   }
+
   /**
    * 
    */
@@ -232,113 +420,512 @@ public class Scale
     // width of a step between two dots, should be same as curves
     long step = (long)((double)length / dots);
     long[] index = data[0]; // index in count of tokens
-    long[] values = data[1]; // value of int field
+    long[] legend = data[1]; // value of int field
     long[] docN = data[2]; // index of doc in the series
-    Tick tick = null;
-    Tick[] ticks = this.byValue; // docid in value order
-    int value;
-    int max = ticks.length;
+    final int max = docs;
+    if (max == 0) return data;
     long cumul = 0;
-    int n = 0; // 
     for (int i = 0; i < dots; i++) {
       // cumul should be exactly the same as curves
       index[i] = cumul;
-      // find int value for this cumul
-      while(n < max) {
-        tick = ticks[n];
-        if (tick.cumul >= cumul) break;
-        n++;
-      }
-      value = tick.value;
-      // find first tick with this value
-      while(n > 1) {
-        if (ticks[n-1].value < value) break;
-        n--;
-      }
-      values[i] = value;
+      // first tick in value order at this cumul, or last tick
+      int n = firstCumul(cumul);
+      int value = values[(n < max) ? valueOrd(n) : valueOrd(max - 1)];
+      // first tick with this value
+      if (n > 1) n = Math.max(1, firstValue(value, Math.min(n, max - 1)));
+      legend[i] = value;
       docN[i] = n;
       cumul += step; // increment 
     }
     return data;
   }
+
+  /**
+   * Ord of the doc at an index in value order.
+   */
+  private int valueOrd(final int i)
+  {
+    return (byValue == null) ? i : byValue[i];
+  }
+
+  /**
+   * Binary search of the first index in value order with a position on axis 
+   * bigger or equal to cumul, or docs if none.
+   */
+  private int firstCumul(final long cumul)
+  {
+    int low = 0;
+    int high = docs;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (cumuls[valueOrd(mid)] < cumul) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * Binary search of the first index in value order with a value,
+   * before a known index with this value.
+   */
+  private int firstValue(final int value, final int to)
+  {
+    int low = 0;
+    int high = to;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (values[valueOrd(mid)] < value) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
   
   /**
-   * Cross index to get term counts in date order.
+   * Cross index to get term counts in date order, one column by term.
+   * See {@link #curves(TermList, int, boolean)}.
    * @param terms An organized list of lucene terms.
    * @param dots Number of dots by curve.
    * @return
    * @throws IOException
    */
   public long[][] curves(TermList terms, int dots) throws IOException
+  {
+    return curves(terms, dots, false);
+  }
+
+  /**
+   * Cross index to get term counts in date order, for any count of terms.
+   * Postings of each term in each leaf are read by a task, counting occurrences in its own
+   * buffer of dots, in parallel if the {@link Alix#forkJoinPool()} is available, 
+   * buffers are summed by column at the end.
+   * For a scale of the whole index, if occurrences by value have been built 
+   * ({@link Alix#buckets(String, String)}), the occurrences of a value are counted
+   * from them in the last dot of the value, postings are only read for the docs of a value
+   * in the dots before, if it is across dots (the count is moved from the last dot).
+   * 
+   * @param terms An organized list of lucene terms, null terms are group separators.
+   * @param dots Number of dots by curve.
+   * @param groups If true, one column by group of terms (occurrences of the terms are summed),
+   * if false, one column by term.
+   * @return Columns of dots, first column is the position of the dot on the axis, 
+   * next columns are counts of occurrences, null if no terms.
+   * @throws IOException
+   */
+  public long[][] curves(final TermList terms, final int dots, final boolean groups) throws IOException
   {
     if (terms.size() < 1) return null;
-    // ticks should be in doc order
-    IndexReader reader = alix.reader();
-    // terms maybe organized in groups
-    int cols = terms.sizeNotNull();
-    if (cols > 10) cols = 10;
-
-    // if there are only a few books, hundred of dots doesn't make sense
-    // def = Math.min(def, docs);
-    // table of data to populate
-    long[][] data = new long[cols + 1][dots];
-    // width of a step between two dots, 
-    long step = (long)((double)length / dots);
-    // populate the first column, index in the axis
-    long cumul = 0;
-    long[] column = data[0];
-    for (int i = 0; i < dots; i++) {
-      column[i] = cumul;
-      cumul += step;
+    // keep the reader open during the count, even if a refresh happens
+    if (!reader.tryIncRef()) throw new AlreadyClosedException("Reader closed by a refresh, get a new Scale from Alix");
+    try {
+      // column of each term
+      ArrayList<Term> list = new ArrayList<Term>();
+      IntList termCols = new IntList();
+      int cols = 0;
+      boolean open = false; // a group is open
+      for (Term term : terms) {
+        if (term == null) { // null terms are group separators
+          open = false;
+          continue;
+        }
+        if (!groups || !open) cols++;
+        open = true;
+        list.add(term);
+        termCols.push(cols); // start col at 1
+      }
+      // table of data to populate
+      long[][] data = new long[cols + 1][dots];
+      // width of a step between two dots, 
+      long step = (long)((double)length / dots);
+      // populate the first column, index in the axis
+      long cumul = 0;
+      long[] column = data[0];
+      for (int i = 0; i < dots; i++) {
+        column[i] = cumul;
+        cumul += step;
+      }
+      // occurrences by value, only for the whole index (a corpus needs the postings),
+      // without deleted docs (in the scale with no length, but with postings)
+      BucketFreqs bucketFreqs = null;
+      if (all && !reader.hasDeletions()) bucketFreqs = alix.buckets(fieldInt, fieldText);
+      // buckets of another state of the index
+      if (bucketFreqs != null && bucketFreqs.reader != reader) bucketFreqs = null;
+      BucketPlan plan = null;
+      if (bucketFreqs != null) plan = bucketPlan(bucketFreqs, dots, step);
+      // a task by leaf and term
+      ArrayList<TermCurve> tasks = new ArrayList<TermCurve>();
+      final boolean[] fromBuckets = new boolean[list.size()];
+      for (int t = 0, size = list.size(); t < size; t++) {
+        final Term term = list.get(t);
+        // postings are cheaper for a term in less docs than the docs to read for the buckets
+        fromBuckets[t] = (plan != null && fieldText.equals(term.field()) && reader.docFreq(term) > plan.only.length);
+      }
+      for (LeafReaderContext context : reader.leaves()) {
+        for (int t = 0, size = list.size(); t < size; t++) {
+          if (!fromBuckets[t]) tasks.add(new TermCurve(context, list.get(t), termCols.get(t), dots, step, null, null));
+          else if (plan.only.length > 0) tasks.add(new TermCurve(context, list.get(t), termCols.get(t), dots, step, plan.only, plan.onlyLast));
+        }
+      }
+      final ForkJoinPool pool = alix.forkJoinPool();
+      if (pool == null || pool.isShutdown()) {
+        for (TermCurve task : tasks) task.count();
+      }
+      else {
+        try {
+          pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected void compute()
+            {
+              invokeAll(tasks);
+            }
+          });
+        }
+        catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+      // reduction, sequential
+      for (TermCurve task : tasks) {
+        if (task.counts == null) continue;
+        column = data[task.col];
+        final long[] counts = task.counts;
+        for (int i = 0; i < dots; i++) column[i] += counts[i];
+      }
+      for (int t = 0, size = list.size(); t < size; t++) {
+        if (!fromBuckets[t]) continue;
+        bucketFreqs.add(list.get(t).bytes(), plan.bucketRows, data[termCols.get(t)]);
+      }
+      return data;
     }
-    // localize data in docid order
-    Tick[] byDocid = this.byDocid; // localize variable for perf
-    int docs = byDocid.length;
-    int ordBase = 0; // pointer in the Tick array
-    // loop on contexts, because open a context is heavy, do not open too much
-    for (LeafReaderContext ctx : reader.leaves()) {
-      LeafReader leaf = ctx.reader();
-      int docBase = ctx.docBase;
-      int col = 0; 
-      // multi leaves not yet really tested
-      // assert byDocid[ordBase - 1].docId < docBase <= byDocid[ordBase]
-      int ordMax = ordBase; // keep memory of biggest ord found for each terms, to set ordBase
-      // Do as a termQuery, loop on PostingsEnum.FREQS for each term
-      for(Term term: terms) {
-        if (term == null) continue; // null terms are group separators
-        if (col >= cols) break;
-        col++; // start col at 1
-        // for each term, reset the pointer in the axis
-        int ord = ordBase;
-        PostingsEnum postings = leaf.postings(term);
-        if (postings == null) continue;
-        int docLeaf;
-        long freq;
-        column = data[col];
-        while((docLeaf = postings.nextDoc()) !=  DocIdSetIterator.NO_MORE_DOCS) {
-          if ((freq = postings.freq()) == 0) continue;
-          int docId = docBase + docLeaf;
-          long pos;
-          if (filter != null) {
-            // current doc not in the corpus, go next
-            if (!filter.get(docId)) continue;
-            // find the index of the doc found in the axis data
-            while(byDocid[ord].docId != docId) ord++;
-            // should be the right tick here
-            pos = byDocid[ord].cumul;
-          }
-          else {
-            pos = byDocid[docId].cumul;
-          }
-          // affect occurrences count to a dot, according to the absolute position of the doc in axis
-          int row = (int)((double)pos / step);
-          if (row >= dots) row = dots - 1; // because of rounding on big numbers last row could be missed
-          column[row] += freq;
+    finally {
+      reader.decRef();
+    }
+  }
+
+  /**
+   * How to count the occurrences of a term from a {@link BucketFreqs}, for a count of dots.
+   */
+  private static class BucketPlan
+  {
+    /** Source of the counts */
+    final BucketFreqs bucketFreqs;
+    /** Count of dots */
+    final int dots;
+    /** By bucket, the last dot of the docs of the value, or -1 */
+    final int[] bucketRows;
+    /** Ords of the docs of a value before its last dot, counted from postings, in docId order */
+    final int[] only;
+    /** Last dot of the value of these docs */
+    final int[] onlyLast;
+
+    BucketPlan(final BucketFreqs bucketFreqs, final int dots, final int[] bucketRows, final int[] only, final int[] onlyLast)
+    {
+      this.bucketFreqs = bucketFreqs;
+      this.dots = dots;
+      this.bucketRows = bucketRows;
+      this.only = only;
+      this.onlyLast = onlyLast;
+    }
+  }
+
+  /**
+   * Get the plan to count from buckets, the last one is kept (a chart is usually
+   * requested with the same count of dots), or null if the buckets do not match the scale.
+   */
+  private BucketPlan bucketPlan(final BucketFreqs bucketFreqs, final int dots, final long step)
+  {
+    BucketPlan plan = this.bucketPlan;
+    if (plan != null && plan.bucketFreqs == bucketFreqs && plan.dots == dots) return plan;
+    final int[] bucketRows = new int[bucketFreqs.size()];
+    Arrays.fill(bucketRows, -1);
+    IntList across = new IntList();
+    IntList lasts = new IntList();
+    int i = 0;
+    while (i < docs) {
+      final int value = values[valueOrd(i)];
+      int j = i + 1;
+      while (j < docs && values[valueOrd(j)] == value) j++;
+      final int bucket = bucketFreqs.bucket(value);
+      // not the same values, should not arrive
+      if (bucket < 0) return null;
+      final int last = row(cumuls[valueOrd(j - 1)], step, dots);
+      bucketRows[bucket] = last;
+      for (int k = i; k < j; k++) {
+        final int o = valueOrd(k);
+        if (row(cumuls[o], step, dots) == last) break; // docs of a value are in axis order
+        across.push(o);
+        lasts.push(last);
+      }
+      i = j;
+    }
+    // docId order, ord in high bits
+    final int size = across.size();
+    long[] keys = new long[size];
+    for (int k = 0; k < size; k++) keys[k] = ((long)across.get(k) << 32) | lasts.get(k);
+    Arrays.sort(keys);
+    final int[] only = new int[size];
+    final int[] onlyLast = new int[size];
+    for (int k = 0; k < size; k++) {
+      only[k] = (int)(keys[k] >>> 32);
+      onlyLast[k] = (int) keys[k];
+    }
+    plan = new BucketPlan(bucketFreqs, dots, bucketRows, only, onlyLast);
+    this.bucketPlan = plan;
+    return plan;
+  }
+
+  /**
+   * Dot of a position on the axis.
+   */
+  private static int row(final long pos, final long step, final int dots)
+  {
+    int row = (int)((double)pos / step);
+    if (row >= dots) row = dots - 1; // because of rounding on big numbers last row could be missed
+    return row;
+  }
+
+  /**
+   * A task of {@link Scale#curves(TermList, int, boolean)}, occurrences of a term 
+   * in a leaf, by dot of the axis.
+   */
+  private class TermCurve extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    /** The leaf */
+    final LeafReaderContext context;
+    /** The term */
+    final Term term;
+    /** Destination column */
+    final int col;
+    /** Count of dots */
+    final int dots;
+    /** Width of a dot in occurrences */
+    final long step;
+    /** Optional, ords of the only docs to count, in docId order */
+    final int[] only;
+    /** For the only docs, a dot from which to move the count */
+    final int[] onlyLast;
+    /** Results, occurrences by dot, null if no match */
+    long[] counts;
+
+    TermCurve(final LeafReaderContext context, final Term term, final int col, final int dots, final long step, final int[] only, final int[] onlyLast)
+    {
+      this.context = context;
+      this.term = term;
+      this.col = col;
+      this.dots = dots;
+      this.step = step;
+      this.only = only;
+      this.onlyLast = onlyLast;
+    }
+
+    @Override
+    protected void compute()
+    {
+      try {
+        count();
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Loop on the postings of the term.
+     */
+    void count() throws IOException
+    {
+      final int docBase = context.docBase;
+      // first ord of this leaf
+      int ord = ord(0, docBase);
+      if (ord < 0) ord = -ord - 1;
+      if (ord >= docs) return; // no more docs of the scale
+      PostingsEnum postings = context.reader().postings(term);
+      if (postings == null) return;
+      // localize data for perf
+      final long[] cumuls = Scale.this.cumuls;
+      final long[] counts = new long[dots];
+      if (only != null) {
+        // jump to the requested docs of the leaf, move their count from the last dot of their value
+        final int leafMax = context.reader().maxDoc();
+        int i = Arrays.binarySearch(only, ord);
+        if (i < 0) i = -i - 1;
+        int docLeaf = -1;
+        for (final int length = only.length; i < length; i++) {
+          final int o = only[i];
+          final int target = docIds[o] - docBase;
+          if (target >= leafMax) break;
+          if (docLeaf < target) docLeaf = postings.advance(target);
+          if (docLeaf == DocIdSetIterator.NO_MORE_DOCS) break;
+          if (docLeaf != target) continue;
+          final int freq = postings.freq();
+          counts[row(cumuls[o], step, dots)] += freq;
+          counts[onlyLast[i]] -= freq;
+        }
+        this.counts = counts;
+        return;
+      }
+      int docLeaf;
+      long freq;
+      while((docLeaf = postings.nextDoc()) !=  DocIdSetIterator.NO_MORE_DOCS) {
+        if ((freq = postings.freq()) == 0) continue;
+        int docId = docBase + docLeaf;
+        // find the doc in the axis data, docs are found in ascending order
+        int found = ord(ord, docId);
+        // doc not in the scale (not in the corpus, or without value)
+        if (found < 0) {
+          ord = -found - 1;
+          if (ord >= docs) break;
+          continue;
         }
-        if (ordMax < ord) ordMax = ord;
+        ord = found;
+        // affect occurrences count to a dot, according to the absolute position of the doc in axis
+        counts[row(cumuls[ord], step, dots)] += freq;
       }
-      ordBase = ordMax + 1;
+      this.counts = counts;
+    }
+  }
+
+  /**
+   * Relative frequencies of curves, occurrences by million of occurrences of the dot
+   * (all dots have the same width on the axis, except the last one, sometimes bigger).
+   * 
+   * @param data Columns from {@link #curves(TermList, int, boolean)}.
+   * @return Columns of same size, first column is kept (position on axis).
+   */
+  public double[][] relative(final long[][] data)
+  {
+    final int cols = data.length;
+    final int dots = data[0].length;
+    double[][] rel = new double[cols][dots];
+    // widths of dots
+    final long[] axis = data[0];
+    final double[] widths = new double[dots];
+    for (int i = 0; i < dots; i++) {
+      rel[0][i] = axis[i];
+      widths[i] = ((i + 1 < dots) ? axis[i + 1] : length) - axis[i];
+    }
+    for (int col = 1; col < cols; col++) {
+      final long[] counts = data[col];
+      final double[] column = rel[col];
+      for (int i = 0; i < dots; i++) {
+        if (widths[i] <= 0) continue;
+        column[i] = counts[i] * 1000000.0 / widths[i];
+      }
+    }
+    return rel;
+  }
+
+  /**
+   * Smooth curves by a centered moving average, on dots from i - radius to i + radius
+   * (fewer on the edges).
+   * 
+   * @param data Columns of values, the first column (position on axis) is kept as is.
+   * @param radius Count of dots on each side, 0 for no smoothing.
+   * @return New columns.
+   */
+  public static double[][] smooth(final double[][] data, final int radius)
+  {
+    final int cols = data.length;
+    final int dots = data[0].length;
+    double[][] smooth = new double[cols][];
+    smooth[0] = data[0].clone();
+    final double[] sums = new double[dots + 1]; // prefix sums
+    for (int col = 1; col < cols; col++) {
+      final double[] column = data[col];
+      for (int i = 0; i < dots; i++) sums[i + 1] = sums[i] + column[i];
+      final double[] dest = new double[dots];
+      for (int i = 0; i < dots; i++) {
+        final int from = Math.max(0, i - radius);
+        final int to = Math.min(dots, i + radius + 1);
+        dest[i] = (sums[to] - sums[from]) / (to - from);
+      }
+      smooth[col] = dest;
+    }
+    return smooth;
+  }
+
+  /**
+   * Write columns of curves as a json array of arrays, compact, without spaces.
+   * 
+   * @param out Destination (ex: writer of a servlet).
+   * @param data Columns.
+   * @throws IOException
+   */
+  public static void json(final Appendable out, final long[][] data) throws IOException
+  {
+    out.append('[');
+    for (int col = 0; col < data.length; col++) {
+      if (col > 0) out.append(',');
+      out.append('[');
+      final long[] column = data[col];
+      for (int i = 0; i < column.length; i++) {
+        if (i > 0) out.append(',');
+        out.append(Long.toString(column[i]));
+      }
+      out.append(']');
+    }
+    out.append(']');
+  }
+
+  /**
+   * Write columns of curves as a json array of arrays, compact, without spaces,
+   * integral values without decimals, NaN as null.
+   * 
+   * @param out Destination (ex: writer of a servlet).
+   * @param data Columns.
+   * @throws IOException
+   */
+  public static void json(final Appendable out, final double[][] data) throws IOException
+  {
+    out.append('[');
+    for (int col = 0; col < data.length; col++) {
+      if (col > 0) out.append(',');
+      out.append('[');
+      final double[] column = data[col];
+      for (int i = 0; i < column.length; i++) {
+        if (i > 0) out.append(',');
+        final double v = column[i];
+        if (Double.isNaN(v) || Double.isInfinite(v)) out.append("null");
+        else if (v == (long) v) out.append(Long.toString((long) v));
+        else out.append(Double.toString(v));
+      }
+      out.append(']');
+    }
+    out.append(']');
+  }
+
+  /**
+   * Write columns of curves in binary: count of columns (int), count of dots (int),
+   * then the values (long) column by column, big-endian (ex: a javascript DataView).
+   * 
+   * @param out
+   * @param data
+   * @throws IOException
+   */
+  public static void binary(final DataOutput out, final long[][] data) throws IOException
+  {
+    out.writeInt(data.length);
+    out.writeInt((data.length > 0) ? data[0].length : 0);
+    for (long[] column : data) {
+      for (long v : column) out.writeLong(v);
+    }
+  }
+
+  /**
+   * Write columns of curves in binary: count of columns (int), count of dots (int),
+   * then the values (double) column by column, big-endian (ex: a javascript Float64Array with a DataView).
+   * 
+   * @param out
+   * @param data
+   * @throws IOException
+   */
+  public static void binary(final DataOutput out, final double[][] data) throws IOException
+  {
+    out.writeInt(data.length);
+    out.writeInt((data.length > 0) ? data[0].length : 0);
+    for (double[] column : data) {
+      for (double v : column) out.writeDouble(v);
     }
-    return data;
   }
 }
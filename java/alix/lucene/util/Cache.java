@@ -0,0 +1,469 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A cache of objects for an index, bounded by an estimated size in bytes.
+ * Objects implementing {@link Accountable} give their size, others are
+ * estimated by {@link RamUsageEstimator#sizeOfObject(Object)}.
+ * When the max size is reached, the least recently used entries are evicted,
+ * except the pinned ones. 
+ * 
+ * <p>
+ * Values are loaded by a {@link Loader} only once for concurrent requests of the same key,
+ * other threads wait for the result of the first one.
+ * Counters of hits, misses, loading time and evictions are kept by prefix of keys
+ * (the part before the first ':', ex: "AlixFreqs" for "AlixFreqs:text").
+ * </p>
+ */
+public class Cache
+{
+  /** Separator between prefix and specific part of a key */
+  public static final char SEP = ':';
+  /** Max size of the cache, in bytes */
+  private long maxBytes;
+  /** Current size of the cache, in bytes */
+  private long bytes;
+  /** Entries in access order, first is the least recently used */
+  private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  /** Counters by prefix of keys */
+  private final TreeMap<String, Stats> stats = new TreeMap<String, Stats>();
+
+  /**
+   * Load a value for a key, on a cache miss.
+   * @param <T>
+   */
+  public interface Loader<T>
+  {
+    T load() throws IOException;
+  }
+
+  /**
+   * Create a cache with a max size of a quarter of the max memory of the JVM.
+   */
+  public Cache()
+  {
+    this(Runtime.getRuntime().maxMemory() / 4);
+  }
+
+  /**
+   * Create a cache with a max size in bytes.
+   * 
+   * @param maxBytes
+   */
+  public Cache(final long maxBytes)
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * A cached value, or a value to come.
+   */
+  private class Entry
+  {
+    final String key;
+    final Stats stats;
+    /** Loading task, null for a value put */
+    final FutureTask<Object> task;
+    /** Loaded value */
+    volatile Object value;
+    /** Estimated size, 0 if not yet loaded */
+    long weight;
+    /** Not evicted if true */
+    boolean pinned;
+
+    Entry(final String key, final Stats stats, final FutureTask<Object> task)
+    {
+      this.key = key;
+      this.stats = stats;
+      this.task = task;
+    }
+
+    boolean loaded()
+    {
+      return (task == null || task.isDone());
+    }
+  }
+
+  /**
+   * Counters for a prefix of keys.
+   */
+  public static class Stats
+  {
+    /** Requests served from the cache */
+    public final LongAdder hits = new LongAdder();
+    /** Requests with no value cached */
+    public final LongAdder misses = new LongAdder();
+    /** Values loaded */
+    public final LongAdder loads = new LongAdder();
+    /** Cumulated time of loading, in nanoseconds */
+    public final LongAdder loadNanos = new LongAdder();
+    /** Evicted values */
+    public final LongAdder evictions = new LongAdder();
+
+    @Override
+    public String toString()
+    {
+      final long loads = this.loads.sum();
+      return "hits=" + hits.sum() + " misses=" + misses.sum() + " loads=" + loads 
+          + " load=" + ((loads == 0)?0:(loadNanos.sum() / loads / 1000000)) + " ms." 
+          + " evictions=" + evictions.sum();
+    }
+  }
+
+  /**
+   * Get the prefix of a key, used to group counters.
+   */
+  private static String prefix(final String key)
+  {
+    final int pos = key.indexOf(SEP);
+    if (pos < 0) return "";
+    return key.substring(0, pos);
+  }
+
+  /**
+   * Get counters for a key, create them if needed. Should be called in a synchronized block.
+   */
+  private Stats stats(final String key)
+  {
+    final String prefix = prefix(key);
+    Stats stats = this.stats.get(prefix);
+    if (stats == null) {
+      stats = new Stats();
+      this.stats.put(prefix, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Get a cached value, or null if not in cache or still loading.
+   * 
+   * @param key
+   * @return
+   */
+  public Object get(final String key)
+  {
+    Entry entry;
+    synchronized (this) {
+      entry = map.get(key);
+      if (entry == null || !entry.loaded()) {
+        stats(key).misses.increment();
+        return null;
+      }
+    }
+    entry.stats.hits.increment();
+    return entry.value;
+  }
+
+  /**
+   * Get a cached value, or load it. If another thread is already loading the 
+   * value for this key, wait for its result, instead of loading it again.
+   * A null value is not cached.
+   * 
+   * @param key
+   * @param loader
+   * @return
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(final String key, final Loader<T> loader) throws IOException
+  {
+    Entry entry;
+    boolean owner = false;
+    synchronized (this) {
+      entry = map.get(key);
+      if (entry == null) {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception
+          {
+            return loader.load();
+          }
+        });
+        entry = new Entry(key, stats(key), task);
+        map.put(key, entry);
+        owner = true;
+      }
+    }
+    if (!owner) {
+      entry.stats.hits.increment();
+      if (entry.task == null) return (T) entry.value;
+    }
+    else {
+      entry.stats.misses.increment();
+      final long start = System.nanoTime();
+      entry.task.run(); // load in this thread
+      entry.stats.loadNanos.add(System.nanoTime() - start);
+      entry.stats.loads.increment();
+    }
+    Object value;
+    try {
+      value = entry.task.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for cache key \"" + key + "\"", e);
+    }
+    catch (ExecutionException e) {
+      if (owner) remove(entry);
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+    if (owner) {
+      if (value == null) remove(entry);
+      else loaded(entry, value);
+    }
+    return (T) value;
+  }
+
+  /**
+   * Put a value in the cache, replacing a previous one.
+   * 
+   * @param key
+   * @param value
+   */
+  public void put(final String key, final Object value)
+  {
+    if (value == null) return;
+    final Entry entry;
+    synchronized (this) {
+      entry = new Entry(key, stats(key), null);
+      Entry old = map.put(key, entry);
+      if (old != null) {
+        bytes -= old.weight;
+        entry.pinned = old.pinned;
+      }
+    }
+    // weigh outside the lock, may cost for big objects
+    loaded(entry, value);
+  }
+
+  /**
+   * A value is loaded, record its weight, and evict entries if needed.
+   */
+  private void loaded(final Entry entry, final Object value)
+  {
+    final long weight = weigh(value);
+    synchronized (this) {
+      entry.value = value;
+      // entry has been removed (ex: clear), do not count it
+      if (map.get(entry.key) != entry) return;
+      entry.weight = weight;
+      bytes += weight;
+      evict();
+    }
+  }
+
+  /**
+   * Remove an entry, if still the one in the cache.
+   */
+  private synchronized void remove(final Entry entry)
+  {
+    if (map.get(entry.key) != entry) return;
+    map.remove(entry.key);
+    bytes -= entry.weight;
+  }
+
+  /**
+   * Remove least recently used entries, till size is lower than max.
+   * Should be called in a synchronized block.
+   */
+  private void evict()
+  {
+    if (bytes <= maxBytes) return;
+    Iterator<Entry> it = map.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.pinned || !entry.loaded() || entry.weight == 0) continue;
+      it.remove();
+      bytes -= entry.weight;
+      entry.stats.evictions.increment();
+    }
+  }
+
+  /**
+   * Estimate the size of an object in memory.
+   * 
+   * @param value
+   * @return
+   */
+  public static long weigh(final Object value)
+  {
+    if (value instanceof Accountable) return ((Accountable) value).ramBytesUsed();
+    return RamUsageEstimator.sizeOfObject(value);
+  }
+
+  /**
+   * Pin or unpin an entry. A pinned entry is not evicted
+   * (but is removed on {@link #clear()}).
+   * 
+   * @param key
+   * @param pinned
+   * @return false if the key is not in the cache.
+   */
+  public synchronized boolean pin(final String key, final boolean pinned)
+  {
+    Entry entry = map.get(key);
+    if (entry == null) return false;
+    entry.pinned = pinned;
+    if (!pinned) evict();
+    return true;
+  }
+
+  /**
+   * Set the max size of the cache, in bytes, evict entries if needed.
+   * 
+   * @param maxBytes
+   */
+  public synchronized void maxBytes(final long maxBytes)
+  {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  /**
+   * Get the max size of the cache, in bytes.
+   */
+  public synchronized long maxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * Get the current estimated size of the cache, in bytes.
+   */
+  public synchronized long bytes()
+  {
+    return bytes;
+  }
+
+  /**
+   * Get the count of entries.
+   */
+  public synchronized int size()
+  {
+    return map.size();
+  }
+
+  /**
+   * Remove all entries (counters are kept).
+   */
+  public synchronized void clear()
+  {
+    map.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Remove an entry, even pinned.
+   * 
+   * @param key
+   * @return false if the key is not in the cache.
+   */
+  public synchronized boolean remove(final String key)
+  {
+    Entry entry = map.remove(key);
+    if (entry == null) return false;
+    bytes -= entry.weight;
+    return true;
+  }
+
+  /**
+   * Remove the entries with a key accepted by a filter, even pinned (counters are kept).
+   * 
+   * @param filter Test on the keys.
+   * @return Count of entries removed.
+   */
+  public synchronized int removeIf(final Predicate<String> filter)
+  {
+    int count = 0;
+    Iterator<Entry> it = map.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (!filter.test(entry.key)) continue;
+      it.remove();
+      bytes -= entry.weight;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Get the counters by prefix of keys (a copy of the map, counters are live).
+   * 
+   * @return
+   */
+  public synchronized Map<String, Stats> stats()
+  {
+    return new TreeMap<String, Stats>(stats);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    ArrayList<Entry> entries;
+    synchronized (this) {
+      sb.append("Cache ").append(bytes / 1024).append(" / ").append(maxBytes / 1024).append(" kB, ")
+        .append(map.size()).append(" entries\n");
+      for (Map.Entry<String, Stats> e : stats.entrySet()) {
+        sb.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+      }
+      entries = new ArrayList<Entry>(map.values());
+    }
+    for (Entry entry : entries) {
+      sb.append(entry.key).append(" ").append(entry.weight / 1024).append(" kB");
+      if (entry.pinned) sb.append(" pinned");
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+}
@@ -34,20 +34,22 @@ package alix.lucene.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 
-import org.apache.lucene.document.BinaryDocValuesField;
-import org.apache.lucene.document.Field;
 import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.Bits;
@@ -55,33 +57,44 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
 
 import alix.lucene.Alix;
+import alix.lucene.analysis.RailFilter;
 import alix.lucene.search.Freqs;
 import alix.lucene.search.TermList;
 import alix.lucene.search.TopTerms;
+import alix.util.IntList;
 
 /** 
  * A co-occurrences scanner in a  {@link org.apache.lucene.document.TextField} of a lucene index.
  * This field should store term vectors with positions
  * {@link org.apache.lucene.document.FieldType#setStoreTermVectorPositions(boolean)}.
  * Efficiency is based on a post-indexing of each document,
- * affecting an int id to each  term at its position (a “rail”).
+ * affecting an int id to each  term at its position (a “rail”),
+ * inverted from the postings of the field,
+ * stored in a memory-mapped file beside the index, see {@link Rails}.
+ * When this file is not written, or is stale after a change of the index,
+ * rails are read doc by doc from the index (slower), from the doc values
+ * recorded by a {@link RailFilter}, or from the term vectors.
  * Also, coocs should be written on a “dead index”, 
  * with all writing operations committed.
  */
 public class Cooc
 {
-  /** Suffix for a binary field containing tokens by position */
-  public static final String _RAIL = "_rail";
   /** Name of the reference text field */
   private final String field;
-  /** Name of the binary field storing the int vector of documents */
-  private final String fieldRail;
+  /** File of the rails for the field */
+  private final Path file;
+  /** The rails for the current state of the index, null if not written or stale */
+  private volatile Rails rails;
   /** Keep the freqs for the field */
   private final Freqs freqs;
   /** Dictionary of terms for this field */
   private final BytesRefHash hashDic;
   /** State of the index */
   private final Alix alix;
+  /** The reader of the rails, the one of the dictionary */
+  private final IndexReader reader;
+  /** Max count of positions in memory, for the inversion of postings by {@link #write()} */
+  private static final int WINDOW = 1 << 23;
   /**
    * Build a co-occurrences scanner.
    * 
@@ -93,55 +106,118 @@ public class Cooc
   {
     this.alix = alix;
     this.field = field;
-    this.fieldRail = field + _RAIL;
+    this.file = alix.path.resolve(Alix.RAILS_FILE + field);
     this.freqs = alix.freqs(field); // build and cache the dictionary of cache for the field
     this.hashDic = freqs.hashDic();
+    this.reader = freqs.reader(); // termIds are relevant for this reader
+    this.rails = Rails.open(reader, file);
   }
   
   /**
-   * Reindex all documents of the text field as an int vector
-   * storing terms at their positions
-   * {@link org.apache.lucene.document.BinaryDocValuesField}.
-   * Byte ordering is the java default.
+   * Write all documents of the text field as int vectors
+   * storing terms at their positions, in a file of rails,
+   * streaming in docId order ({@link Rails.Writer}).
+   * Terms by position are read from the postings of each leaf, in the enumeration
+   * order of its terms, the termIds are given by {@link Freqs#leafTermIds(int)},
+   * without lookup in the dictionary. Postings are inverted by windows of docs, 
+   * to keep a bounded count of positions in memory ({@link #WINDOW}).
+   * The index is not modified, but the rails are only relevant for its current
+   * commit, they should be written again after each change.
    * 
    * @throws IOException 
    */
   public void write() throws IOException
   {
-    // known issue, writer should have been closed before reindex
-    IndexWriter writer = alix.writer();
-    IndexReader reader = alix.reader(writer);
-    int maxDoc = reader.maxDoc();
-    // create a byte buffer, will grow if more 
-    BinaryInts buf =  new BinaryInts(1024);
-    
-    for (int docId = 0; docId < maxDoc; docId++) {
-      Terms termVector = reader.getTermVector(docId, field);
-      if (termVector == null) continue;
-      rail(termVector, buf);
-      Field field = new BinaryDocValuesField(fieldRail, buf.getBytesRef());
-      long code =  writer.tryUpdateDocValue(reader, docId, field);
-      if( code < 0) System.out.println("Field \""+fieldRail+"\", update error for doc="+docId+" ["+code+"]");
+    // keep the reader open during the loop, even if a refresh happens
+    if (!reader.tryIncRef()) throw new AlreadyClosedException("Reader closed by a refresh, get a new Cooc from Alix");
+    try {
+      final int[] docLength = freqs.docLength;
+      try (Rails.Writer writer = new Rails.Writer(reader, file)) {
+        for (LeafReaderContext context : reader.leaves()) {
+          final int docBase = context.docBase;
+          final LeafReader leaf = context.reader();
+          final Terms terms = leaf.terms(field);
+          if (terms == null) continue; // no rails for the docs of this leaf
+          // termIds of the leaf, in the enumeration order, no hash lookup
+          final int[] termIds = freqs.leafTermIds(context.ord);
+          final int maxLeaf = leaf.maxDoc();
+          PostingsEnum postings = null;
+          int from = 0;
+          while (from < maxLeaf) {
+            // a window of docs, bounded by the count of occurrences
+            int to = from;
+            long occs = 0;
+            while (to < maxLeaf && (to == from || occs + docLength[docBase + to] <= WINDOW)) {
+              occs += docLength[docBase + to];
+              to++;
+            }
+            final BinaryInts[] window = new BinaryInts[to - from];
+            TermsEnum tenum = terms.iterator();
+            int termOrd = 0;
+            while (tenum.next() != null) {
+              final int termId = termIds[termOrd++];
+              postings = tenum.postings(postings, PostingsEnum.POSITIONS);
+              for (int docLeaf = postings.advance(from); docLeaf < to; docLeaf = postings.nextDoc()) {
+                BinaryInts buf = window[docLeaf - from];
+                if (buf == null) buf = window[docLeaf - from] = new BinaryInts(docLength[docBase + docLeaf] + 1);
+                for (int freq = postings.freq(); freq > 0; freq--) buf.put(postings.nextPosition(), termId);
+              }
+            }
+            for (int i = 0; i < window.length; i++) {
+              if (window[i] == null) continue; // no terms for this doc
+              writer.add(docBase + from + i, window[i]);
+            }
+            from = to;
+          }
+        }
+      }
+      rails = Rails.open(reader, file);
+    }
+    finally {
+      reader.decRef();
+    }
+  }
+
+  /**
+   * Flatten terms of a document recorded at indexation by a {@link RailFilter}
+   * in a binary buffer, according to the dictionary of terms.
+   * A term not found in the dictionary is stored as -1.
+   * 
+   * @param terms Local dictionary of the doc, see {@link RailFilter#decode(BytesRef, BytesRefHash, IntList)}.
+   * @param ids Local ids + 1 by position, 0 if empty.
+   * @param buf A reusable binary buffer.
+   */
+  private void rail(BytesRefHash terms, IntList ids, BinaryInts buf)
+  {
+    buf.reset(); // clean all
+    final int size = terms.size();
+    // map local ids to global termIds, one lookup by term
+    final int[] termIds = new int[size];
+    BytesRef bytes = new BytesRef();
+    for (int id = 0; id < size; id++) {
+      terms.get(id, bytes);
+      termIds[id] = hashDic.find(bytes); // -1 if not found
+    }
+    for (int pos = 0, length = ids.size(); pos < length; pos++) {
+      final int id = ids.get(pos);
+      if (id == 0) continue; // empty position
+      buf.put(pos, termIds[id - 1]);
     }
-    reader.close();
-    writer.commit();
-    writer.forceMerge(1);
-    writer.close();
-    alix.reader(true); // renew reader, to view the new field
   }
 
   /**
    * Flatten terms of a document in a position order, according to the dictionary of terms.
-   * Write it in a binary buffer, ready to to be stored in a BinaryField.
-   * {@link org.apache.lucene.document.BinaryDocValuesField}
+   * Write it in a binary buffer, ready to to be stored in a file of rails
+   * {@link Rails.Writer#add(int, BinaryInts)}.
    * The buffer could be modified if resizing was needed.
+   * A term not found in the dictionary is stored as -1.
    * @param termVector A term vector of a document with positions.
    * @param buf A reusable binary buffer to index.
    * @throws IOException
    */
   public void rail(Terms termVector, BinaryInts buf) throws IOException
   {
-    buf.reset(); // celan all
+    buf.reset(); // clean all
     BytesRefHash hashDic = this.hashDic;
     TermsEnum tenum = termVector.iterator();
     PostingsEnum postings = null;
@@ -149,8 +225,7 @@ public class Cooc
     int maxpos = -1;
     int minpos = Integer.MAX_VALUE;
     while ((bytes = tenum.next()) != null) {
-      int termId = hashDic.find(bytes);
-      if (termId < 0) System.out.println("unknown term? "+bytes.utf8ToString());
+      int termId = hashDic.find(bytes); // -1 if not found
       postings = tenum.postings(postings, PostingsEnum.POSITIONS);
       postings.nextDoc(); // always one doc
       int freq = postings.freq();
@@ -162,9 +237,55 @@ public class Cooc
       }
     }
   }
-  
 
-  
+  /**
+   * Source of rails for the docs of a leaf, when the file of rails is not relevant:
+   * the doc values recorded at indexation by a {@link RailFilter},
+   * or null if term vectors should be used.
+   * 
+   * @param leaf
+   * @return
+   * @throws IOException
+   * @throws IllegalStateException if the leaf has no rails to read.
+   */
+  private BinaryDocValues railDocs(final LeafReader leaf) throws IOException
+  {
+    final BinaryDocValues railDocs = leaf.getBinaryDocValues(field + Alix._RAIL);
+    if (railDocs != null) return railDocs;
+    final FieldInfo info = leaf.getFieldInfos().fieldInfo(field);
+    if (info == null || info.hasVectors()) return null; // no field, no docs to read
+    throw new IllegalStateException("Rails are stale or not written for the field \"" + field 
+      + "\", and no rail doc values or term vectors to read them, call write()");
+  }
+
+  /**
+   * Flatten terms of a doc read from the index, when the file of rails is not relevant,
+   * from the doc values of a {@link RailFilter}, or else from the term vector of the doc.
+   * 
+   * @param leaf The leaf of the doc.
+   * @param docLeaf The id of the doc in its leaf, in increasing order for the same railDocs.
+   * @param railDocs See {@link #railDocs(LeafReader)}, null to read term vectors.
+   * @param terms A reusable local dictionary.
+   * @param ids A reusable list of local ids.
+   * @param buf A reusable binary buffer, filled with the rail.
+   * @return false if the doc has no rail.
+   * @throws IOException
+   */
+  private boolean rail(final LeafReader leaf, final int docLeaf, final BinaryDocValues railDocs, 
+    final BytesRefHash terms, final IntList ids, final BinaryInts buf) throws IOException
+  {
+    if (railDocs != null) {
+      if (!railDocs.advanceExact(docLeaf)) return false;
+      RailFilter.decode(railDocs.binaryValue(), terms, ids);
+      rail(terms, ids, buf);
+      return true;
+    }
+    final Terms termVector = leaf.getTermVector(docLeaf, field);
+    if (termVector == null) return false;
+    rail(termVector, buf);
+    return true;
+  }
+
   /**
    * Get cooccurrences from a multi term query.
    * Each document should be available as an int vector
@@ -186,126 +307,158 @@ public class Cooc
     dic.setLengths(termLength);
     dic.setDocs(termDocs);
     */
-    IndexReader reader = alix.reader();
-    final int END = DocIdSetIterator.NO_MORE_DOCS;
-    // collector of scores
-    int size = this.hashDic.size();
-    int[] freqs = new int[size]; // by term, occurrences counts
-    int[] hits = new int[size]; // by term, document counts
-    // to count documents, a set to count only first occ in a doc
-    java.util.BitSet dicSet = new java.util.BitSet(size);
+    // keep the reader open during the loop, even if a refresh happens
+    if (!reader.tryIncRef()) throw new AlreadyClosedException("Reader closed by a refresh, get a new Cooc from Alix");
+    try {
+      final int END = DocIdSetIterator.NO_MORE_DOCS;
+      // collector of scores
+      int size = this.hashDic.size();
+      int[] freqs = new int[size]; // by term, occurrences counts
+      int[] hits = new int[size]; // by term, document counts
+      // to count documents, a set to count only first occ in a doc
+      java.util.BitSet dicSet = new java.util.BitSet(size);
 
-    // for each doc, a bit set is used to record the relevant positions
-    // this will avoid counting interferences when terms are close
-    java.util.BitSet contexts = new java.util.BitSet();
-    java.util.BitSet pivots = new java.util.BitSet();
-    // loop on leafs
-    for (LeafReaderContext context : reader.leaves()) {
-      int docBase = context.docBase;
-      int docLeaf;
-      LeafReader leaf = context.reader();
-      // loop carefully on docs with a rail
-      BinaryDocValues binDocs = leaf.getBinaryDocValues(fieldRail);
-      // probably nothing indexed
-      if (binDocs == null) continue; 
-      // start iterators for each term
-      ArrayList<PostingsEnum> list = new ArrayList<PostingsEnum>();
-      for (Term term : terms) {
-        if (term == null) continue;
-        PostingsEnum postings = leaf.postings(term, PostingsEnum.FREQS|PostingsEnum.POSITIONS);
-        if (postings == null) continue;
-        postings.nextDoc(); // advance cursor to the first doc
-        list.add(postings);
-      }
-      PostingsEnum[] termDocs = list.toArray(new PostingsEnum[0]);
-      final Bits liveDocs = leaf.getLiveDocs();
-      while ( (docLeaf = binDocs.nextDoc()) != END) {
-        if (liveDocs != null && !liveDocs.get(docLeaf)) continue; // deleted doc
-        int docId = docBase + docLeaf;
-        if (filter != null && !filter.get(docId)) continue; // document not in the metadata fillter
-        
-        boolean found = false;
-        contexts.clear();
-        pivots.clear();
-        // loop on term iterator to get positions for this doc
-        for (PostingsEnum postings: termDocs) {
-          int doc = postings.docID();
-          if (doc == END || doc > docLeaf) continue;
-          // 
-          if (doc < docLeaf) doc = postings.advance(docLeaf - 1);
-          if (doc > docLeaf) continue;
-          int freq = postings.freq();
-          if (freq == 0) continue;
-          found = true;
-          for (; freq > 0; freq --) {
-            final int position = postings.nextPosition();
-            final int fromIndex = Math.max(0, position - left);
-            final int toIndex = position + right + 1; // toIndex (exclusive)
-            contexts.set(fromIndex, toIndex);
-            pivots.set(position);
-          }
+      // for each doc, a bit set is used to record the relevant positions
+      // this will avoid counting interferences when terms are close
+      java.util.BitSet contexts = new java.util.BitSet();
+      java.util.BitSet pivots = new java.util.BitSet();
+      final Rails rails = this.rails;
+      // file of rails not relevant, read the docs from the index
+      final BytesRefHash docTerms = (rails == null) ? new BytesRefHash() : null;
+      final IntList docIds = (rails == null) ? new IntList() : null;
+      final BinaryInts docRail = (rails == null) ? new BinaryInts() : null;
+      // loop on leafs
+      for (LeafReaderContext context : reader.leaves()) {
+        int docBase = context.docBase;
+        LeafReader leaf = context.reader();
+        final BinaryDocValues railDocs = (rails == null) ? railDocs(leaf) : null;
+        // start iterators for each term
+        ArrayList<PostingsEnum> list = new ArrayList<PostingsEnum>();
+        for (Term term : terms) {
+          if (term == null) continue;
+          PostingsEnum postings = leaf.postings(term, PostingsEnum.FREQS|PostingsEnum.POSITIONS);
+          if (postings == null) continue;
+          postings.nextDoc(); // advance cursor to the first doc
+          list.add(postings);
         }
-        if (!found) continue;
-        // substract pivots from context, this way should avoid counting pivot
-        contexts.andNot(pivots);
-        BytesRef ref = binDocs.binaryValue();
-        ByteBuffer buf = ByteBuffer.wrap(ref.bytes, ref.offset, ref.length);
-        // loop on the positions 
-        int pos = contexts.nextSetBit(0);
-        if (pos < 0) continue; // word found but without context, ex: first word without left
-        int max = ref.length - 3;
-        dicSet.clear(); // clear the term set, to count only first occ as doc
+        PostingsEnum[] termDocs = list.toArray(new PostingsEnum[0]);
+        final Bits liveDocs = leaf.getLiveDocs();
+        // loop on the docs of the terms, in docId order
         while (true) {
-          int index = pos*4;
-          if (index >= max) break; // position further than available tokens
-          int termId = buf.getInt(index);
-          freqs[termId]++;
-          if (!dicSet.get(termId)) {
-            hits[termId]++;
-            dicSet.set(termId);
+          int docLeaf = END;
+          for (PostingsEnum postings: termDocs) {
+            if (postings.docID() < docLeaf) docLeaf = postings.docID();
+          }
+          if (docLeaf == END) break; // no more docs for all terms
+          final int docId = docBase + docLeaf;
+          // document not in the metadata filter, jump all the terms to the next doc of the filter
+          if (filter != null && !filter.get(docId)) {
+            final int next = (docId + 1 < filter.length()) ? filter.nextSetBit(docId + 1) : END;
+            if (next == END || next - docBase >= leaf.maxDoc()) break; // no more docs of the filter in this leaf
+            for (PostingsEnum postings: termDocs) {
+              if (postings.docID() < next - docBase) postings.advance(next - docBase);
+            }
+            continue;
+          }
+          final boolean skip = (liveDocs != null && !liveDocs.get(docLeaf)); // deleted doc
+          boolean found = false;
+          contexts.clear();
+          pivots.clear();
+          // loop on term iterator to get positions for this doc
+          for (PostingsEnum postings: termDocs) {
+            if (postings.docID() != docLeaf) continue;
+            int freq = postings.freq();
+            if (!skip) {
+              if (freq > 0) found = true;
+              for (; freq > 0; freq --) {
+                final int position = postings.nextPosition();
+                final int fromIndex = Math.max(0, position - left);
+                final int toIndex = position + right + 1; // toIndex (exclusive)
+                contexts.set(fromIndex, toIndex);
+                pivots.set(position);
+              }
+            }
+            postings.nextDoc(); // next doc for this term
+          }
+          if (!found) continue;
+          // substract pivots from context, this way should avoid counting pivot
+          contexts.andNot(pivots);
+          // loop on the positions 
+          int pos = contexts.nextSetBit(0);
+          if (pos < 0) continue; // word found but without context, ex: first word without left
+          final int start;
+          final int length;
+          if (rails != null) {
+            start = rails.start(docId);
+            length = rails.length(docId);
+          }
+          else {
+            if (!rail(leaf, docLeaf, railDocs, docTerms, docIds, docRail)) continue; // no rail for this doc
+            start = 0;
+            length = docRail.size();
+          }
+          dicSet.clear(); // clear the term set, to count only first occ as doc
+          while (true) {
+            if (pos >= length) break; // position further than available tokens
+            int termId = (rails != null) ? rails.get(start + pos) : docRail.get(pos);
+            if (termId >= 0) { // -1, term unknown from the dictionary
+              freqs[termId]++;
+              if (!dicSet.get(termId)) {
+                hits[termId]++;
+                dicSet.set(termId);
+              }
+            }
+            pos = contexts.nextSetBit(pos+1);
+            // System.out.print(pos);
+            if (pos < 0) break; // no more positions
           }
-          pos = contexts.nextSetBit(pos+1);
-          // System.out.print(pos);
-          if (pos < 0) break; // no more positions
         }
       }
-    }
-    /*
-    // try to calculate a score
-    double[] scores = new double[size];
-    for (int i = 0; i < size; i++) {
+      /*
+      // try to calculate a score
+      double[] scores = new double[size];
+      for (int i = 0; i < size; i++) {
       
+      }
+      */
+      dic.setHits(hits);
+      dic.setOccs(freqs);
+      return dic;
+    }
+    finally {
+      reader.decRef();
     }
-    */
-    dic.setHits(hits);
-    dic.setOccs(freqs);
-    return dic;
   }
   
   /**
-   * Get the token sequence of a document.
+   * Get the token sequence of a document, from the file of rails,
+   * or read from the index if the file is stale.
+   * @return Tokens by position, null for an empty position, or null if the doc has no rail.
    * @throws IOException 
+   * @throws IllegalStateException if rails are stale and cannot be read from the index.
    * 
    */
   public  String[] sequence(int docId) throws IOException
   {
-    IndexReader reader = alix.reader();
-    for (LeafReaderContext context : reader.leaves()) {
-      int docBase = context.docBase;
-      if (docBase > docId) return null;
-      int docLeaf = docId - docBase;
-      LeafReader leaf = context.reader();
-      BinaryDocValues binDocs = leaf.getBinaryDocValues(fieldRail);
-      if (binDocs == null) return null;
-      int docFound = binDocs.advance(docLeaf);
-      // maybe found on next leaf
-      if (docFound == DocIdSetIterator.NO_MORE_DOCS) continue;
-      // docId not found
-      if (docFound != docLeaf) return null;
-      BytesRef ref = binDocs.binaryValue();
-      return strings(ref);
+    if (docId < 0 || docId >= reader.maxDoc()) return null;
+    final Rails rails = this.rails;
+    if (rails != null) {
+      if (rails.length(docId) == 0) return null;
+      return strings(rails.rail(docId));
+    }
+    if (!reader.tryIncRef()) throw new AlreadyClosedException("Reader closed by a refresh, get a new Cooc from Alix");
+    try {
+      final LeafReaderContext context = reader.leaves().get(ReaderUtil.subIndex(docId, reader.leaves()));
+      final LeafReader leaf = context.reader();
+      final BinaryInts buf = new BinaryInts();
+      if (!rail(leaf, docId - context.docBase, railDocs(leaf), new BytesRefHash(), new IntList(), buf)) return null;
+      if (buf.size() == 0) return null;
+      final BytesRef ref = buf.getBytesRef();
+      return strings(ref.bytes, ref.offset, ref.length);
+    }
+    finally {
+      reader.decRef();
     }
-    return null;
   }
   
   /**
@@ -344,6 +497,25 @@ public class Cooc
     return strings(ref.bytes, ref.offset, ref.length);
   }
   
+  /**
+   * Tokens of a doc as strings from a rail, see {@link Rails#rail(int)}.
+   * @param rail
+   * @return An indexed document as an array of strings.
+   */
+  public String[] strings(IntBuffer rail)
+  {
+    int size = rail.remaining();
+    String[] words = new String[size];
+    BytesRef ref = new BytesRef();
+    for (int pos = 0; pos < size; pos++) {
+      int termId = rail.get(rail.position() + pos);
+      if (termId < 0) continue; // term unknown from the dictionary
+      this.hashDic.get(termId, ref);
+      words[pos] = ref.utf8ToString();
+    }
+    return words;
+  }
+
   /**
    * Tokens of a doc as strings from a byte array
    * @param rail Binary version an int array
@@ -360,6 +532,7 @@ public class Cooc
     BytesRef ref = new BytesRef();
     for (int pos = 0; pos < size; pos++) {
       int termId = buf.getInt();
+      if (termId < 0) continue; // term unknown from the dictionary
       this.hashDic.get(termId, ref);
       words[pos] = ref.utf8ToString();
     }
@@ -0,0 +1,147 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.util;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Accountable;
+
+/**
+ * Partial results by segment of an index, kept across refreshes of the reader.
+ * When a new reader is opened after some indexation, most of its segments are
+ * the same as in the previous reader, only the new or changed segments need
+ * to be computed, before a merge of the partial results into a global view.
+ * 
+ * <p>
+ * Results are keyed by the cache key of a segment, 
+ * {@link LeafReader#getCoreCacheHelper()} for data not affected by deletions or doc values updates
+ * (ex: postings), or {@link LeafReader#getReaderCacheHelper()} for the others.
+ * They are stored in a {@link Cache} shared with the global results, 
+ * weighed (partial results should be {@link Accountable}) and evicted as the others,
+ * under the prefix {@link #PREFIX}, to be kept on a refresh of the reader.
+ * They are removed when the segment is closed.
+ * </p>
+ */
+public class LeafCache
+{
+  /** Prefix of the keys of the partial results in the cache */
+  public static final String PREFIX = "Leaf" + Cache.SEP;
+  /** The cache where results are stored */
+  private final Cache cache;
+  /** An id by segment, for the keys in the cache, removed when the segment is closed */
+  private final ConcurrentHashMap<IndexReader.CacheKey, Long> ids = new ConcurrentHashMap<>();
+  /** Last id given to a segment */
+  private final AtomicLong lastId = new AtomicLong();
+
+  /**
+   * Store partial results in a cache.
+   * 
+   * @param cache
+   */
+  public LeafCache(final Cache cache)
+  {
+    this.cache = cache;
+  }
+
+  /**
+   * Get a partial result for a segment, or load it.
+   * 
+   * @param context The segment.
+   * @param core True if the result depends only on the core of the segment (no deletions).
+   * @param key A key for the result, unique for the segment.
+   * @param loader Compute the result for the segment, if not yet done.
+   * @return
+   * @throws IOException
+   */
+  public <T> T get(final LeafReaderContext context, final boolean core, final String key, final Cache.Loader<T> loader) throws IOException
+  {
+    final LeafReader leaf = context.reader();
+    final IndexReader.CacheHelper helper = core ? leaf.getCoreCacheHelper() : leaf.getReaderCacheHelper();
+    // segment not cacheable
+    if (helper == null) return loader.load();
+    final IndexReader.CacheKey cacheKey = helper.getKey();
+    Long id = ids.get(cacheKey);
+    if (id == null) {
+      final Long created = lastId.incrementAndGet();
+      id = ids.putIfAbsent(cacheKey, created);
+      if (id == null) {
+        id = created;
+        helper.addClosedListener(new IndexReader.ClosedListener() {
+          @Override
+          public void onClose(IndexReader.CacheKey key)
+          {
+            remove(key);
+          }
+        });
+      }
+    }
+    final String cacheId = PREFIX + id + Cache.SEP + key;
+    final T value = cache.get(cacheId, loader);
+    // segment closed during the load, its results may have been already removed
+    if (!id.equals(ids.get(cacheKey))) cache.remove(cacheId);
+    return value;
+  }
+
+  /**
+   * Remove the results of a closed segment.
+   */
+  private void remove(final IndexReader.CacheKey cacheKey)
+  {
+    final Long id = ids.remove(cacheKey);
+    if (id == null) return;
+    final String prefix = PREFIX + id + Cache.SEP;
+    cache.removeIf(k -> k.startsWith(prefix));
+  }
+
+  /**
+   * Count of segments with results.
+   */
+  public int size()
+  {
+    return ids.size();
+  }
+
+  /**
+   * Remove all results.
+   */
+  public void clear()
+  {
+    ids.clear();
+    cache.removeIf(k -> k.startsWith(PREFIX));
+  }
+}
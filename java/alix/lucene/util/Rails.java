@@ -0,0 +1,291 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.lucene.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * A store of “rails”, for each document of an index, the termIds of a field 
+ * in the order of positions (see {@link Cooc}). All rails are stored
+ * in one file, written in docId order by a {@link Writer}, and mapped in memory for reading.
+ * A file is only relevant for the state of the index for which it has been written
+ * (generation and version of the commit), because docIds and termIds change
+ * with the index.
+ * 
+ * <pre>
+ * header: magic (int), format (int), generation (long), version (long), maxDoc (int), reserved (int)
+ * offsets: start index of the rail by docId, in ints from the data (int[maxDoc + 1])
+ * data: termIds (int[])
+ * </pre>
+ * 
+ * Byte ordering is the java default.
+ */
+public class Rails
+{
+  /** Magic number of a file of rails */
+  private static final int MAGIC = 0x416C7852;
+  /** Version of the format of a file of rails */
+  private static final int FORMAT = 1;
+  /** Size of the header in bytes */
+  private static final int HEADER = 4 + 4 + 8 + 8 + 4 + 4;
+  /** Number of documents */
+  private final int maxDoc;
+  /** Start index of a rail in data, by docId */
+  private final IntBuffer offsets;
+  /** The termIds of all docs */
+  private final IntBuffer data;
+
+  private Rails(final MappedByteBuffer buf, final int maxDoc)
+  {
+    this.maxDoc = maxDoc;
+    buf.position(HEADER);
+    offsets = buf.slice().asIntBuffer();
+    offsets.limit(maxDoc + 1);
+    buf.position(HEADER + 4 * (maxDoc + 1));
+    data = buf.slice().asIntBuffer();
+  }
+
+  /**
+   * Open a file of rails, return null if the file does not exist
+   * or is not relevant for this reader.
+   * 
+   * @param reader A reader opened on a commit of the index.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static Rails open(final IndexReader reader, final Path file) throws IOException
+  {
+    if (!Files.exists(file)) return null;
+    final long generation = generation(reader);
+    if (generation < 0) return null;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER) return null;
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buf.getInt() != MAGIC || buf.getInt() != FORMAT) return null;
+      if (buf.getLong() != generation) return null;
+      if (buf.getLong() != ((DirectoryReader) reader).getVersion()) return null;
+      final int maxDoc = buf.getInt();
+      if (maxDoc != reader.maxDoc()) return null;
+      // a mapping is still valid after the channel is closed
+      return new Rails(buf, maxDoc);
+    }
+  }
+
+  /**
+   * Get the generation of the commit for a reader, or -1 if not relevant.
+   */
+  private static long generation(final IndexReader reader) throws IOException
+  {
+    if (!(reader instanceof DirectoryReader)) return -1;
+    try {
+      return ((DirectoryReader) reader).getIndexCommit().getGeneration();
+    }
+    catch (IllegalStateException e) { // near real time reader
+      return -1;
+    }
+  }
+
+  /**
+   * Number of documents.
+   * 
+   * @return
+   */
+  public int maxDoc()
+  {
+    return maxDoc;
+  }
+
+  /**
+   * Start index of the rail of a doc, see {@link #get(int)}.
+   * 
+   * @param docId
+   * @return
+   */
+  public int start(final int docId)
+  {
+    return offsets.get(docId);
+  }
+
+  /**
+   * Number of positions in the rail of a doc, 0 if none.
+   * 
+   * @param docId
+   * @return
+   */
+  public int length(final int docId)
+  {
+    return offsets.get(docId + 1) - offsets.get(docId);
+  }
+
+  /**
+   * Get a termId by its index in the rails, from {@link #start(int)} 
+   * to {@link #start(int)} + {@link #length(int)} (exclusive) for a doc.
+   * No copy, direct read of the mapped file, thread safe.
+   * 
+   * @param index
+   * @return
+   */
+  public int get(final int index)
+  {
+    return data.get(index);
+  }
+
+  /**
+   * Get the rail of a doc, a view on the mapped file, without copy.
+   * 
+   * @param docId
+   * @return
+   */
+  public IntBuffer rail(final int docId)
+  {
+    IntBuffer rail = data.duplicate();
+    final int start = offsets.get(docId);
+    rail.limit(offsets.get(docId + 1));
+    rail.position(start);
+    return rail.slice();
+  }
+
+  /**
+   * Write rails in docId order, streaming in a temp file,
+   * moved to the destination on {@link #close()}, to not expose
+   * a partial file to a reader.
+   */
+  public static class Writer implements Closeable
+  {
+    /** Destination file */
+    private final Path file;
+    /** Temp file */
+    private final Path tmp;
+    /** Output */
+    private final FileChannel channel;
+    /** Buffer for output */
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+    /** State of index */
+    private final long generation;
+    private final long version;
+    /** Start index of the rail by docId */
+    private final int[] offsets;
+    /** Next docId to set */
+    private int next;
+    /** Number of termIds written */
+    private long count;
+
+    /**
+     * Start to write the rails for the current state of an index.
+     * 
+     * @param reader A reader opened on a commit of the index.
+     * @param file
+     * @throws IOException
+     */
+    public Writer(final IndexReader reader, final Path file) throws IOException
+    {
+      generation = generation(reader);
+      if (generation < 0) throw new IOException("Reader not on a commit, no persistence of rails in " + file);
+      version = ((DirectoryReader) reader).getVersion();
+      this.file = file;
+      this.offsets = new int[reader.maxDoc() + 1];
+      tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      // data after header and offsets, written at the end
+      channel.position(HEADER + 4L * offsets.length);
+    }
+
+    /**
+     * Append the rail of a doc, docIds should be in increasing order,
+     * docs without rail may be skipped.
+     * 
+     * @param docId
+     * @param rail termIds by position
+     * @throws IOException
+     */
+    public void add(final int docId, final BinaryInts rail) throws IOException
+    {
+      if (docId < next) throw new IllegalArgumentException("docId=" + docId + ", rails should be added in docId order");
+      final int size = rail.size();
+      if (count + size > (Integer.MAX_VALUE - HEADER) / 4 - offsets.length) {
+        throw new IOException("Rails too big for a mapped file " + file);
+      }
+      for (; next <= docId; next++) offsets[next] = (int) count;
+      for (int pos = 0; pos < size; pos++) {
+        if (!buf.hasRemaining()) flush();
+        buf.putInt(rail.get(pos));
+      }
+      count += size;
+    }
+
+    /**
+     * Write the buffer to the channel.
+     */
+    private void flush() throws IOException
+    {
+      buf.flip();
+      while (buf.hasRemaining()) channel.write(buf);
+      buf.clear();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try {
+        flush();
+        for (; next < offsets.length; next++) offsets[next] = (int) count;
+        ByteBuffer head = ByteBuffer.allocate(HEADER + 4 * offsets.length);
+        head.putInt(MAGIC).putInt(FORMAT).putLong(generation).putLong(version);
+        head.putInt(offsets.length - 1).putInt(0);
+        head.asIntBuffer().put(offsets);
+        head.limit(head.capacity());
+        head.position(0);
+        long pos = 0;
+        while (head.hasRemaining()) pos += channel.write(head, pos);
+        channel.force(false);
+      }
+      finally {
+        channel.close();
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+}
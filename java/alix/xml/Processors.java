@@ -0,0 +1,314 @@
+/*
+ * Alix, A Lucene Indexer for XML documents.
+ * 
+ * Copyright 2009 Pierre Dittgen <pierre@dittgen.org> 
+ *                Frédéric Glorieux <frederic.glorieux@fictif.org>
+ * Copyright 2016 Frédéric Glorieux <frederic.glorieux@fictif.org>
+ *
+ * Alix is a java library to index and search XML text documents
+ * with Lucene https://lucene.apache.org/core/
+ * including linguistic expertness for French,
+ * available under Apache license.
+ * 
+ * Alix has been started in 2009 under the javacrim project
+ * https://sf.net/projects/javacrim/
+ * for a java course at Inalco  http://www.er-tim.fr/
+ * Alix continues the concepts of SDX under another licence
+ * «Système de Documentation XML»
+ * 2000-2010  Ministère de la culture et de la communication (France), AJLSM.
+ * http://savannah.nongnu.org/projects/sdx/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package alix.xml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Process-wide XML processors for indexation.
+ * <ul>
+ *   <li>A cache of compiled stylesheets ({@link Templates}), keyed by URI
+ *   of the stylesheet, recompiled only if the stylesheet or one of its imports
+ *   has been modified (or the jar containing them).</li>
+ *   <li>A {@link Transformer} by thread and by stylesheet URI, renewed when the stylesheet
+ *   is compiled again, and a {@link SAXParser} by thread, reset before each use.</li>
+ * </ul>
+ * The XSLT processor is Saxon, configured once for the process.
+ */
+public class Processors
+{
+  /** XSLT processor (saxon) */
+  public static final TransformerFactory XSLFactory;
+  static {
+    // use JAXP standard API with Saxon B (not saxon HE 9, because exslt support has
+    // been removed)
+    System.setProperty("javax.xml.transform.TransformerFactory", "net.sf.saxon.TransformerFactoryImpl");
+    XSLFactory = TransformerFactory.newInstance();
+    XSLFactory.setAttribute("http://saxon.sf.net/feature/version-warning", Boolean.FALSE);
+    XSLFactory.setAttribute("http://saxon.sf.net/feature/recoveryPolicy", Integer.valueOf(0));
+    XSLFactory.setAttribute("http://saxon.sf.net/feature/linenumbering", Boolean.TRUE);
+  }
+  /** SAX factory */
+  public static final SAXParserFactory SAXFactory = SAXParserFactory.newInstance();
+  static {
+    SAXFactory.setNamespaceAware(true);
+  }
+  /** Compiled stylesheets by URI */
+  private static final ConcurrentHashMap<String, Compiled> templates = new ConcurrentHashMap<>();
+  /** Transformers by thread and by URI of stylesheet (a transformer holds its compiled stylesheet, no weak key) */
+  private static final ThreadLocal<HashMap<String, Prepared>> transformers = ThreadLocal.withInitial(HashMap::new);
+  /** SAX parser by thread */
+  private static final ThreadLocal<SAXParser> parsers = new ThreadLocal<>();
+
+  /**
+   * A compiled stylesheet, with the modification times of the files used for compilation.
+   */
+  private static class Compiled
+  {
+    final Templates templates;
+    final URL[] urls;
+    final long[] modified;
+
+    Compiled(final Templates templates, final ArrayList<URL> urls)
+    {
+      this.templates = templates;
+      this.urls = urls.toArray(new URL[urls.size()]);
+      this.modified = new long[this.urls.length];
+      for (int i = 0; i < this.urls.length; i++) modified[i] = modified(this.urls[i]);
+    }
+
+    /** Is the stylesheet still up to date? */
+    boolean fresh()
+    {
+      for (int i = 0; i < urls.length; i++) {
+        if (modified(urls[i]) != modified[i]) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A transformer, with the compiled stylesheet it comes from.
+   */
+  private static class Prepared
+  {
+    final Templates templates;
+    final Transformer transformer;
+
+    Prepared(final Templates templates) throws TransformerConfigurationException
+    {
+      this.templates = templates;
+      this.transformer = templates.newTransformer();
+    }
+  }
+
+  /**
+   * Modification time of a resource, 0 if unknown.
+   */
+  static long modified(final URL url)
+  {
+    try {
+      if ("file".equals(url.getProtocol())) return Files.getLastModifiedTime(Paths.get(url.toURI())).toMillis();
+      URLConnection connection = url.openConnection();
+      // for a jar, date of the entry
+      long modified = connection.getLastModified();
+      connection.getInputStream().close();
+      return modified;
+    }
+    catch (IOException | URISyntaxException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Get a compiled stylesheet from the resources of this package (ex: "alix.xsl").
+   * 
+   * @param href
+   * @return
+   * @throws TransformerException
+   */
+  public static Templates templates(final String href) throws TransformerException
+  {
+    URL url = Processors.class.getResource(href);
+    if (url == null) throw new TransformerConfigurationException("Stylesheet not found: " + href);
+    return templates(url);
+  }
+
+  /**
+   * Get a compiled stylesheet from a file.
+   * 
+   * @param xsl
+   * @return
+   * @throws TransformerException
+   */
+  public static Templates templates(final Path xsl) throws TransformerException
+  {
+    try {
+      return templates(xsl.toUri().toURL());
+    }
+    catch (MalformedURLException e) {
+      throw new TransformerConfigurationException(e);
+    }
+  }
+
+  /**
+   * Get a compiled stylesheet, compiled once for the process, 
+   * compiled again if modified.
+   * 
+   * @param url
+   * @return
+   * @throws TransformerException
+   */
+  public static Templates templates(final URL url) throws TransformerException
+  {
+    final String key = url.toString();
+    Compiled compiled = templates.get(key);
+    if (compiled != null && compiled.fresh()) return compiled.templates;
+    // only one compilation at a time, factory is shared
+    synchronized (XSLFactory) {
+      compiled = templates.get(key);
+      if (compiled != null && compiled.fresh()) return compiled.templates;
+      final ArrayList<URL> urls = new ArrayList<>();
+      urls.add(url);
+      // streams opened for compilation, closed after
+      final List<Closeable> streams = new ArrayList<>();
+      // record the imports
+      URIResolver resolver = new URIResolver() {
+        @Override
+        public Source resolve(String href, String base) throws TransformerException
+        {
+          try {
+            URL imported = (base == null) ? new URL(url, href) : new URL(new URL(base), href);
+            urls.add(imported);
+            return source(imported, streams);
+          }
+          catch (IOException e) {
+            throw new TransformerException(e);
+          }
+        }
+      };
+      URIResolver old = XSLFactory.getURIResolver();
+      XSLFactory.setURIResolver(resolver);
+      try {
+        compiled = new Compiled(XSLFactory.newTemplates(source(url, streams)), urls);
+      }
+      catch (IOException e) {
+        throw new TransformerConfigurationException(e);
+      }
+      finally {
+        XSLFactory.setURIResolver(old);
+        for (Closeable stream : streams) {
+          try {
+            stream.close();
+          }
+          catch (IOException e) {
+            // nothing to do, stylesheet is compiled or not
+          }
+        }
+      }
+      templates.put(key, compiled);
+      return compiled.templates;
+    }
+  }
+
+  /**
+   * Source with a system id, to resolve relative URIs.
+   * The stream opened is added to a list, to be closed by the caller.
+   */
+  private static Source source(final URL url, final List<Closeable> streams) throws IOException
+  {
+    InputStream is = url.openStream();
+    streams.add(is);
+    return new StreamSource(is, url.toString());
+  }
+
+  /**
+   * Get a transformer for a stylesheet, one by thread, reset.
+   * For a stylesheet compiled by {@link #templates(URL)}, the transformer of the thread
+   * is kept by URI, and renewed when the stylesheet has been compiled again.
+   * For other stylesheets, a new transformer is returned.
+   * 
+   * @param templates
+   * @return
+   * @throws TransformerConfigurationException
+   */
+  public static Transformer transformer(final Templates templates) throws TransformerConfigurationException
+  {
+    String key = null;
+    for (Map.Entry<String, Compiled> entry : Processors.templates.entrySet()) {
+      if (entry.getValue().templates == templates) {
+        key = entry.getKey();
+        break;
+      }
+    }
+    if (key == null) return templates.newTransformer(); // not cached, not kept
+    HashMap<String, Prepared> map = transformers.get();
+    Prepared prepared = map.get(key);
+    if (prepared == null || prepared.templates != templates) {
+      prepared = new Prepared(templates); // new or recompiled stylesheet, old transformer released
+      map.put(key, prepared);
+    }
+    else {
+      prepared.transformer.reset();
+    }
+    return prepared.transformer;
+  }
+
+  /**
+   * Get a namespace aware SAX parser, one by thread, reset.
+   * 
+   * @return
+   * @throws ParserConfigurationException
+   * @throws SAXException
+   */
+  public static SAXParser saxParser() throws ParserConfigurationException, SAXException
+  {
+    SAXParser parser = parsers.get();
+    if (parser == null) {
+      parser = SAXFactory.newSAXParser();
+      parsers.set(parser);
+    }
+    else {
+      parser.reset();
+    }
+    return parser;
+  }
+}
@@ -32,12 +32,16 @@
  */
 package org.apache.lucene.analysis;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.CachingTokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Analyzer.ReuseStrategy;
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
-import org.apache.lucene.analysis.sinks.TeeSinkTokenFilter;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexableFieldType;
 import org.apache.lucene.index.IndexWriter;
@@ -47,45 +51,157 @@ import alix.lucene.SAXIndexer;
 /**
  * <p>
  * Reuse strategy of {@link TokenStreamComponents} in Alix: 
- * no cache for indexation, reuse for query parsing.
+ * a pool of components by thread and by field name, 
+ * a component is reused only when its token stream has been closed.
  * </p>
  * 
  * <p>
  * Alix is designed to index real text documents (articles, book chapters…).
  * Indexing is multi-threaded,
  * and add documents by blocks (books) {@link IndexWriter#addDocuments(Iterable)}.
- * Life cycle of {@link TokenStream} components is hard to predict, the most robust
- * solution is then to not cache {@link TokenStreamComponents},
- * especially because {@link SAXIndexer} needs some advanced indexing features 
- * ({@link CachingTokenFilter} or a {@link TeeSinkTokenFilter}).
+ * So, {@link SAXIndexer} opens a token stream for each chapter
+ * with {@link Field#Field(String, TokenStream, IndexableFieldType)},
+ * and the streams are consumed later, all together, by the writer.
+ * The default caching of components by field is confused by this life cycle
+ * (documents disappears, contract violation {@link TokenStream#reset()} 
+ * and {@link TokenStream#close()}).
  * </p>
  * 
  * <p>
- * The default behavior of Analyzer with Strings was successfully tested with
- * {@link Field#Field(String, CharSequence, org.apache.lucene.index.IndexableFieldType)},
- * but problems came with {@link Field#Field(String, TokenStream, IndexableFieldType)}.
- * The default caching of components were confused 
- * (documents disappears, contract violation {@link TokenStream#reset()} 
- * and {{@link TokenStream#close()}).
- * <p/>
- * 
+ * Here, the last filter of components created by the analyzer
+ * is wrapped in a {@link Lease} (see {@link AnalyzerReuseControl}), 
+ * busy from the moment its stream is given, until {@link TokenStream#close()}.
+ * A free component is taken from the pool of the field for the current thread,
+ * or a new one is created and kept, up to {@link #POOL} components by field
+ * (enough for the chapters of a book). The field name is the key,
+ * so that the query variant of an analyzer (ex: punctuation kept for
+ * {@link #QUERY}) is not confused with the indexing one.
+ * </p>
  * 
+ * <p>
+ * A stream may never be closed, when its document is dropped
+ * (ex: parse error in a chapter, pipeline drained after a failure).
+ * So the pool keeps a free component by a strong reference,
+ * but a busy one only by a weak reference, a lost component is
+ * garbage collected with its document, and its place in the pool is reclaimed.
+ * </p>
  */
 
 public class AlixReuseStrategy extends ReuseStrategy
 {
   public static String QUERY = "query";
+  /** Max count of components kept by field and by thread */
+  public static int POOL = 128;
+
   @Override
   public TokenStreamComponents getReusableComponents(Analyzer analyzer, String fieldName)
   {
-    if (QUERY.startsWith(fieldName)) return (TokenStreamComponents) getStoredValue(analyzer);
-    return analyzer.createComponents(fieldName);
+    @SuppressWarnings("unchecked")
+    HashMap<String, ArrayList<Slot>> fields = (HashMap<String, ArrayList<Slot>>) getStoredValue(analyzer);
+    if (fields == null) return null;
+    ArrayList<Slot> pool = fields.get(fieldName);
+    if (pool == null) return null;
+    for (int i = 0, size = pool.size(); i < size; i++) {
+      Slot slot = pool.get(i);
+      TokenStreamComponents components = slot.free;
+      if (components == null) continue; // busy
+      slot.free = null;
+      return components;
+    }
+    return null;
   }
 
   @Override
   public void setReusableComponents(Analyzer analyzer, String fieldName, TokenStreamComponents components)
   {
-    setStoredValue(analyzer, components);
+    // not created by AnalyzerReuseControl, end of stream is not known, do not reuse
+    if (!(components.getTokenStream() instanceof Lease)) return;
+    @SuppressWarnings("unchecked")
+    HashMap<String, ArrayList<Slot>> fields = (HashMap<String, ArrayList<Slot>>) getStoredValue(analyzer);
+    if (fields == null) {
+      fields = new HashMap<String, ArrayList<Slot>>();
+      setStoredValue(analyzer, fields);
+    }
+    ArrayList<Slot> pool = fields.get(fieldName);
+    if (pool == null) {
+      pool = new ArrayList<Slot>();
+      fields.put(fieldName, pool);
+    }
+    // pool full, reclaim the places of lost components
+    if (pool.size() >= POOL) {
+      for (Iterator<Slot> it = pool.iterator(); it.hasNext();) {
+        if (it.next().ref.get() == null) it.remove();
+      }
+    }
+    if (pool.size() >= POOL) return; // not kept, will be garbage collected after use
+    Slot slot = new Slot(components);
+    ((Lease) components.getTokenStream()).slot = slot;
+    pool.add(slot);
+  }
+
+  /**
+   * Wrap the last filter of new components, to know when they are free.
+   * 
+   * @param components
+   * @return
+   */
+  public static TokenStreamComponents lease(TokenStreamComponents components)
+  {
+    Lease lease = new Lease(components.sink);
+    lease.components = new TokenStreamComponents(components.source, lease);
+    return lease.components;
+  }
+
+  /**
+   * Place of components in a pool, the components are strongly referenced
+   * only when free, given back on close of their stream.
+   * A stream may be closed by another thread (ex: writer),
+   * the field is volatile.
+   */
+  static final class Slot
+  {
+    /** Components of the slot, cleared if lost while busy */
+    final WeakReference<TokenStreamComponents> ref;
+    /** Components if free, null if busy */
+    volatile TokenStreamComponents free;
+
+    Slot(TokenStreamComponents components)
+    {
+      ref = new WeakReference<TokenStreamComponents>(components);
+    }
+  }
+
+  /**
+   * Last filter of reusable components, busy until closed.
+   */
+  static final class Lease extends TokenFilter
+  {
+    /** The components ending with this filter */
+    TokenStreamComponents components;
+    /** Place in a pool, null if not kept */
+    Slot slot;
+
+    Lease(TokenStream input)
+    {
+      super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException
+    {
+      return input.incrementToken();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try {
+        super.close();
+      }
+      finally {
+        if (slot != null) slot.free = components;
+      }
+    }
   }
 
 }
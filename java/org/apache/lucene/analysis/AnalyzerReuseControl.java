@@ -58,7 +58,10 @@ public class AnalyzerReuseControl extends Analyzer
   @Override
   protected TokenStreamComponents createComponents(String fieldName)
   {
-    return analyzer.createComponents(fieldName);
+    TokenStreamComponents components = analyzer.createComponents(fieldName);
+    // know when a stream is closed to reuse its components
+    if (getReuseStrategy() instanceof AlixReuseStrategy) return AlixReuseStrategy.lease(components);
+    return components;
   }
 
   @Override
@@ -0,0 +1,94 @@
+package alix.bench;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * A small benchmark harness, in the spirit of JMH, without dependencies:
+ * warm up iterations, then measured iterations of an operation,
+ * reporting time by operation, items (ex: tokens) by second, 
+ * and bytes allocated by operation (for the current thread, when the jvm can tell it).
+ * Results are printed as a table, one line by benchmark, to compare runs
+ * before and after a change.
+ */
+public class Bench
+{
+  /** Default count of warm up iterations */
+  public static int WARMUP = 5;
+  /** Default count of measured iterations */
+  public static int ITERATIONS = 10;
+  /** Formatter */
+  private static final DecimalFormat df = new DecimalFormat("#,##0.00", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+
+  /**
+   * An operation to measure.
+   */
+  public interface Op
+  {
+    /**
+     * Run the operation once.
+     * 
+     * @return count of items processed (ex: tokens), 
+     * or some value depending on the work, so that the jvm cannot skip it.
+     * @throws Exception
+     */
+    long run() throws Exception;
+  }
+
+  /**
+   * Allocated bytes by current thread, or 0 if the jvm can’t tell it.
+   */
+  public static long allocated()
+  {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Print the header of the result table.
+   */
+  public static void header()
+  {
+    System.out.println(String.format(Locale.ENGLISH, "%-32s %6s %14s %16s %16s", 
+        "Benchmark", "Cnt", "ms/op", "items/s", "bytes/op"));
+  }
+
+  /**
+   * Run a benchmark with default iterations.
+   */
+  public static void run(final String name, final Op op) throws Exception
+  {
+    run(name, WARMUP, ITERATIONS, op);
+  }
+
+  /**
+   * Run a benchmark, warm up, then measure, and print a line of results.
+   * 
+   * @param name Label of the benchmark.
+   * @param warmup Iterations not measured.
+   * @param iterations Iterations measured.
+   * @param op The operation.
+   * @throws Exception
+   */
+  public static void run(final String name, final int warmup, final int iterations, final Op op) throws Exception
+  {
+    long blackhole = 0;
+    for (int i = 0; i < warmup; i++) blackhole += op.run();
+    long items = 0;
+    long bytes = allocated();
+    long time = System.nanoTime();
+    for (int i = 0; i < iterations; i++) items += op.run();
+    time = System.nanoTime() - time;
+    bytes = allocated() - bytes;
+    System.out.println(String.format(Locale.ENGLISH, "%-32s %6d %14s %16s %16s", 
+        name, iterations,
+        df.format(time / 1000000.0 / iterations),
+        df.format(items * 1000000000.0 / time),
+        df.format((double) bytes / iterations)
+    ));
+    if (blackhole == Long.MIN_VALUE) System.out.println(); // keep warm up work
+  }
+}
@@ -0,0 +1,132 @@
+package alix.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.apache.lucene.analysis.AlixReuseStrategy;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerReuseControl;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+
+import alix.lucene.analysis.CompoundFilter;
+import alix.lucene.analysis.FrAnalyzer;
+import alix.lucene.analysis.FrLemFilter;
+import alix.lucene.analysis.FrPersnameFilter;
+import alix.lucene.analysis.FrTokenizer;
+
+/**
+ * Benchmarks of the French analysis chain, step by step, on a fixed French text.
+ * Items are tokens, so that items/s is the throughput in tokens by second.
+ */
+public class BenchAnalysis
+{
+  /** Tokenizer only */
+  static class Tok extends Analyzer
+  {
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName)
+    {
+      final Tokenizer source = new FrTokenizer();
+      return new TokenStreamComponents(source);
+    }
+  }
+
+  /** Tokenizer + lemmatizer */
+  static class Lem extends Analyzer
+  {
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName)
+    {
+      final Tokenizer source = new FrTokenizer();
+      TokenStream result = new FrLemFilter(source);
+      return new TokenStreamComponents(source, result);
+    }
+  }
+
+  /** Tokenizer + lemmatizer + names + compounds */
+  static class Compound extends Analyzer
+  {
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName)
+    {
+      final Tokenizer source = new FrTokenizer();
+      TokenStream result = new FrLemFilter(source);
+      result = new FrPersnameFilter(result);
+      result = new CompoundFilter(result);
+      return new TokenStreamComponents(source, result);
+    }
+  }
+
+  /** No reuse of components, new ones for each stream */
+  static class NoReuse extends Analyzer.ReuseStrategy
+  {
+    @Override
+    public Analyzer.TokenStreamComponents getReusableComponents(Analyzer analyzer, String fieldName)
+    {
+      return null;
+    }
+
+    @Override
+    public void setReusableComponents(Analyzer analyzer, String fieldName, Analyzer.TokenStreamComponents components)
+    {
+    }
+  }
+
+  /** Count tokens of a text */
+  static long tokens(final Analyzer analyzer, final String text) throws IOException
+  {
+    long toks = 0;
+    try (TokenStream ts = analyzer.tokenStream("text", text)) {
+      ts.reset();
+      while (ts.incrementToken()) toks++;
+      ts.end();
+    }
+    return toks;
+  }
+
+  /**
+   * Count tokens of chapters, like SAXIndexer, open the streams of all chapters of a book, 
+   * before they are consumed by the writer.
+   */
+  static long books(final Analyzer analyzer, final String[] chapters, final int book) throws IOException
+  {
+    long toks = 0;
+    ArrayList<TokenStream> streams = new ArrayList<TokenStream>();
+    for (int i = 0; i < chapters.length; i += book) {
+      streams.clear();
+      for (int j = i, max = Math.min(i + book, chapters.length); j < max; j++) {
+        streams.add(analyzer.tokenStream("stats", chapters[j]));
+      }
+      for (TokenStream ts: streams) {
+        try {
+          ts.reset();
+          while (ts.incrementToken()) toks++;
+          ts.end();
+        }
+        finally {
+          ts.close();
+        }
+      }
+    }
+    return toks;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String text = new String(Files.readAllBytes(Paths.get((args.length > 0) ? args[0] : "test/java/res/zola.txt")), StandardCharsets.UTF_8);
+    Bench.header();
+    for (Analyzer analyzer : new Analyzer[] { new Tok(), new Lem(), new Compound(), new FrAnalyzer() }) {
+      Bench.run(analyzer.getClass().getSimpleName(), 3, 5, () -> tokens(analyzer, text));
+    }
+    // small chapters, books of 20 chapters, reuse of components
+    String[] chapters = text.split("\n\\s*\n");
+    Analyzer noReuse = new AnalyzerReuseControl(new FrAnalyzer(), new NoReuse());
+    Bench.run("books NoReuse", 3, 5, () -> books(noReuse, chapters, 20));
+    Analyzer alixReuse = new AnalyzerReuseControl(new FrAnalyzer(), new AlixReuseStrategy());
+    Bench.run("books AlixReuseStrategy", 3, 5, () -> books(alixReuse, chapters, 20));
+  }
+}
@@ -0,0 +1,127 @@
+package alix.bench;
+
+import java.nio.file.Files;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+
+import alix.lucene.Alix;
+import alix.lucene.search.Doc;
+import alix.lucene.search.Facet;
+import alix.lucene.search.Freqs;
+import alix.lucene.search.Scale;
+import alix.lucene.search.TermList;
+import alix.lucene.search.TopTerms;
+import alix.lucene.util.Cooc;
+import alix.lucene.util.WordsAutomatonBuilder;
+
+/**
+ * Benchmarks of search side statistics, on the synthetic index of {@link SynthIndex}.
+ * Items are documents, terms or lines, according to the operation.
+ */
+public class BenchSearch
+{
+  /** Some frequent and less frequent words of the source text */
+  static final String[] WORDS = { "église", "prêtre", "dieu", "soleil", "mort" };
+
+  public static void main(String[] args) throws Exception
+  {
+    final Alix alix = SynthIndex.alix();
+    final String field = SynthIndex.TEXT;
+    // curves from the postings, occurrences by year are tested after
+    Files.deleteIfExists(SynthIndex.PATH.resolve(Alix.BUCKETS_FILE + SynthIndex.YEAR + "." + field));
+    final IndexReader reader = alix.reader();
+    final TermList terms = new TermList();
+    for (String w : WORDS) {
+      terms.add(new Term(field, w));
+      terms.add(null); // one curve by word
+    }
+    final TermList groups = new TermList();
+    for (int i = 0; i < WORDS.length; i++) {
+      groups.add(new Term(field, WORDS[i]));
+      if (i % 3 == 2) groups.add(null); // one curve by 3 words
+    }
+    final Facet facet = alix.facet(SynthIndex.AUTHOR, field);
+    final Facet tags = alix.facet(SynthIndex.TAG, field);
+    final Cooc cooc = alix.cooc(field);
+    final Scale scale = alix.scale(SynthIndex.YEAR, field);
+    final Automaton automaton = WordsAutomatonBuilder.buildFronStrings(WORDS);
+    final ByteRunAutomaton include = new ByteRunAutomaton(automaton);
+    
+    Bench.header();
+    Bench.run("Freqs.new", () -> {
+      Freqs freqs = new Freqs(reader, field, alix.forkJoinPool(), null);
+      return freqs.hashDic().size();
+    });
+    Bench.run("Freqs.topTerms", () -> {
+      TopTerms top = alix.freqs(field).topTerms(null);
+      return top.size();
+    });
+    Bench.run("Facet.topTerms author", () -> {
+      TopTerms top = facet.topTerms(null, terms, null);
+      return top.size();
+    });
+    Bench.run("Facet.topTerms tag", () -> {
+      TopTerms top = tags.topTerms(null, terms, null);
+      return top.size();
+    });
+    Bench.run("Cooc.topTerms", () -> {
+      TopTerms top = cooc.topTerms(terms, 5, 5, null);
+      return top.size();
+    });
+    Bench.run("Scale.curves", () -> {
+      long[][] curves = scale.curves(terms, 100);
+      return curves.length;
+    });
+    Bench.run("Scale.curves groups smooth", () -> {
+      long[][] curves = scale.curves(groups, 100, true);
+      double[][] smooth = Scale.smooth(scale.relative(curves), 2);
+      return smooth.length;
+    });
+    // a sub-corpus, one doc on three
+    final FixedBitSet corpus = new FixedBitSet(reader.maxDoc());
+    for (int docId = 0; docId < reader.maxDoc(); docId += 3) corpus.set(docId);
+    Bench.run("Scale.new corpus", () -> {
+      Scale sub = new Scale(alix, corpus, SynthIndex.YEAR, field);
+      return sub.docs();
+    });
+    Bench.run("Alix.scale corpus curves", () -> {
+      long[][] curves = alix.scale(SynthIndex.YEAR, field, corpus).curves(terms, 100);
+      return curves.length;
+    });
+    // a small corpus, one doc on hundred, filters are intersected with postings by skipping
+    final SparseFixedBitSet few = new SparseFixedBitSet(reader.maxDoc());
+    for (int docId = 0; docId < reader.maxDoc(); docId += 100) few.set(docId);
+    Bench.run("Freqs.topTerms small corpus", () -> {
+      TopTerms top = alix.freqs(field).topTerms(few);
+      return top.size();
+    });
+    Bench.run("Facet.topTerms small corpus", () -> {
+      TopTerms top = facet.topTerms(few, terms, null);
+      return top.size();
+    });
+    Bench.run("Cooc.topTerms small corpus", () -> {
+      TopTerms top = cooc.topTerms(terms, 5, 5, few);
+      return top.size();
+    });
+    Bench.run("Alix.writeBuckets", () -> {
+      return alix.writeBuckets(SynthIndex.YEAR, field).size();
+    });
+    Bench.run("Scale.curves buckets", () -> {
+      long[][] curves = scale.curves(terms, 100);
+      return curves.length;
+    });
+    Bench.run("Doc.kwic", () -> {
+      long lines = 0;
+      for (int docId = 0; docId < 100; docId++) {
+        String[] kwic = new Doc(alix, docId).kwic(field, include, "", 20, 50, 50, 1, false);
+        if (kwic != null) lines += kwic.length;
+      }
+      return lines;
+    });
+  }
+}
@@ -0,0 +1,116 @@
+package alix.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
+
+import alix.lucene.Alix;
+import alix.lucene.analysis.FrAnalyzer;
+import alix.lucene.util.Cooc;
+import alix.util.Dir;
+
+/**
+ * A synthetic index for benchmarks, reproducible (fixed seed): 
+ * documents made of paragraphs drawn from a French text, 
+ * with an int field (year), a facet (author, with a skewed distribution),
+ * and a multi-valued facet (tag), indexed like {@link alix.lucene.SAXIndexer} does.
+ */
+public class SynthIndex
+{
+  /** Text field */
+  public static final String TEXT = "text";
+  /** Int field */
+  public static final String YEAR = "year";
+  /** Facet field, one value by doc */
+  public static final String AUTHOR = "author";
+  /** Facet field, more than one value by doc */
+  public static final String TAG = "tag";
+  /** Default path of the index */
+  public static final Path PATH = Paths.get("work/bench");
+  /** Default source of paragraphs */
+  public static final Path SOURCE = Paths.get("test/java/res/zola.txt");
+
+  /**
+   * Get the benchmark index, build it if not found.
+   */
+  public static Alix alix() throws IOException
+  {
+    if (!Files.exists(PATH)) build(PATH, SOURCE, 2000, 20, 42);
+    return Alix.instance(PATH, new FrAnalyzer());
+  }
+
+  /**
+   * Build a synthetic index.
+   * 
+   * @param path Directory of the index, deleted if exists.
+   * @param source A text file, paragraphs separated by empty lines.
+   * @param docs Count of documents.
+   * @param paras Max count of paragraphs by document.
+   * @param seed Seed of the random generator.
+   */
+  public static void build(final Path path, final Path source, final int docs, final int paras, final long seed) throws IOException
+  {
+    String[] paragraphs = new String(Files.readAllBytes(source), StandardCharsets.UTF_8).split("\n\\s*\n");
+    Random random = new Random(seed);
+    Dir.rm(path);
+    Alix alix = Alix.instance(path, new FrAnalyzer());
+    IndexWriter writer = alix.writer();
+    Analyzer analyzer = writer.getAnalyzer();
+    StringBuilder text = new StringBuilder();
+    for (int docId = 0; docId < docs; docId++) {
+      Document doc = new Document();
+      String id = "doc" + docId;
+      doc.add(new StringField(Alix.ID, id, Store.YES));
+      doc.add(new SortedDocValuesField(Alix.ID, new BytesRef(id)));
+      int year = 1800 + random.nextInt(150);
+      doc.add(new IntPoint(YEAR, year));
+      doc.add(new StoredField(YEAR, year));
+      doc.add(new NumericDocValuesField(YEAR, year));
+      // few authors with lots of docs, lots of authors with few docs
+      String author = "author" + (int) Math.floor(Math.pow(random.nextDouble(), 3) * 200);
+      doc.add(new SortedDocValuesField(AUTHOR, new BytesRef(author)));
+      doc.add(new StoredField(AUTHOR, author));
+      for (int i = 0, n = 1 + random.nextInt(3); i < n; i++) {
+        String tag = "tag" + random.nextInt(20);
+        doc.add(new SortedSetDocValuesField(TAG, new BytesRef(tag)));
+        doc.add(new StoredField(TAG, tag));
+      }
+      text.setLength(0);
+      for (int i = 0, n = 1 + random.nextInt(paras); i < n; i++) {
+        text.append("<p>").append(paragraphs[random.nextInt(paragraphs.length)]).append("</p>\n");
+      }
+      String xml = text.toString();
+      doc.add(new StoredField(TEXT, xml));
+      TokenStream ts = analyzer.tokenStream("stats", xml);
+      doc.add(new Field(TEXT, ts, Alix.ftypeText));
+      writer.addDocument(doc);
+    }
+    writer.commit();
+    writer.close();
+    new Cooc(alix, TEXT).write();
+  }
+  
+  public static void main(String[] args) throws IOException
+  {
+    long time = System.nanoTime();
+    build(PATH, SOURCE, 2000, 20, 42);
+    System.out.println("Synthetic index in " + ((System.nanoTime() - time) / 1000000) + " ms. " + PATH);
+  }
+}
@@ -1,6 +1,9 @@
 package alix.lucene.search;
 
 import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.util.FixedBitSet;
 
 import alix.lucene.Alix;
 import alix.lucene.TestIndex;
@@ -12,5 +15,12 @@ public class TestIntSeries
     Alix alix = TestIndex.index();
     IntSeries ints = new IntSeries(alix.reader(), TestIndex.INT);
     System.out.println("card="+ints.card() +" min="+ints.min()+" max="+ints.max()+" mean="+ints.mean());
+    System.out.println(ints.stats(null));
+    // a corpus, one doc on two
+    FixedBitSet filter = new FixedBitSet(alix.reader().maxDoc());
+    for (int docId = 0; docId < filter.length(); docId += 2) filter.set(docId);
+    IntSeries.Stats stats = ints.stats(filter);
+    System.out.println(stats);
+    System.out.println("deciles=" + Arrays.toString(stats.quantiles(10)) + " histogram=" + Arrays.toString(stats.histogram(5)));
   }
 }
@@ -0,0 +1,67 @@
+package alix.lucene.util;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestCache
+{
+  /** Concurrent requests for the same key, only one load */
+  public static void singleFlight() throws Exception
+  {
+    final Cache cache = new Cache();
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run()
+        {
+          try {
+            start.await();
+            cache.get("Test:ints", new Cache.Loader<int[]>() {
+              @Override
+              public int[] load() throws IOException
+              {
+                loads.incrementAndGet();
+                try {
+                  Thread.sleep(100);
+                }
+                catch (InterruptedException e) {
+                }
+                return new int[1000];
+              }
+            });
+          }
+          catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) t.join();
+    System.out.println("loads=" + loads.get() + " (should be 1)");
+    System.out.println(cache);
+  }
+
+  /** Evict least recently used, except pinned */
+  public static void evict()
+  {
+    Cache cache = new Cache(10000);
+    cache.put("A:1", new int[1000]); // ~4 kB
+    cache.pin("A:1", true);
+    cache.put("B:2", new int[1000]);
+    cache.put("B:3", new int[1000]); // evict B:2
+    System.out.println("A:1=" + (cache.get("A:1") != null) + " B:2=" + (cache.get("B:2") != null) + " B:3=" + (cache.get("B:3") != null));
+    System.out.println(cache);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    singleFlight();
+    evict();
+  }
+}
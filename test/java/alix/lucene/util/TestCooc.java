@@ -3,12 +3,7 @@ package alix.lucene.util;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
-import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.search.DocIdSetIterator;
-import org.apache.lucene.util.BytesRef;
 
 import alix.lucene.Alix;
 import alix.lucene.TestIndex;
@@ -34,30 +29,20 @@ public class TestCooc
   
   public static void small() throws IOException, ClassNotFoundException, InterruptedException
   {
-    final int END = DocIdSetIterator.NO_MORE_DOCS;
     String field = TestIndex.TEXT;
     Alix alix = TestIndex.index();
-    alix.writer().close(); // close writer before writing coos
+    alix.writer().close(); // commit before writing coocs
     Cooc cooc = new Cooc(alix, field);
     cooc.write();
     // show all rails
     IndexReader reader = alix.reader();
-    String fieldRail = field + Cooc._RAIL;
-    for (LeafReaderContext context : reader.leaves()) {
-      int docBase = context.docBase;
-      int docLeaf;
-      LeafReader leaf = context.reader();
-      BinaryDocValues binDocs = leaf.getBinaryDocValues(fieldRail);
-      if (binDocs == null) continue; 
-      while ( (docLeaf = binDocs.nextDoc()) != END) {
-        BytesRef ref = binDocs.binaryValue();
-        String[] strings = cooc.strings(ref);
-        for (String w: strings) {
-          System.out.print(w+" ");
-        }
-        System.out.println();
+    for (int docId = 0, maxDoc = reader.maxDoc(); docId < maxDoc; docId++) {
+      String[] strings = cooc.sequence(docId);
+      if (strings == null) continue;
+      for (String w: strings) {
+        System.out.print(w+" ");
       }
-
+      System.out.println();
     }
     TermList terms = alix.qTerms("a", TestIndex.TEXT);
     TopTerms dic = cooc.topTerms(terms, 1, 1, null);